@@ -0,0 +1,263 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.yaml.YAMLConfigurationLoader;
+import org.slf4j.Logger;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.plugin.PluginContainer;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validates and compiles the mapping files of a config directory against a {@link RegistrySnapshot}, without a server.
+ *
+ * <p>The snapshot is read from the compact dump of "/swappa dump compact". It, blockstates.yml and populators.yml are read in parallel
+ * and mod sections are compiled in parallel, the same way the plugin compiles them. Every warning the plugin would log at startup is
+ * reported, such as mods, blocks, traits and populators that do not exist, followed by what only shows once the rules are compiled:
+ * rules that never apply because earlier rules already match every state they match, and chained rules whose replacement is replaced by
+ * another rule, which never happens as replacements are not replaced again. The compiled mappings are written to mappings.cache, which
+ * the plugin loads at startup instead of compiling the files again as long as the snapshot matches the server.</p>
+ *
+ * <p>Exits with 0 if there were no problems, 1 if there were and 2 if the dump or the files could not be read.</p>
+ *
+ * <pre>
+ * gradle checkConfig -PcheckConfig.args="&lt;dump.txt&gt; &lt;config dir&gt;"
+ * </pre>
+ */
+public final class ConfigCheck {
+
+    private static final String COMPILED = Swappa.PLUGIN_ID + "-compiled";
+
+    private final RegistrySnapshot snapshot;
+    private final BlockStatePalette palette;
+    private final List<String> problems = Collections.synchronizedList(new ArrayList<>());
+
+    private ConfigCheck(RegistrySnapshot snapshot, BlockStatePalette palette) {
+        this.snapshot = snapshot;
+        this.palette = palette;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: <dump.txt> <config dir>");
+            System.exit(2);
+        }
+
+        final long start = System.nanoTime();
+        final Path configDir = Paths.get(args[1]);
+        final CompletableFuture<RegistrySnapshot> snapshot = CompletableFuture.supplyAsync(() -> {
+            try {
+                return RegistrySnapshot.read(Paths.get(args[0]));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+        final CompletableFuture<BlockStatePalette> palette = snapshot.thenApplyAsync(loaded -> BlockStatePalette.build(loaded.blockTypes));
+        final CompletableFuture<ConfigurationNode> blockStatesRootNode = load(configDir.resolve(Swappa.BLOCKSTATES_FILE));
+        final CompletableFuture<ConfigurationNode> populatorsRootNode = load(configDir.resolve(Swappa.POPULATORS_FILE));
+
+        final int problems;
+        try {
+            problems = new ConfigCheck(snapshot.join(), palette.join()).run(configDir, blockStatesRootNode.join(), populatorsRootNode.join(),
+                    start);
+        } catch (CompletionException e) {
+            System.err.println("Failed to read the dump or the mapping files: " + e.getCause());
+            System.exit(2);
+            return;
+        } catch (IOException e) {
+            System.err.println("Failed to compile the mapping files: " + e);
+            System.exit(2);
+            return;
+        }
+
+        System.exit(problems == 0 ? 0 : 1);
+    }
+
+    private static CompletableFuture<ConfigurationNode> load(Path path) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return YAMLConfigurationLoader.builder().setFile(path.toFile()).build().load();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Compiles the files like the plugin does at startup, reports the problems and writes mappings.cache.
+     *
+     * @return The amount of problems
+     */
+    private int run(Path configDir, ConfigurationNode blockStatesRootNode, ConfigurationNode populatorsRootNode, long start) throws
+            IOException {
+        final Swappa swappa = new Swappa();
+        swappa.registry = this.snapshot.registry;
+        swappa.pluginManager = this.snapshot.pluginManager;
+        swappa.palette = this.palette;
+        // Named like the plugin's loggers
+        final List<MappingsShard> shards = MappingsShard.loadAll(configDir.resolve(MappingsShard.DIRECTORY), swappa.pluginManager, reporter(
+                Swappa.PLUGIN_ID + "-shards"));
+        final Map<PluginContainer, Map<String, BlockStatePattern>> mappings = BlockStateMappingsRegistry.compile(blockStatesRootNode, shards,
+                reporter(Swappa.PLUGIN_ID + "-blockstates"));
+        final ReplacementTable table = PopulatorMappingsRegistry.compile(populatorsRootNode, shards, mappings, this.palette, reporter(
+                Swappa.PLUGIN_ID + "-populators"));
+
+        for (Map.Entry<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> entry : table.getPopulatorRules().entrySet()) {
+            checkRules("Populator [" + entry.getKey().getId() + "]", entry.getValue(), table.get(entry.getKey()));
+        }
+        checkRules("[All]", table.getAllRules(), table.getAll());
+        final List<ConditionalRules.Rule> conditionalRules = table.getConditionalRules() == null ? Collections.emptyList() : table
+                .getConditionalRules().getRules();
+        // Rules with the same conditions are checked as one list, the first one matching a state wins just the same
+        final Map<String, List<PopulatorMappingsRegistry.ReplacementEntry>> conditions = new LinkedHashMap<>();
+        for (ConditionalRules.Rule rule : conditionalRules) {
+            conditions.computeIfAbsent(rule.toString(), k -> new ArrayList<>()).addAll(rule.entries);
+        }
+        for (Map.Entry<String, List<PopulatorMappingsRegistry.ReplacementEntry>> entry : conditions.entrySet()) {
+            checkRules("Conditional Rule [" + entry.getKey() + "]", entry.getValue(), ReplacementTable.expand(this.palette, entry.getValue(),
+                    null));
+        }
+
+        new MappingsCache(mappings, table.getPopulatorRules(), table.getAllRules(), conditionalRules, populatorsRootNode.getNode("general")
+                .getValue()).write(configDir.resolve(Swappa.MAPPINGS_CACHE_FILE), MappingsCache.key(configDir, this.palette, this.snapshot
+                .registry, this.snapshot.pluginManager), this.palette);
+        final long elapsed = System.nanoTime() - start;
+
+        for (String problem : this.problems) {
+            System.out.println(problem);
+        }
+        int mapped = 0;
+        for (Map<String, BlockStatePattern> modMappings : mappings.values()) {
+            mapped += modMappings.size();
+        }
+        int populatorRules = 0;
+        for (List<PopulatorMappingsRegistry.ReplacementEntry> entries : table.getPopulatorRules().values()) {
+            populatorRules += entries.size();
+        }
+        System.out.println("Compiled [" + mapped + "] mappings of [" + mappings.size() + "] mods, [" + populatorRules + "] rules of ["
+                + table.getPopulatorRules().size() + "] populators, [" + table.getAllRules().size() + "] all rules and [" + conditionalRules
+                .size() + "] conditional rules against [" + this.palette.size() + "] BlockStates in [" + TimeUnit.NANOSECONDS.toMillis(elapsed)
+                + "ms], written to " + Swappa.MAPPINGS_CACHE_FILE + ".");
+        if (!this.snapshot.hasPlugins) {
+            System.out.println("The dump does not list the loaded mods, dump it again for the server to use " + Swappa.MAPPINGS_CACHE_FILE
+                    + ".");
+        }
+        System.out.println("Found [" + this.problems.size() + "] problems.");
+
+        return this.problems.size();
+    }
+
+    /**
+     * Checks the rules of a list where the first rule matching a state wins.
+     *
+     * @param context Where the rules are configured, for problems
+     * @param entries The rules, in order
+     * @param expanded The rules the listener looks up for these, indexed by {@link BlockStatePalette} id
+     */
+    private void checkRules(String context, List<PopulatorMappingsRegistry.ReplacementEntry> entries, PopulatorMappingsRegistry
+            .ReplacementEntry[] expanded) {
+        final PopulatorMappingsRegistry.ReplacementEntry[] claimed = new PopulatorMappingsRegistry.ReplacementEntry[this.palette.size()];
+        for (PopulatorMappingsRegistry.ReplacementEntry entry : entries) {
+            PopulatorMappingsRegistry.ReplacementEntry shadowing = null;
+            boolean applies = false;
+            for (int id : this.palette.getMatchingIds(entry.original)) {
+                if (claimed[id] == null) {
+                    claimed[id] = entry;
+                    applies = true;
+                } else if (shadowing == null) {
+                    shadowing = claimed[id];
+                }
+            }
+
+            if (!applies && shadowing != null) {
+                if (shadowing.original.toString().equals(entry.original.toString())) {
+                    report(COMPILED, "Potential duplicate Rule [" + entry + "] for " + context + " is ignored, Rule [" + shadowing + "] already "
+                            + "replaces the same BlockStates.");
+                } else {
+                    report(COMPILED, "Potential shadowed Rule [" + entry + "] for " + context + " never applies, earlier Rules such as [" + shadowing
+                            + "] already replace every BlockState it matches.");
+                }
+                continue;
+            }
+
+            final int replacements = entry.weightedReplacement == null ? 1 : entry.weightedReplacement.size();
+            for (int i = 0; i < replacements; i++) {
+                final BlockState replacement = entry.weightedReplacement == null ? entry.replacementBlockState : entry.weightedReplacement
+                        .getState(i);
+                final int id = this.palette.getId(replacement);
+                final PopulatorMappingsRegistry.ReplacementEntry next = id == BlockStatePalette.UNKNOWN_ID ? null : expanded[id];
+                if (next != null && next != entry) {
+                    report(COMPILED, "Potential chained Rule [" + entry + "] for " + context + ", its Replacement [" + replacement + "] is "
+                            + "matched by Rule [" + next + "] but replacements are not replaced again.");
+                }
+            }
+        }
+    }
+
+    private void report(String source, String message) {
+        this.problems.add("[" + source + "] " + message);
+    }
+
+    /**
+     * Creates a logger that reports warnings and errors as problems and drops everything else.
+     */
+    private Logger reporter(String name) {
+        return (Logger) Proxy.newProxyInstance(ConfigCheck.class.getClassLoader(), new Class<?>[] {Logger.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "warn":
+                case "error":
+                    final Object cause = args.length > 1 ? args[args.length - 1] : null;
+                    report(name, args[0] + (cause instanceof Throwable ? " " + cause : ""));
+                    return null;
+                case "isWarnEnabled":
+                case "isErrorEnabled":
+                    return true;
+                case "getName":
+                case "toString":
+                    return name;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return method.getReturnType() == boolean.class ? false : null;
+            }
+        });
+    }
+}
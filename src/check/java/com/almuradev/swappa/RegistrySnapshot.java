@@ -0,0 +1,155 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import org.spongepowered.api.CatalogType;
+import org.spongepowered.api.GameRegistry;
+import org.spongepowered.api.block.BlockType;
+import org.spongepowered.api.plugin.PluginContainer;
+import org.spongepowered.api.plugin.PluginManager;
+import org.spongepowered.api.world.DimensionType;
+import org.spongepowered.api.world.biome.BiomeType;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The registries of a server rebuilt from its compact dump, see {@link RegistryDumper}, so mapping files can be compiled without a
+ * server.
+ *
+ * <p>Every type is one of the {@link Stubs}, which answer what compiling the mappings calls and throw for anything else. Trait values
+ * are the strings the dump holds, which is also what the mapping files provide. Block states are canonical instances holding every
+ * combination of their block's trait values, in the order {@link BlockStatePalette} enumerates them on the server, so offsets into the
+ * palette match the server's. Dumps written before mods were included derive them from the namespaces of the blocks and populators.</p>
+ */
+final class RegistrySnapshot {
+
+    final List<BlockType> blockTypes;
+    final GameRegistry registry;
+    final PluginManager pluginManager;
+    // False for dumps without "M" lines, the mods are then derived and may not match the server's
+    final boolean hasPlugins;
+
+    private RegistrySnapshot(List<BlockType> blockTypes, GameRegistry registry, PluginManager pluginManager, boolean hasPlugins) {
+        this.blockTypes = blockTypes;
+        this.registry = registry;
+        this.pluginManager = pluginManager;
+        this.hasPlugins = hasPlugins;
+    }
+
+    /**
+     * Reads a compact dump. State lines are skipped, states are rebuilt from the traits of their block.
+     *
+     * @param path The dump
+     * @return The snapshot
+     * @throws IOException If the dump could not be read or is malformed
+     */
+    static RegistrySnapshot read(Path path) throws IOException {
+        final Map<String, BlockType> blockTypes = new LinkedHashMap<>();
+        final Map<String, PopulatorType> populators = new LinkedHashMap<>();
+        final Map<String, DimensionType> dimensionTypes = new LinkedHashMap<>();
+        final Map<String, BiomeType> biomes = new LinkedHashMap<>();
+        final Map<String, PluginContainer> plugins = new LinkedHashMap<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                final String[] fields = line.split("\t");
+                if (fields.length < 2) {
+                    throw new IOException("Malformed line [" + lineNumber + "] in [" + path.getFileName() + "]!");
+                }
+                switch (fields[0]) {
+                    case RegistryDumper.COMPACT_BLOCK:
+                        final String[] traitNames = new String[fields.length - 2];
+                        final String[][] traitValues = new String[fields.length - 2][];
+                        for (int i = 2; i < fields.length; i++) {
+                            final int separator = fields[i].indexOf('=');
+                            if (separator < 0) {
+                                throw new IOException("Malformed Trait [" + fields[i] + "] on line [" + lineNumber + "] in [" + path
+                                        .getFileName() + "]!");
+                            }
+                            traitNames[i - 2] = fields[i].substring(0, separator);
+                            traitValues[i - 2] = fields[i].substring(separator + 1).split(",");
+                        }
+                        blockTypes.put(fields[1], Stubs.blockType(fields[1], traitNames, traitValues));
+                        break;
+                    case RegistryDumper.COMPACT_POPULATOR:
+                        populators.put(fields[1], Stubs.catalogType(PopulatorType.class, fields[1]));
+                        break;
+                    case RegistryDumper.COMPACT_DIMENSION:
+                        dimensionTypes.put(fields[1], Stubs.catalogType(DimensionType.class, fields[1]));
+                        break;
+                    case RegistryDumper.COMPACT_BIOME:
+                        biomes.put(fields[1], Stubs.catalogType(BiomeType.class, fields[1]));
+                        break;
+                    case RegistryDumper.COMPACT_PLUGIN:
+                        plugins.put(fields[1], Stubs.plugin(fields[1]));
+                        break;
+                    default:
+                        // States and anything a newer dump adds
+                        break;
+                }
+            }
+        }
+
+        final boolean hasPlugins = !plugins.isEmpty();
+        if (!hasPlugins) {
+            for (String id : Arrays.asList("minecraft", Swappa.PLUGIN_ID)) {
+                plugins.put(id, Stubs.plugin(id));
+            }
+            for (String id : blockTypes.keySet()) {
+                plugins.computeIfAbsent(id.split(":")[0], Stubs::plugin);
+            }
+            for (String id : populators.keySet()) {
+                plugins.computeIfAbsent(id.split(":")[0], Stubs::plugin);
+            }
+        }
+
+        final Map<Class<?>, Map<String, ? extends CatalogType>> types = new HashMap<>();
+        types.put(BlockType.class, blockTypes);
+        types.put(PopulatorType.class, populators);
+        types.put(DimensionType.class, dimensionTypes);
+        types.put(BiomeType.class, biomes);
+        return new RegistrySnapshot(Collections.unmodifiableList(new ArrayList<>(blockTypes.values())), Stubs.gameRegistry(types),
+                Stubs.pluginManager(plugins), hasPlugins);
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.flowpowered.math.vector.Vector3i;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.block.BlockTransaction;
+import org.spongepowered.api.event.world.chunk.PopulateChunkEvent;
+import org.spongepowered.api.world.DimensionType;
+import org.spongepowered.api.world.World;
+import org.spongepowered.api.world.biome.BiomeType;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Populates chunks on several threads while another thread keeps publishing freshly compiled tables, alternating between two rule sets
+ * that replace the same blocks with different ones. Every chunk has to come out exactly as one of the two rule sets leaves it, a chunk
+ * that mixes both fails the run. Compare the throughput of the thread counts to see how population scales while reloading.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConcurrentPopulateBenchmark {
+
+    private static final int CHUNKS = 16, TRANSACTIONS = 4096;
+
+    private Swappa swappa;
+    private World world;
+    private Workload workload;
+    private final RuleSet[] ruleSets = new RuleSet[2];
+    private final List<Map<PopulatorType, List<BlockTransaction>>> templates = new ArrayList<>();
+    // Indexed by rule set, then chunk, then transaction in populator order
+    private final BlockState[][][] expected = new BlockState[2][CHUNKS][];
+    private Thread reloader;
+    private volatile boolean reloading;
+    private volatile long reloads;
+
+    @Setup
+    public void setup() {
+        this.workload = new Workload(1000, 8);
+        this.swappa = this.workload.install();
+        final BiomeType plains = Stubs.catalogType(BiomeType.class, "minecraft:plains");
+        final Map<Long, BiomeType> biomes = new HashMap<>();
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                biomes.put(ReplacementJournal.pack(x, 0, z), plains);
+            }
+        }
+        this.world = Stubs.world("world", Stubs.catalogType(DimensionType.class, "minecraft:overworld"), Workload.SEED, biomes);
+
+        // The second rule set matches the same states as the first but replaces them with something else
+        this.ruleSets[0] = new RuleSet(this.workload.table.getPopulatorRules(), this.workload.table.getAllRules());
+        this.ruleSets[1] = this.ruleSets[0].remap(this.workload);
+        for (int chunk = 0; chunk < CHUNKS; chunk++) {
+            this.templates.add(this.workload.chunk(TRANSACTIONS));
+        }
+        for (int set = 0; set < 2; set++) {
+            PopulatorMappingsRegistry.setTable(this.ruleSets[set].compile(this.workload.palette));
+            for (int chunk = 0; chunk < CHUNKS; chunk++) {
+                final Map<PopulatorType, List<BlockTransaction>> transactions = copy(this.templates.get(chunk));
+                this.swappa.onPopulateChunkPost(Stubs.populateChunkPost(transactions, this.world, 0, 0));
+                this.expected[set][chunk] = finalStates(transactions);
+            }
+        }
+
+        this.reloading = true;
+        this.reloader = new Thread(() -> {
+            while (this.reloading) {
+                PopulatorMappingsRegistry.setTable(this.ruleSets[(int) (this.reloads & 1)].compile(this.workload.palette));
+                this.reloads++;
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "reloader");
+        this.reloader.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        this.reloading = false;
+        this.reloader.join();
+        System.out.println("Published [" + this.reloads + "] tables while populating.");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void populate1Thread(Chunks chunks) {
+        populate(chunks);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void populate2Threads(Chunks chunks) {
+        populate(chunks);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void populate4Threads(Chunks chunks) {
+        populate(chunks);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void populateMaxThreads(Chunks chunks) {
+        populate(chunks);
+    }
+
+    private void populate(Chunks chunks) {
+        final int chunk = chunks.next++ % CHUNKS;
+        final Map<PopulatorType, List<BlockTransaction>> transactions = chunks.transactions.get(chunk);
+        for (List<BlockTransaction> populatorTransactions : transactions.values()) {
+            for (BlockTransaction transaction : populatorTransactions) {
+                transaction.setCustomReplacement(transaction.getDefaultReplacement());
+            }
+        }
+
+        this.swappa.onPopulateChunkPost(chunks.events.get(chunk));
+
+        boolean first = true, second = true;
+        int i = 0;
+        for (List<BlockTransaction> populatorTransactions : transactions.values()) {
+            for (BlockTransaction transaction : populatorTransactions) {
+                final BlockState state = transaction.getFinalReplacement().getState();
+                first &= state == this.expected[0][chunk][i];
+                second &= state == this.expected[1][chunk][i];
+                i++;
+            }
+        }
+        if (!first && !second) {
+            throw new IllegalStateException("Chunk [" + chunk + "] was populated with a mix of both rule sets");
+        }
+    }
+
+    private static Map<PopulatorType, List<BlockTransaction>> copy(Map<PopulatorType, List<BlockTransaction>> template) {
+        final Map<PopulatorType, List<BlockTransaction>> copy = new LinkedHashMap<>();
+        for (Map.Entry<PopulatorType, List<BlockTransaction>> entry : template.entrySet()) {
+            final List<BlockTransaction> transactions = new ArrayList<>(entry.getValue().size());
+            for (BlockTransaction transaction : entry.getValue()) {
+                final Vector3i position = transaction.getDefaultReplacement().getPosition();
+                transactions.add(Stubs.transaction(transaction.getOriginal().getState(), transaction.getDefaultReplacement().getState(),
+                        position));
+            }
+            copy.put(entry.getKey(), transactions);
+        }
+
+        return copy;
+    }
+
+    private static BlockState[] finalStates(Map<PopulatorType, List<BlockTransaction>> transactions) {
+        final List<BlockState> states = new ArrayList<>();
+        for (List<BlockTransaction> populatorTransactions : transactions.values()) {
+            for (BlockTransaction transaction : populatorTransactions) {
+                states.add(transaction.getFinalReplacement().getState());
+            }
+        }
+
+        return states.toArray(new BlockState[states.size()]);
+    }
+
+    /**
+     * The chunks of one populating thread, copies of the shared templates so threads never touch each other's transactions.
+     */
+    @State(Scope.Thread)
+    public static class Chunks {
+
+        final List<Map<PopulatorType, List<BlockTransaction>>> transactions = new ArrayList<>();
+        final List<PopulateChunkEvent.Post> events = new ArrayList<>();
+        int next;
+
+        @Setup
+        public void setup(ConcurrentPopulateBenchmark benchmark) {
+            for (Map<PopulatorType, List<BlockTransaction>> template : benchmark.templates) {
+                final Map<PopulatorType, List<BlockTransaction>> copy = copy(template);
+                this.transactions.add(copy);
+                this.events.add(Stubs.populateChunkPost(copy, benchmark.world, 0, 0));
+            }
+        }
+    }
+
+    /**
+     * The rules of one rule set. Half of the populator rules also apply as conditional rules in the lower half of the chunk, with
+     * their own replacements, so the conditional layers are compiled concurrently too.
+     */
+    private static final class RuleSet {
+
+        final Map<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> populatorRules;
+        final List<PopulatorMappingsRegistry.ReplacementEntry> allRules;
+        final List<ConditionalRules.Rule> conditionalRules;
+
+        RuleSet(Map<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> populatorRules,
+                List<PopulatorMappingsRegistry.ReplacementEntry> allRules) {
+            this(populatorRules, allRules, Collections.emptyList());
+        }
+
+        private RuleSet(Map<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> populatorRules,
+                List<PopulatorMappingsRegistry.ReplacementEntry> allRules, List<ConditionalRules.Rule> conditionalRules) {
+            this.populatorRules = populatorRules;
+            this.allRules = allRules;
+            this.conditionalRules = conditionalRules;
+        }
+
+        RuleSet remap(Workload workload) {
+            final Map<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> populatorRules = new LinkedHashMap<>();
+            final List<PopulatorMappingsRegistry.ReplacementEntry> conditionalEntries = new ArrayList<>();
+            for (Map.Entry<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> entry : this.populatorRules.entrySet()) {
+                final List<PopulatorMappingsRegistry.ReplacementEntry> remapped = remap(workload, entry.getValue());
+                populatorRules.put(entry.getKey(), remapped);
+                conditionalEntries.addAll(remapped.subList(0, remapped.size() / 2));
+            }
+
+            return new RuleSet(populatorRules, remap(workload, this.allRules), Collections.singletonList(new ConditionalRules.Rule(Collections
+                    .emptySet(), Collections.emptySet(), Collections.emptySet(), Collections.emptySet(), 0, 7, remap(workload,
+                    conditionalEntries))));
+        }
+
+        private static List<PopulatorMappingsRegistry.ReplacementEntry> remap(Workload workload, List<PopulatorMappingsRegistry
+                .ReplacementEntry> entries) {
+            final List<PopulatorMappingsRegistry.ReplacementEntry> remapped = new ArrayList<>(entries.size());
+            for (PopulatorMappingsRegistry.ReplacementEntry entry : entries) {
+                BlockState replacement;
+                do {
+                    replacement = workload.randomState();
+                } while (replacement == entry.replacementBlockState);
+                remapped.add(new PopulatorMappingsRegistry.ReplacementEntry(entry.origin, entry.original, replacement));
+            }
+
+            return remapped;
+        }
+
+        ReplacementTable compile(BlockStatePalette palette) {
+            return ReplacementTable.compile(palette, this.populatorRules, this.allRules, this.conditionalRules);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a single rule lookup, resolving both the populator table and the state id for every lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LookupBenchmark {
+
+    private static final int LOOKUPS = 4096;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int rules;
+
+    @Param({"1", "8", "32"})
+    public int populators;
+
+    private ReplacementTable table;
+    private final PopulatorType[] types = new PopulatorType[LOOKUPS];
+    private final BlockState[] states = new BlockState[LOOKUPS];
+
+    @Setup
+    public void setup() {
+        final Workload workload = new Workload(this.rules, this.populators);
+        this.table = workload.table;
+        for (int i = 0; i < LOOKUPS; i++) {
+            this.types[i] = workload.randomPopulatorType();
+            this.states[i] = workload.randomState();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void lookup(Blackhole blackhole) {
+        final ReplacementTable table = this.table;
+        for (int i = 0; i < LOOKUPS; i++) {
+            blackhole.consume(table.get(this.types[i], this.states[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void lookupStateId(Blackhole blackhole) {
+        final BlockStatePalette palette = this.table.getPalette();
+        for (int i = 0; i < LOOKUPS; i++) {
+            blackhole.consume(palette.getId(this.states[i]));
+        }
+    }
+}
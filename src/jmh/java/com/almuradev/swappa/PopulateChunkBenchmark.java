@@ -0,0 +1,99 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.spongepowered.api.block.BlockTransaction;
+import org.spongepowered.api.event.world.chunk.PopulateChunkEvent;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Swappa#onPopulateChunkPost(PopulateChunkEvent.Post)} for a whole chunk. Run with the GC profiler (the default for
+ * the jmh task) to see the allocation rate per chunk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PopulateChunkBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int rules;
+
+    @Param({"1", "8", "32"})
+    public int populators;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int transactions;
+
+    @Param({"false", "true"})
+    public boolean weighted;
+
+    private Swappa swappa;
+    private Map<PopulatorType, List<BlockTransaction>> chunk;
+    private PopulateChunkEvent.Post event;
+
+    @Setup
+    public void setup() {
+        final Workload workload = new Workload(this.rules, this.populators, this.weighted);
+        this.swappa = workload.install();
+        this.chunk = workload.chunk(this.transactions);
+        this.event = Stubs.populateChunkPost(this.chunk, Workload.SEED);
+    }
+
+    /**
+     * Undoes the previous invocation's replacements so every invocation sees the chunk as the populators left it.
+     */
+    @Setup(Level.Invocation)
+    public void reset() {
+        for (List<BlockTransaction> transactions : this.chunk.values()) {
+            for (BlockTransaction transaction : transactions) {
+                transaction.setCustomReplacement(transaction.getDefaultReplacement());
+            }
+        }
+    }
+
+    @Benchmark
+    public void populateChunk() {
+        this.swappa.onPopulateChunkPost(this.event);
+    }
+}
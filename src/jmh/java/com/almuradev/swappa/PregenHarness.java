@@ -0,0 +1,222 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Drives a {@link Pregenerator} with a stand-in generator and a simulated clock, without a server.
+ *
+ * <p>Requests complete after a random number of ticks and every chunk that completes costs the tick it completes in, so a busy tick runs
+ * long. For a stretch of the run the ticks lag on top of that. The harness checks that no more requests are in flight than allowed, that
+ * no request starts while the TPS is below the minimum and the pace halves instead, that the spiral requests every chunk of the square
+ * exactly once, and that a walk saved halfway and resumed ends with the same counts as the uninterrupted one. It exits with 1 if a check
+ * fails.</p>
+ *
+ * <p>Usage: {@code gradle pregenHarness -PpregenHarness.args="[radius] [max in flight] [max latency ticks]"}</p>
+ */
+public final class PregenHarness {
+
+    private static final long MILLIS = 1000000;
+    private static final long CHUNK_NANOS = 4 * MILLIS, LISTENER_NANOS = MILLIS, BUDGET_NANOS = 20 * MILLIS, LAG_NANOS = 100 * MILLIS;
+    private static final double MIN_TPS = 18;
+    private static final int LAG_START = 150, LAG_END = 200;
+    // Every 97th chunk fails, decided by position so a resumed walk fails the same ones
+    private static final int FAIL_EVERY = 97;
+
+    private final UUID worldUniqueId = UUID.randomUUID();
+    private final int radius, maxInFlight, maxLatency;
+    private final List<String> problems = new ArrayList<>();
+    private final Random random = new Random(0);
+
+    private PregenHarness(int radius, int maxInFlight, int maxLatency) {
+        this.radius = radius;
+        this.maxInFlight = maxInFlight;
+        this.maxLatency = maxLatency;
+    }
+
+    public static void main(String[] args) {
+        final PregenHarness harness = new PregenHarness(args.length > 0 ? Integer.parseInt(args[0]) : 20, args.length > 1 ? Integer
+                .parseInt(args[1]) : 8, args.length > 2 ? Integer.parseInt(args[2]) : 5);
+        harness.run();
+        for (String problem : harness.problems) {
+            System.out.println("FAILED: " + problem);
+        }
+        System.out.println(harness.problems.isEmpty() ? "All checks passed." : harness.problems.size() + " checks failed.");
+        System.exit(harness.problems.isEmpty() ? 0 : 1);
+    }
+
+    private void run() {
+        final long total = (2L * this.radius + 1) * (2L * this.radius + 1);
+
+        final FakeGenerator generator = new FakeGenerator();
+        final Pregenerator pregenerator = new Pregenerator(generator, this.worldUniqueId, "world", 0, 0, this.radius, this.maxInFlight,
+                BUDGET_NANOS, MIN_TPS);
+        final ConfigurationNode saved = SimpleConfigurationNode.root();
+        final Run uninterrupted = drive(pregenerator, generator, total / 2, saved);
+        System.out.println("Uninterrupted: " + uninterrupted + ", " + pregenerator);
+
+        check(generator.requested.size() == total, "the spiral requested " + generator.requested.size() + " of " + total + " chunks");
+        for (int x = -this.radius; x <= this.radius; x++) {
+            for (int z = -this.radius; z <= this.radius; z++) {
+                check(generator.requested.contains(key(x, z)), "chunk " + x + ", " + z + " was never requested");
+            }
+        }
+        check(pregenerator.getGenerated() + pregenerator.getFailed() == total, "the walk counted " + (pregenerator.getGenerated()
+                + pregenerator.getFailed()) + " of " + total + " chunks");
+        // Small walks are done before the pace builds up or the lag starts
+        if (uninterrupted.ticks >= LAG_END) {
+            check(uninterrupted.peakInFlight == this.maxInFlight, "the walk peaked at " + uninterrupted.peakInFlight + " of "
+                    + this.maxInFlight + " requests in flight");
+            check(uninterrupted.backoffTicks > 0, "the lag never cut the pace back");
+        }
+
+        final FakeGenerator resumedGenerator = new FakeGenerator();
+        final Pregenerator resumed = Pregenerator.resume(saved, resumedGenerator, this.worldUniqueId, this.maxInFlight, BUDGET_NANOS, MIN_TPS);
+        final Run rest = drive(resumed, resumedGenerator, -1, null);
+        System.out.println("Resumed from position " + saved.getNode("next").getLong(0) + ": " + rest + ", " + resumed);
+        check(resumed.getGenerated() == pregenerator.getGenerated() && resumed.getFailed() == pregenerator.getFailed(), "the resumed walk "
+                + "counted " + resumed.getGenerated() + " generated and " + resumed.getFailed() + " failed, the uninterrupted one "
+                + pregenerator.getGenerated() + " and " + pregenerator.getFailed());
+    }
+
+    private Run drive(Pregenerator pregenerator, FakeGenerator generator, long saveAt, ConfigurationNode saveTo) {
+        final Run run = new Run();
+        long now = 1000 * MILLIS;
+        int tick = 0;
+        boolean done = false;
+        while (!done) {
+            if (++tick > 1000000) {
+                check(false, "the walk did not finish within " + (tick - 1) + " ticks");
+                break;
+            }
+
+            final int completed = generator.complete(tick);
+            pregenerator.onGenerated(completed, completed * CHUNK_NANOS);
+            for (int i = 0; i < completed; i++) {
+                pregenerator.onPopulated(this.worldUniqueId, 0, LISTENER_NANOS);
+            }
+            now += Math.max(Pregenerator.TICK_NANOS, completed * (CHUNK_NANOS + LISTENER_NANOS)) + (tick >= LAG_START && tick < LAG_END
+                    ? LAG_NANOS : 0);
+
+            final int limit = pregenerator.getLimit(), requested = generator.requested.size();
+            generator.tick = tick;
+            done = pregenerator.tick(now);
+            final int started = generator.requested.size() - requested;
+            if (pregenerator.getTps() < MIN_TPS) {
+                run.backoffTicks++;
+                check(started == 0, "tick " + tick + " started " + started + " requests at " + pregenerator.getTps() + " TPS");
+                check(pregenerator.getLimit() == Math.max(1, limit / 2), "tick " + tick + " cut the pace from " + limit + " to "
+                        + pregenerator.getLimit());
+            }
+            check(pregenerator.getInFlight() <= this.maxInFlight && generator.waiting.size() <= this.maxInFlight, "tick " + tick + " had "
+                    + generator.waiting.size() + " requests in flight");
+            run.peakInFlight = Math.max(run.peakInFlight, generator.waiting.size());
+            run.ticks = tick;
+
+            if (saveTo != null && saveAt >= 0 && pregenerator.getGenerated() + pregenerator.getFailed() >= saveAt) {
+                pregenerator.write(saveTo);
+                saveAt = -1;
+            }
+        }
+        return run;
+    }
+
+    private void check(boolean condition, String problem) {
+        if (!condition && this.problems.size() < 20) {
+            this.problems.add(problem);
+        }
+    }
+
+    private static long key(int chunkX, int chunkZ) {
+        return (long) chunkX << 32 | chunkZ & 0xFFFFFFFFL;
+    }
+
+    private static final class Run {
+
+        int ticks, peakInFlight, backoffTicks;
+
+        @Override
+        public String toString() {
+            return this.ticks + " ticks, peak in flight [" + this.peakInFlight + "], backoff ticks [" + this.backoffTicks + "]";
+        }
+    }
+
+    /**
+     * Completes each request a random number of ticks after it was made.
+     */
+    private final class FakeGenerator implements Pregenerator.Generator {
+
+        final Set<Long> requested = new HashSet<>();
+        final List<Request> waiting = new ArrayList<>();
+        int tick;
+
+        @Override
+        public CompletableFuture<Boolean> generate(int chunkX, int chunkZ) {
+            check(Math.abs(chunkX) <= PregenHarness.this.radius && Math.abs(chunkZ) <= PregenHarness.this.radius, "chunk " + chunkX + ", "
+                    + chunkZ + " lies outside the radius");
+            check(this.requested.add(key(chunkX, chunkZ)), "chunk " + chunkX + ", " + chunkZ + " was requested twice");
+            final Request request = new Request(chunkX, chunkZ, this.tick + 1 + PregenHarness.this.random.nextInt(PregenHarness.this
+                    .maxLatency));
+            this.waiting.add(request);
+            return request.future;
+        }
+
+        int complete(int tick) {
+            int completed = 0;
+            for (Iterator<Request> iterator = this.waiting.iterator(); iterator.hasNext(); ) {
+                final Request request = iterator.next();
+                if (request.due <= tick) {
+                    iterator.remove();
+                    request.future.complete(Math.floorMod(request.chunkX * 31 + request.chunkZ, FAIL_EVERY) != 0);
+                    completed++;
+                }
+            }
+            return completed;
+        }
+    }
+
+    private static final class Request {
+
+        final int chunkX, chunkZ, due;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        Request(int chunkX, int chunkZ, int due) {
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            this.due = due;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.flowpowered.math.vector.Vector3i;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.yaml.YAMLConfigurationLoader;
+import org.spongepowered.api.CatalogType;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.block.BlockTransaction;
+import org.spongepowered.api.block.BlockType;
+import org.spongepowered.api.event.world.chunk.PopulateChunkEvent;
+import org.spongepowered.api.plugin.PluginContainer;
+import org.spongepowered.api.world.DimensionType;
+import org.spongepowered.api.world.World;
+import org.spongepowered.api.world.biome.BiomeType;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replays a trace recorded with /swappa capture through {@link Swappa#onPopulateChunkPost(PopulateChunkEvent.Post)} against the mapping
+ * files of a config directory, without a server.
+ *
+ * <p>The registry is rebuilt from the trace, so only the blocks, populators and biomes the server used while recording are known. Each
+ * pass replays every chunk once and reports chunks per second, per chunk latency percentiles and how much the listener allocated. The
+ * first pass warms up and is left out of the summary unless it is the only one. Allocation includes what the stubs allocate on behalf
+ * of the listener, such as the snapshots it replaces blocks with. The tick budget is not applied, deferred replacements need a running
+ * server.</p>
+ *
+ * <p>Usage: {@code gradle replay -Preplay.args="<trace> <config dir> [passes]"}</p>
+ */
+public final class ReplayHarness {
+
+    private final List<BlockType> blockTypes = new ArrayList<>();
+    private BlockState[] states = new BlockState[64];
+    private final List<PopulatorType> populators = new ArrayList<>();
+    private final List<BiomeType> biomes = new ArrayList<>();
+    private final List<World> worlds = new ArrayList<>();
+    private final List<Map<Long, BiomeType>> worldBiomes = new ArrayList<>();
+    private final Map<String, DimensionType> dimensionTypes = new LinkedHashMap<>();
+    private final List<TracedChunk> chunks = new ArrayList<>();
+    private final BlockState unknownState = Stubs.blockType(Swappa.PLUGIN_ID + ":unknown", 1).getDefaultState();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: <trace> <config dir> [passes]");
+            System.exit(1);
+        }
+
+        final ReplayHarness harness = new ReplayHarness();
+        PopulateTrace.read(Paths.get(args[0]), harness.new TraceVisitor());
+        final Swappa swappa = harness.install(Paths.get(args[1]));
+        final int passes = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        System.out.println("Replaying [" + harness.chunks.size() + "] chunks with [" + Metrics.getRules(PopulatorMappingsRegistry.getTable())
+                .size() + "] rules.");
+
+        final Metrics.LatencyHistogram summary = new Metrics.LatencyHistogram();
+        long summaryNanos = 0, summaryBytes = 0;
+        for (int pass = 1; pass <= passes; pass++) {
+            final Metrics.LatencyHistogram latency = new Metrics.LatencyHistogram();
+            final long[] totals = harness.replay(swappa, latency, pass > 1 || passes == 1 ? summary : null);
+            if (pass > 1 || passes == 1) {
+                summaryNanos += totals[0];
+                summaryBytes += totals[1];
+            }
+            System.out.println("Pass [" + pass + "] " + format(latency, totals[0], totals[1]) + ", replaced [" + totals[3] + "] of [" + totals[2]
+                    + "] transactions");
+        }
+        System.out.println("Summary " + format(summary, summaryNanos, summaryBytes));
+    }
+
+    private static String format(Metrics.LatencyHistogram latency, long nanos, long bytes) {
+        final long chunks = Math.max(latency.getCount(), 1);
+        return "chunks [" + latency.getCount() + "], [" + String.format("%.1f", latency.getCount() * 1e9 / Math.max(nanos, 1)) + "] chunks/s, mean ["
+                + latency.getMean() / 1000 + "us], p50 [" + latency.getPercentile(50) / 1000 + "us], p99 [" + latency.getPercentile(99) / 1000
+                + "us], max [" + latency.getMax() / 1000 + "us], allocated [" + bytes / chunks + "] bytes/chunk";
+    }
+
+    /**
+     * Registers the traced types, then compiles and publishes the mapping files like the plugin does at startup.
+     */
+    private Swappa install(Path configDir) throws IOException {
+        final Map<Class<?>, Map<String, ? extends CatalogType>> types = new HashMap<>();
+        final Map<String, BlockType> blockTypesById = new LinkedHashMap<>();
+        final Map<String, PopulatorType> populatorsById = new LinkedHashMap<>();
+        final Map<String, BiomeType> biomesById = new LinkedHashMap<>();
+        final Set<String> mods = new LinkedHashSet<>(Arrays.asList("minecraft", Swappa.PLUGIN_ID));
+        for (BlockType type : this.blockTypes) {
+            blockTypesById.put(type.getId(), type);
+            mods.add(type.getId().split(":")[0]);
+        }
+        for (PopulatorType type : this.populators) {
+            populatorsById.put(type.getId(), type);
+            mods.add(type.getId().split(":")[0]);
+        }
+        for (BiomeType biome : this.biomes) {
+            biomesById.put(biome.getId(), biome);
+        }
+        types.put(BlockType.class, blockTypesById);
+        types.put(PopulatorType.class, populatorsById);
+        types.put(BiomeType.class, biomesById);
+        types.put(DimensionType.class, this.dimensionTypes);
+
+        final Swappa swappa = new Swappa();
+        swappa.pluginManager = Stubs.pluginManager(mods.toArray(new String[mods.size()]));
+        swappa.registry = Stubs.gameRegistry(types);
+        swappa.palette = BlockStatePalette.build(this.blockTypes);
+
+        final ConfigurationNode blockStatesRootNode = YAMLConfigurationLoader.builder().setFile(configDir.resolve(Swappa.BLOCKSTATES_FILE)
+                .toFile()).build().load();
+        final ConfigurationNode populatorsRootNode = YAMLConfigurationLoader.builder().setFile(configDir.resolve(Swappa.POPULATORS_FILE)
+                .toFile()).build().load();
+        final List<MappingsShard> shards = MappingsShard.loadAll(configDir.resolve(MappingsShard.DIRECTORY), swappa.pluginManager);
+        final Map<PluginContainer, Map<String, BlockStatePattern>> mappings = BlockStateMappingsRegistry.compile(
+                blockStatesRootNode, shards);
+        BlockStateMappingsRegistry.publish(mappings);
+        PopulatorMappingsRegistry.setTable(PopulatorMappingsRegistry.compile(populatorsRootNode, shards, mappings, swappa.palette));
+        swappa.metrics.setEnabled(populatorsRootNode.getNode("general", "metrics", "enabled").getBoolean(true));
+        return swappa;
+    }
+
+    /**
+     * Replays every chunk once.
+     *
+     * @return The nanoseconds and bytes the listener took, the transactions seen and how many of them were replaced
+     */
+    private long[] replay(Swappa swappa, Metrics.LatencyHistogram latency, Metrics.LatencyHistogram summary) {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final long[] totals = new long[4];
+        for (TracedChunk chunk : this.chunks) {
+            final PopulateChunkEvent.Post event = chunk.toEvent();
+
+            final long allocated = threads.getThreadAllocatedBytes(threadId);
+            final long start = System.nanoTime();
+            swappa.onPopulateChunkPost(event);
+            final long elapsed = System.nanoTime() - start;
+            totals[1] += threads.getThreadAllocatedBytes(threadId) - allocated;
+
+            totals[0] += elapsed;
+            latency.record(elapsed);
+            if (summary != null) {
+                summary.record(elapsed);
+            }
+            for (List<BlockTransaction> transactions : event.getPopulatedTransactions().values()) {
+                totals[2] += transactions.size();
+                for (BlockTransaction transaction : transactions) {
+                    if (transaction.getCustomReplacement().isPresent()) {
+                        totals[3]++;
+                    }
+                }
+            }
+        }
+
+        return totals;
+    }
+
+    private final class TracedChunk {
+
+        final World world;
+        final int chunkX, chunkZ;
+        final int[] populators;
+        final long[][] positions;
+        final int[][] originals, populated;
+
+        TracedChunk(World world, int chunkX, int chunkZ, int[] populators, long[][] positions, int[][] originals, int[][] populated) {
+            this.world = world;
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            this.populators = populators;
+            this.positions = positions;
+            this.originals = originals;
+            this.populated = populated;
+        }
+
+        PopulateChunkEvent.Post toEvent() {
+            final Map<PopulatorType, List<BlockTransaction>> transactions = new LinkedHashMap<>();
+            for (int i = 0; i < this.populators.length; i++) {
+                final List<BlockTransaction> populatorTransactions = new ArrayList<>(this.positions[i].length);
+                for (int j = 0; j < this.positions[i].length; j++) {
+                    final long position = this.positions[i][j];
+                    populatorTransactions.add(Stubs.transaction(state(this.originals[i][j]), state(this.populated[i][j]), new Vector3i(
+                            ReplacementJournal.unpackX(position), ReplacementJournal.unpackY(position), ReplacementJournal.unpackZ(position))));
+                }
+                transactions.put(ReplayHarness.this.populators.get(this.populators[i]), populatorTransactions);
+            }
+
+            return Stubs.populateChunkPost(transactions, this.world, this.chunkX, this.chunkZ);
+        }
+
+        private BlockState state(int id) {
+            return id < 0 ? ReplayHarness.this.unknownState : ReplayHarness.this.states[id];
+        }
+    }
+
+    private final class TraceVisitor implements PopulateTrace.Visitor {
+
+        private final List<String[]> traitNames = new ArrayList<>();
+        private final List<String[][]> traitValues = new ArrayList<>();
+
+        @Override
+        public void blockType(int id, String blockId, String[] traits, String[][] values) {
+            ReplayHarness.this.blockTypes.add(Stubs.blockType(blockId, traits, values));
+            this.traitNames.add(traits);
+            this.traitValues.add(values);
+        }
+
+        @Override
+        public void state(int id, int blockType, int[] values) {
+            final String[] names = this.traitNames.get(blockType);
+            BlockState state = ReplayHarness.this.blockTypes.get(blockType).getDefaultState();
+            for (int i = 0; i < values.length; i++) {
+                state = state.withTrait(state.getTrait(names[i]).get(), this.traitValues.get(blockType)[i][values[i]]).get();
+            }
+            if (id >= ReplayHarness.this.states.length) {
+                ReplayHarness.this.states = Arrays.copyOf(ReplayHarness.this.states, Math.max(id + 1, ReplayHarness.this.states.length * 2));
+            }
+            ReplayHarness.this.states[id] = state;
+        }
+
+        @Override
+        public void populator(int id, String populatorId) {
+            ReplayHarness.this.populators.add(Stubs.populatorType(populatorId));
+        }
+
+        @Override
+        public void biome(int id, String biomeId) {
+            ReplayHarness.this.biomes.add(Stubs.catalogType(BiomeType.class, biomeId));
+        }
+
+        @Override
+        public void world(int id, String name, String dimensionTypeId, long seed) {
+            final DimensionType dimensionType = ReplayHarness.this.dimensionTypes.computeIfAbsent(dimensionTypeId, k -> Stubs.catalogType(
+                    DimensionType.class, dimensionTypeId));
+            final Map<Long, BiomeType> columns = new HashMap<>();
+            ReplayHarness.this.worldBiomes.add(columns);
+            ReplayHarness.this.worlds.add(Stubs.world(name, dimensionType, seed, columns));
+        }
+
+        @Override
+        public void chunk(int world, int chunkX, int chunkZ, long[] columns, int[] columnBiomes, int[] populators, long[][] positions,
+                int[][] originals, int[][] populated) {
+            final Map<Long, BiomeType> biomes = ReplayHarness.this.worldBiomes.get(world);
+            for (int i = 0; i < columns.length; i++) {
+                biomes.put(columns[i], ReplayHarness.this.biomes.get(columnBiomes[i]));
+            }
+            ReplayHarness.this.chunks.add(new TracedChunk(ReplayHarness.this.worlds.get(world), chunkX, chunkZ, populators, positions,
+                    originals, populated));
+        }
+    }
+}
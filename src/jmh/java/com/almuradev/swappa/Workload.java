@@ -0,0 +1,128 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.flowpowered.math.vector.Vector3i;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.block.BlockTransaction;
+import org.spongepowered.api.block.BlockType;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * A synthetic, seeded registry and rule set shared by the benchmarks.
+ *
+ * <p>The palette is sized to four times the rule count so roughly a quarter of random states hit a rule. A tenth of the rules are
+ * "all" rules, the rest are spread evenly across the populators. Weighted workloads give every rule three weighted replacements instead
+ * of a single one.</p>
+ */
+final class Workload {
+
+    static final int VARIANTS_PER_TYPE = 16;
+    static final long SEED = 0x5A7FA;
+
+    final List<BlockType> blockTypes = new ArrayList<>();
+    final PopulatorType[] populatorTypes;
+    final BlockStatePalette palette;
+    final ReplacementTable table;
+    private final SplittableRandom random = new SplittableRandom(SEED);
+
+    Workload(int rules, int populators) {
+        this(rules, populators, false);
+    }
+
+    Workload(int rules, int populators, boolean weighted) {
+        final int types = Math.max(64, rules * 4 / VARIANTS_PER_TYPE);
+        for (int i = 0; i < types; i++) {
+            this.blockTypes.add(Stubs.blockType("bench:block_" + i, VARIANTS_PER_TYPE));
+        }
+        this.palette = BlockStatePalette.build(this.blockTypes);
+
+        this.populatorTypes = new PopulatorType[populators];
+        for (int i = 0; i < populators; i++) {
+            this.populatorTypes[i] = Stubs.populatorType("bench:populator_" + i);
+        }
+
+        final List<PopulatorMappingsRegistry.ReplacementEntry> allEntries = new ArrayList<>();
+        final Map<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> populatorEntries = new LinkedHashMap<>();
+        for (int i = 0; i < rules; i++) {
+            final BlockStatePattern original = BlockStatePattern.of(randomState(), Collections.emptySet());
+            final String origin = i % 10 == 0 ? PopulatorMappingsRegistry.ReplacementEntry.ORIGIN_ALL : this.populatorTypes[i % populators].getId();
+            final PopulatorMappingsRegistry.ReplacementEntry entry = weighted ? new PopulatorMappingsRegistry.ReplacementEntry(origin, original,
+                    new WeightedReplacement(new BlockState[] {randomState(), randomState(), randomState()}, new double[] {90, 7, 3}))
+                    : new PopulatorMappingsRegistry.ReplacementEntry(origin, original, randomState());
+            if (i % 10 == 0) {
+                allEntries.add(entry);
+            } else {
+                populatorEntries.computeIfAbsent(this.populatorTypes[i % populators], k -> new ArrayList<>()).add(entry);
+            }
+        }
+        this.table = ReplacementTable.compile(this.palette, populatorEntries, allEntries, Collections.emptyList());
+    }
+
+    BlockState randomState() {
+        return this.palette.get(this.random.nextInt(this.palette.size()));
+    }
+
+    PopulatorType randomPopulatorType() {
+        return this.populatorTypes[this.random.nextInt(this.populatorTypes.length)];
+    }
+
+    /**
+     * Creates the transactions of a single chunk, spread evenly across the populators.
+     *
+     * @param transactions The total amount of transactions
+     * @return The transactions keyed by populator
+     */
+    Map<PopulatorType, List<BlockTransaction>> chunk(int transactions) {
+        final Map<PopulatorType, List<BlockTransaction>> chunk = new LinkedHashMap<>();
+        for (int i = 0; i < transactions; i++) {
+            final PopulatorType type = this.populatorTypes[i % this.populatorTypes.length];
+            chunk.computeIfAbsent(type, k -> new ArrayList<>()).add(Stubs.transaction(randomState(), randomState(), new Vector3i(i & 15,
+                    i >> 8 & 255, i >> 4 & 15)));
+        }
+
+        return chunk;
+    }
+
+    /**
+     * Makes a {@link Swappa} instance current and publishes this workload's table, so the listener can be called directly.
+     *
+     * @return The plugin instance
+     */
+    Swappa install() {
+        final Swappa swappa = new Swappa();
+        swappa.pluginManager = Stubs.pluginManager("minecraft");
+        swappa.palette = this.palette;
+        PopulatorMappingsRegistry.setTable(this.table);
+        return swappa;
+    }
+}
@@ -33,28 +33,30 @@
 import org.spongepowered.api.block.trait.BlockTrait;
 import org.spongepowered.api.plugin.PluginContainer;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 public final class BlockStateMappingsRegistry {
 
     private static final Logger logger = LoggerFactory.getLogger(Swappa.PLUGIN_ID + "-blockstates");
-    private static final Map<PluginContainer, Map<String, BlockState>> REGISTRY = new HashMap<>();
     private static final String SECTION_MAPPINGS = "mappings";
+    private static volatile Map<PluginContainer, Map<String, BlockStatePattern>> registry = ImmutableMap.of();
+    private static Map<String, CompiledSection<Map<String, BlockStatePattern>>> sections = new HashMap<>();
+    private static Map<PluginContainer, Map<String, BlockStatePattern>> compiled = ImmutableMap.of();
 
-    public static Optional<BlockState> put(PluginContainer container, String mappedName, BlockState state) {
-        Map<String, BlockState> mappedContainerBlockStates = REGISTRY.get(container);
-        if (mappedContainerBlockStates == null) {
-            mappedContainerBlockStates = new HashMap<>();
-            REGISTRY.put(container, mappedContainerBlockStates);
-        }
-
-        return Optional.ofNullable(mappedContainerBlockStates.put(mappedName, state));
+    public static Optional<BlockStatePattern> get(PluginContainer container, String mappedName) {
+        return get(registry, container, mappedName);
     }
 
-    public static Optional<BlockState> get(PluginContainer container, String mappedName) {
-        final Map<String, BlockState> mappedContainerBlockStates = REGISTRY.get(container);
+    static Optional<BlockStatePattern> get(Map<PluginContainer, Map<String, BlockStatePattern>> mappings, PluginContainer container,
+            String mappedName) {
+        final Map<String, BlockStatePattern> mappedContainerBlockStates = mappings.get(container);
 
         if (mappedContainerBlockStates != null) {
             return Optional.ofNullable(mappedContainerBlockStates.get(mappedName));
@@ -63,73 +65,152 @@ public static Optional<BlockState> get(PluginContainer container, String mappedN
         return Optional.empty();
     }
 
-    public static Map<PluginContainer, Map<String, BlockState>> getAll() {
-        final ImmutableMap.Builder<PluginContainer, Map<String, BlockState>> builder = ImmutableMap.builder();
-        for (Map.Entry<PluginContainer, Map<String, BlockState>> entry : REGISTRY.entrySet()) {
-            final ImmutableMap<String, BlockState> containerBuilder = ImmutableMap.copyOf(entry.getValue());
-            builder.put(entry.getKey(), containerBuilder);
-        }
+    public static Map<PluginContainer, Map<String, BlockStatePattern>> getAll() {
+        return registry;
+    }
 
-        return builder.build();
+    static void publish(Map<PluginContainer, Map<String, BlockStatePattern>> mappings) {
+        registry = mappings;
     }
 
-    public static void load() {
-        REGISTRY.clear();
+    /**
+     * Compiles the mappings without publishing them. Mod sections are compiled in parallel and merged in a fixed order, blockstates.yml
+     * first and then mappings.d by file name, where the first mapping of a name wins. Sections whose raw values are unchanged since the
+     * previous compile are reused, and if nothing changed at all the previous result is returned as is.
+     *
+     * @param rootNode The root of blockstates.yml
+     * @param shards The files of mappings.d
+     * @return The compiled mappings
+     */
+    static Map<PluginContainer, Map<String, BlockStatePattern>> compile(ConfigurationNode rootNode, List<MappingsShard> shards) {
+        return compile(rootNode, shards, BlockStateMappingsRegistry.logger);
+    }
 
-        for (Map.Entry<Object, ? extends ConfigurationNode> modEntry : Swappa.instance.blockStatesRootNode
-                .getNode(BlockStateMappingsRegistry.SECTION_MAPPINGS)
+    /**
+     * Compiles the mappings like {@link #compile(ConfigurationNode, List)}, reporting the problems of the files to the given logger.
+     *
+     * @param rootNode The root of blockstates.yml
+     * @param shards The files of mappings.d
+     * @param logger The logger the problems of the files are reported to
+     * @return The compiled mappings
+     */
+    static synchronized Map<PluginContainer, Map<String, BlockStatePattern>> compile(ConfigurationNode rootNode, List<MappingsShard> shards,
+            Logger logger) {
+        final List<ModSection> modSections = new ArrayList<>();
+        for (Map.Entry<Object, ? extends ConfigurationNode> modEntry : rootNode.getNode(BlockStateMappingsRegistry.SECTION_MAPPINGS)
                 .getChildrenMap().entrySet()) {
             final String modId = (String) modEntry.getKey();
             final Optional<PluginContainer> optPluginContainer = Swappa.instance.pluginManager.getPlugin(modId);
             if (!optPluginContainer.isPresent()) {
-                BlockStateMappingsRegistry.logger.warn("Potential Mod [" + modId + "] is not loaded (did you forget it in /mods ?)");
+                logger.warn("Potential Mod [" + modId + "] is not loaded (did you forget it in /mods ?)");
+                continue;
+            }
+
+            modSections.add(new ModSection(Swappa.BLOCKSTATES_FILE, optPluginContainer.get(), modEntry.getValue()));
+        }
+        for (MappingsShard shard : shards) {
+            if (shard.blockStates.node.hasMapChildren()) {
+                modSections.add(shard.blockStates);
+            }
+        }
+
+        final List<CompiledSection<Map<String, BlockStatePattern>>> compiledSections = ModSection.compileInParallel(modSections, modSection -> {
+            final Object source = modSection.node.getValue();
+            final CompiledSection<Map<String, BlockStatePattern>> section = sections.get(modSection.getKey());
+            return section != null && section.isCurrent(source, null) ? section : new CompiledSection<>(source, null, compileMod(
+                    modSection.container, modSection.node, logger));
+        }, logger);
+
+        final Map<String, CompiledSection<Map<String, BlockStatePattern>>> nextSections = new HashMap<>();
+        final Map<PluginContainer, Map<String, BlockStatePattern>> merged = new LinkedHashMap<>();
+        boolean changed = false;
+        for (int i = 0; i < modSections.size(); i++) {
+            final ModSection modSection = modSections.get(i);
+            final CompiledSection<Map<String, BlockStatePattern>> section = compiledSections.get(i);
+            if (section == null) {
                 continue;
             }
 
-            for (Map.Entry<Object, ? extends ConfigurationNode> blockTypeEntry : modEntry.getValue().getChildrenMap().entrySet()) {
-                final String blockTypeId = (String) blockTypeEntry.getKey();
-                final Optional<BlockType> optBlockType = Swappa.instance.registry.getType(BlockType.class, modId + ":" + blockTypeId);
-                if (!optBlockType.isPresent()) {
-                    BlockStateMappingsRegistry.logger.warn("Potential Block [" + blockTypeId + "] for Mod [" + modId + "] is not a valid Block!");
-                    continue;
+            changed |= section != sections.get(modSection.getKey());
+            nextSections.put(modSection.getKey(), section);
+            for (Map.Entry<String, BlockStatePattern> mappedEntry : section.compiled.entrySet()) {
+                if (merged.computeIfAbsent(modSection.container, k -> new LinkedHashMap<>()).putIfAbsent(mappedEntry.getKey(), mappedEntry
+                        .getValue()) != null) {
+                    logger.warn("Potential duplicate Mapping [" + mappedEntry.getKey() + "] for Mod [" + modSection
+                            .container.getId() + "] in [" + modSection.origin + "] is ignored, it is already mapped.");
                 }
+            }
+        }
 
-                for (Map.Entry<Object, ? extends ConfigurationNode> mappedEntry : blockTypeEntry.getValue().getChildrenMap().entrySet()) {
-                    final String mappedName = (String) mappedEntry.getKey();
-                    final ConfigurationNode mappedNode = mappedEntry.getValue();
-
-                    BlockState blockState = optBlockType.get().getDefaultState();
-                    for (Map.Entry<Object, ? extends ConfigurationNode> valueEntry : mappedNode.getChildrenMap().entrySet()) {
-                        BlockTrait<?> matchedTrait = null;
-                        for (BlockTrait<?> trait : blockState.getType().getTraits()) {
-                            if (trait.getName().equals(valueEntry.getKey())) {
-                                matchedTrait = trait;
-                                break;
-                            }
-                        }
+        if (changed || !nextSections.keySet().equals(sections.keySet())) {
+            final ImmutableMap.Builder<PluginContainer, Map<String, BlockStatePattern>> builder = ImmutableMap.builder();
+            for (Map.Entry<PluginContainer, Map<String, BlockStatePattern>> entry : merged.entrySet()) {
+                if (!entry.getValue().isEmpty()) {
+                    builder.put(entry.getKey(), ImmutableMap.copyOf(entry.getValue()));
+                }
+            }
+            compiled = builder.build();
+        }
+        sections = nextSections;
 
-                        if (matchedTrait == null) {
-                            BlockStateMappingsRegistry.logger
-                                    .warn("Potential Trait [" + valueEntry.getKey() + "] in [" + mappedName + "] is not valid for "
-                                            + "Block [" + blockState.getType().getName() + "] in Mod [" + optPluginContainer.get().getId() + "]!");
-                            continue;
-                        }
+        return compiled;
+    }
+
+    private static Map<String, BlockStatePattern> compileMod(PluginContainer container, ConfigurationNode modNode, Logger logger) {
+        final String modId = container.getId();
+        final Map<String, BlockStatePattern> mappings = new LinkedHashMap<>();
+
+        for (Map.Entry<Object, ? extends ConfigurationNode> blockTypeEntry : modNode.getChildrenMap().entrySet()) {
+            final String blockTypeId = (String) blockTypeEntry.getKey();
+            final Optional<BlockType> optBlockType = Swappa.instance.registry.getType(BlockType.class, modId + ":" + blockTypeId);
+            if (!optBlockType.isPresent()) {
+                logger.warn("Potential Block [" + blockTypeId + "] for Mod [" + modId + "] is not a valid Block!");
+                continue;
+            }
 
-                        final Optional<BlockState> optCombinedBlockState = blockState.withTrait(matchedTrait, valueEntry.getValue().getValue().
-                                toString());
-                        if (!optCombinedBlockState.isPresent()) {
-                            BlockStateMappingsRegistry.logger.warn("Potential Value [" + valueEntry.getValue().getValue() + "] for provided Trait ["
-                                    + matchedTrait.getName() + "] in [" + mappedName + "] is not valid for Block [" + blockState.getType().getName()
-                                    + "] in Mod [" + optPluginContainer.get().getId() + "].");
-                            continue;
+            for (Map.Entry<Object, ? extends ConfigurationNode> mappedEntry : blockTypeEntry.getValue().getChildrenMap().entrySet()) {
+                final String mappedName = (String) mappedEntry.getKey();
+                final ConfigurationNode mappedNode = mappedEntry.getValue();
+
+                BlockState blockState = optBlockType.get().getDefaultState();
+                final Set<String> wildcardTraits = new HashSet<>();
+                for (Map.Entry<Object, ? extends ConfigurationNode> valueEntry : mappedNode.getChildrenMap().entrySet()) {
+                    BlockTrait<?> matchedTrait = null;
+                    for (BlockTrait<?> trait : blockState.getType().getTraits()) {
+                        if (trait.getName().equals(valueEntry.getKey())) {
+                            matchedTrait = trait;
+                            break;
                         }
+                    }
+
+                    if (matchedTrait == null) {
+                        logger
+                                .warn("Potential Trait [" + valueEntry.getKey() + "] in [" + mappedName + "] is not valid for "
+                                        + "Block [" + blockState.getType().getName() + "] in Mod [" + modId + "]!");
+                        continue;
+                    }
 
-                        blockState = optCombinedBlockState.get();
+                    final String value = valueEntry.getValue().getValue().toString();
+                    if (BlockStatePattern.WILDCARD.equals(value)) {
+                        wildcardTraits.add(matchedTrait.getName());
+                        continue;
                     }
 
-                    put(optPluginContainer.get(), mappedName, blockState);
+                    final Optional<BlockState> optCombinedBlockState = blockState.withTrait(matchedTrait, value);
+                    if (!optCombinedBlockState.isPresent()) {
+                        logger.warn("Potential Value [" + valueEntry.getValue().getValue() + "] for provided Trait ["
+                                + matchedTrait.getName() + "] in [" + mappedName + "] is not valid for Block [" + blockState.getType().getName()
+                                + "] in Mod [" + modId + "].");
+                        continue;
+                    }
+
+                    blockState = optCombinedBlockState.get();
                 }
+
+                mappings.put(mappedName, BlockStatePattern.of(blockState, wildcardTraits));
             }
         }
+
+        return ImmutableMap.copyOf(mappings);
     }
 }
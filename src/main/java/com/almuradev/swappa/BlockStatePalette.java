@@ -0,0 +1,260 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.block.BlockType;
+import org.spongepowered.api.block.trait.BlockTrait;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Assigns every registered {@link BlockState} a dense int id.
+ *
+ * <p>The Sponge API does not expose a numeric state id so the states are enumerated once, as every permutation of each
+ * {@link BlockType}'s trait values, and looked up by identity through an open addressing table. Block states are canonical instances
+ * so the identity probe is the only hashing that happens per lookup. An equality based map is kept as a fallback for implementations
+ * that hand out copies.</p>
+ */
+public final class BlockStatePalette {
+
+    public static final int UNKNOWN_ID = -1;
+    public static final BlockStatePalette EMPTY = new BlockStatePalette(new ArrayList<>(), new ArrayList<>(), new HashMap<>());
+
+    private final BlockState[] states;
+    private final Object[][] traitValues;
+    private final Map<BlockType, TypeRange> ranges;
+    private final Map<BlockState, Integer> fallback;
+    private final Object[] indexKeys;
+    private final int[] indexIds;
+    private final int indexMask;
+
+    private BlockStatePalette(List<BlockState> states, List<Object[]> traitValues, Map<BlockType, TypeRange> ranges) {
+        this.states = states.toArray(new BlockState[states.size()]);
+        this.traitValues = traitValues.toArray(new Object[traitValues.size()][]);
+        this.ranges = ranges;
+        this.fallback = new HashMap<>(this.states.length * 2);
+
+        int capacity = 16;
+        while (capacity < this.states.length * 2) {
+            capacity <<= 1;
+        }
+        this.indexKeys = new Object[capacity];
+        this.indexIds = new int[capacity];
+        this.indexMask = capacity - 1;
+
+        for (int id = 0; id < this.states.length; id++) {
+            final BlockState state = this.states[id];
+            this.fallback.put(state, id);
+
+            int slot = mix(System.identityHashCode(state)) & this.indexMask;
+            while (this.indexKeys[slot] != null) {
+                slot = (slot + 1) & this.indexMask;
+            }
+            this.indexKeys[slot] = state;
+            this.indexIds[slot] = id;
+        }
+    }
+
+    /**
+     * Enumerates every state of the provided {@link BlockType}s.
+     *
+     * @param blockTypes The block types
+     * @return The palette
+     */
+    public static BlockStatePalette build(Collection<BlockType> blockTypes) {
+        final List<BlockState> states = new ArrayList<>();
+        final List<Object[]> traitValues = new ArrayList<>();
+        final Map<BlockState, Boolean> seen = new HashMap<>();
+        final Map<BlockType, TypeRange> ranges = new HashMap<>();
+
+        for (BlockType blockType : blockTypes) {
+            final BlockTrait<?>[] traits = blockType.getTraits().toArray(new BlockTrait<?>[0]);
+            final Object[][] possibleValues = new Object[traits.length][];
+            for (int i = 0; i < traits.length; i++) {
+                possibleValues[i] = traits[i].getPossibleValues().toArray();
+            }
+
+            final int first = states.size();
+            final int[] cursor = new int[traits.length];
+            do {
+                final Object[] values = new Object[traits.length];
+                BlockState state = blockType.getDefaultState();
+                for (int i = 0; i < traits.length && state != null; i++) {
+                    values[i] = possibleValues[i][cursor[i]];
+                    final Optional<BlockState> optState = state.withTrait(traits[i], values[i]);
+                    state = optState.isPresent() ? optState.get() : null;
+                }
+
+                if (state != null && seen.put(state, Boolean.TRUE) == null) {
+                    states.add(state);
+                    traitValues.add(values);
+                }
+            } while (advance(cursor, possibleValues));
+
+            ranges.put(blockType, new TypeRange(traits, first, states.size()));
+        }
+
+        return new BlockStatePalette(states, traitValues, ranges);
+    }
+
+    private static boolean advance(int[] cursor, Object[][] possibleValues) {
+        for (int i = cursor.length - 1; i >= 0; i--) {
+            if (++cursor[i] < possibleValues[i].length) {
+                return true;
+            }
+            cursor[i] = 0;
+        }
+
+        return false;
+    }
+
+    private static int mix(int hash) {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public int size() {
+        return this.states.length;
+    }
+
+    public BlockState get(int id) {
+        return this.states[id];
+    }
+
+    /**
+     * Gets the dense id of the provided {@link BlockState}.
+     *
+     * @param state The state
+     * @return The id or {@link #UNKNOWN_ID} if the state was not registered when the palette was built
+     */
+    public int getId(BlockState state) {
+        int slot = mix(System.identityHashCode(state)) & this.indexMask;
+        Object key;
+        while ((key = this.indexKeys[slot]) != null) {
+            if (key == state) {
+                return this.indexIds[slot];
+            }
+            slot = (slot + 1) & this.indexMask;
+        }
+
+        final Integer id = this.fallback.get(state);
+        return id == null ? UNKNOWN_ID : id;
+    }
+
+    /**
+     * Gets the ids of every state matched by the provided {@link BlockStatePattern}.
+     *
+     * @param pattern The pattern
+     * @return The matching ids, in ascending order
+     */
+    public int[] getMatchingIds(BlockStatePattern pattern) {
+        final TypeRange range = this.ranges.get(pattern.getType());
+        final int patternId = getId(pattern.state);
+        if (range == null || patternId == UNKNOWN_ID) {
+            return new int[0];
+        }
+
+        final Object[] patternValues = this.traitValues[patternId];
+        final int[] matches = new int[range.end - range.first];
+        int count = 0;
+        for (int id = range.first; id < range.end; id++) {
+            final Object[] values = this.traitValues[id];
+            boolean matched = true;
+            for (int i = 0; i < range.traits.length; i++) {
+                if (!pattern.isWildcard(range.traits[i]) && !patternValues[i].equals(values[i])) {
+                    matched = false;
+                    break;
+                }
+            }
+
+            if (matched) {
+                matches[count++] = id;
+            }
+        }
+
+        return Arrays.copyOf(matches, count);
+    }
+
+    /**
+     * Gets the traits of the provided {@link BlockType}, in the order {@link #getTraitValues(int)} uses.
+     *
+     * @param type The block type
+     * @return The traits or null if the type is not part of this palette
+     */
+    public BlockTrait<?>[] getTraits(BlockType type) {
+        final TypeRange range = this.ranges.get(type);
+        return range == null ? null : range.traits;
+    }
+
+    /**
+     * Gets the first id of the provided {@link BlockType}. The type's states occupy the ids up to {@link #getEndId(BlockType)}.
+     *
+     * @param type The block type
+     * @return The first id or {@link #UNKNOWN_ID} if the type is not part of this palette
+     */
+    public int getFirstId(BlockType type) {
+        final TypeRange range = this.ranges.get(type);
+        return range == null ? UNKNOWN_ID : range.first;
+    }
+
+    public int getEndId(BlockType type) {
+        final TypeRange range = this.ranges.get(type);
+        return range == null ? UNKNOWN_ID : range.end;
+    }
+
+    /**
+     * Gets the trait values of the state with the provided id. The returned array is shared and must not be modified.
+     *
+     * @param id The id
+     * @return The values, ordered as {@link #getTraits(BlockType)}
+     */
+    Object[] getTraitValues(int id) {
+        return this.traitValues[id];
+    }
+
+    public Collection<BlockType> getBlockTypes() {
+        return Collections.unmodifiableCollection(this.ranges.keySet());
+    }
+
+    private static final class TypeRange {
+
+        final BlockTrait<?>[] traits;
+        final int first, end;
+
+        TypeRange(BlockTrait<?>[] traits, int first, int end) {
+            this.traits = traits;
+            this.first = first;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.google.common.collect.ImmutableSet;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.block.BlockType;
+import org.spongepowered.api.block.trait.BlockTrait;
+
+import java.util.Set;
+
+/**
+ * A {@link BlockState} to match against where some (or all) of its traits may be wildcards.
+ *
+ * <p>Traits that are not wildcards must have exactly the value they have in {@link #state}. A bare block id such as "minecraft:stone"
+ * resolves to a pattern where every trait is a wildcard, a mapping from blockstates.yml only wildcards the traits set to "*".</p>
+ */
+public final class BlockStatePattern {
+
+    public static final String WILDCARD = "*";
+
+    public final BlockState state;
+    private final Set<String> wildcardTraits;
+    private final boolean anyState;
+
+    private BlockStatePattern(BlockState state, Set<String> wildcardTraits, boolean anyState) {
+        this.state = state;
+        this.wildcardTraits = wildcardTraits;
+        this.anyState = anyState;
+    }
+
+    public static BlockStatePattern of(BlockState state, Set<String> wildcardTraits) {
+        return new BlockStatePattern(state, ImmutableSet.copyOf(wildcardTraits), false);
+    }
+
+    public static BlockStatePattern any(BlockType type) {
+        return new BlockStatePattern(type.getDefaultState(), ImmutableSet.of(), true);
+    }
+
+    public BlockType getType() {
+        return this.state.getType();
+    }
+
+    public boolean isWildcard(BlockTrait<?> trait) {
+        return this.anyState || this.wildcardTraits.contains(trait.getName());
+    }
+
+    boolean isAnyState() {
+        return this.anyState;
+    }
+
+    Set<String> getWildcardTraits() {
+        return this.wildcardTraits;
+    }
+
+    @Override
+    public String toString() {
+        if (this.anyState) {
+            return this.state.getType().getId() + "[" + WILDCARD + "]";
+        }
+
+        return this.wildcardTraits.isEmpty() ? this.state.toString() : this.state + this.wildcardTraits.toString();
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.world.World;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Block changes queued for one chunk and written later, as many as fit into a tick. Positions are packed chunk relative as
+ * x | z << 4 | y << 8. A change is only written while the block still holds the state it expects, so whatever changed it since is kept.
+ */
+final class ChunkBatch {
+
+    // How many blocks are written between clock reads
+    static final int CLOCK_INTERVAL = 64;
+
+    final Key key;
+    private int[] positions = new int[64];
+    private BlockState[] expected = new BlockState[64], replacements = new BlockState[64];
+    // The rule behind each change, only kept for replacements so they can be journaled once written
+    private PopulatorMappingsRegistry.ReplacementEntry[] rules;
+    private int size, next;
+
+    ChunkBatch(Key key) {
+        this.key = key;
+    }
+
+    void add(int x, int y, int z, BlockState expected, BlockState replacement) {
+        if (this.size == this.positions.length) {
+            this.positions = Arrays.copyOf(this.positions, this.size * 2);
+            this.expected = Arrays.copyOf(this.expected, this.size * 2);
+            this.replacements = Arrays.copyOf(this.replacements, this.size * 2);
+            if (this.rules != null) {
+                this.rules = Arrays.copyOf(this.rules, this.size * 2);
+            }
+        }
+
+        this.positions[this.size] = x & 15 | (z & 15) << 4 | y << 8;
+        this.expected[this.size] = expected;
+        this.replacements[this.size++] = replacement;
+    }
+
+    void add(int x, int y, int z, BlockState expected, BlockState replacement, PopulatorMappingsRegistry.ReplacementEntry rule) {
+        add(x, y, z, expected, replacement);
+        if (this.rules == null) {
+            this.rules = new PopulatorMappingsRegistry.ReplacementEntry[this.positions.length];
+        }
+        this.rules[this.size - 1] = rule;
+    }
+
+    /**
+     * Gets how many changes are still queued.
+     *
+     * @return The count
+     */
+    int remaining() {
+        return this.size - this.next;
+    }
+
+    /**
+     * Writes the queued changes in order until all are handled or the deadline passed. The clock is read every {@link #CLOCK_INTERVAL}
+     * changes, counted across the batches of a tick so a tick always makes progress.
+     *
+     * @param world The world of the chunk, which must be loaded
+     * @param deadline The {@link System#nanoTime()} to stop at
+     * @param sinceClock The changes handled since the clock was last read, 0 for the first batch of a tick
+     * @param outcome Told about each handled change
+     * @return The changes handled since the clock was last read, for the next batch, or -1 if the deadline passed first
+     */
+    int apply(World world, long deadline, int sinceClock, Outcome outcome) {
+        final int baseX = this.key.chunkX << 4, baseZ = this.key.chunkZ << 4;
+        while (this.next < this.size) {
+            if (++sinceClock == CLOCK_INTERVAL) {
+                sinceClock = 0;
+                if (System.nanoTime() >= deadline) {
+                    return -1;
+                }
+            }
+
+            final int i = this.next++;
+            final int packed = this.positions[i];
+            final int x = baseX | packed & 15, y = packed >>> 8, z = baseZ | packed >> 4 & 15;
+            final boolean written = world.getBlock(x, y, z) == this.expected[i];
+            if (written) {
+                world.setBlock(x, y, z, this.replacements[i]);
+            }
+            outcome.handled(x, y, z, this.expected[i], this.replacements[i], this.rules == null ? null : this.rules[i], written);
+        }
+
+        return sinceClock;
+    }
+
+    /**
+     * Receives what happened to each change.
+     */
+    interface Outcome {
+
+        /**
+         * Called for every change once it is handled.
+         *
+         * @param x The block x coordinate
+         * @param y The block y coordinate
+         * @param z The block z coordinate
+         * @param expected The state the block was expected to hold
+         * @param replacement The state written
+         * @param rule The rule the change was queued with, if any
+         * @param written Whether it was written, false if the block no longer held the expected state
+         */
+        void handled(int x, int y, int z, BlockState expected, BlockState replacement, PopulatorMappingsRegistry.ReplacementEntry rule,
+                boolean written);
+    }
+
+    static final class Key {
+
+        final UUID worldUniqueId;
+        final int chunkX, chunkZ;
+
+        Key(UUID worldUniqueId, int chunkX, int chunkZ) {
+            this.worldUniqueId = worldUniqueId;
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return this.chunkX == other.chunkX && this.chunkZ == other.chunkZ && this.worldUniqueId.equals(other.worldUniqueId);
+        }
+
+        @Override
+        public int hashCode() {
+            return (this.worldUniqueId.hashCode() * 31 + this.chunkX) * 31 + this.chunkZ;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import java.util.Objects;
+
+/**
+ * The compiled form of one section of a mappings file, remembered alongside the raw values it was compiled from so a reload can skip
+ * sections that did not change.
+ *
+ * @param <T> The compiled type
+ */
+final class CompiledSection<T> {
+
+    private final Object source, dependency;
+    final T compiled;
+
+    CompiledSection(Object source, Object dependency, T compiled) {
+        this.source = source;
+        this.dependency = dependency;
+        this.compiled = compiled;
+    }
+
+    /**
+     * Checks if this section is still valid for the provided raw values.
+     *
+     * @param source The raw values of the section, as read by Configurate
+     * @param dependency What the section was resolved against, compared by identity
+     * @return True if the section can be reused as is
+     */
+    boolean isCurrent(Object source, Object dependency) {
+        return this.dependency == dependency && Objects.equals(this.source, source);
+    }
+}
@@ -0,0 +1,500 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.spongepowered.api.world.World;
+import org.spongepowered.api.world.biome.BiomeType;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Rules that only apply in some worlds, dimensions, biomes or heights, compiled into a decision structure so the listener never evaluates
+ * a condition per transaction.
+ *
+ * <p>Each world is resolved once into the {@link WorldRules} that can apply in it, or none at all. Those hold a {@link BiomeRules} per
+ * biome that any rule names, plus one for every other biome. A {@link BiomeRules} splits the height into the intervals between rule
+ * boundaries and maps each interval to a {@link Layer}. A layer is an ordinary table indexed by {@link BlockStatePalette} id with the
+ * unconditional rules merged in underneath, so once the layer is known a lookup is the same single array read as without conditions.
+ * Layers are shared between every interval, biome and world that has the same rules and are expanded per populator on first use.</p>
+ *
+ * <p>Rules with {@link Neighbours} conditions can not be decided by the layer alone. For every state they could replace the layer keeps a
+ * {@link Guard}, the neighbour conditions to test in order before the table's own entry is used.</p>
+ */
+public final class ConditionalRules {
+
+    private static final Expansion NO_RULES = new Expansion(null, null);
+    private static final WorldRules NO_WORLD_RULES = new WorldRules(new IdentityHashMap<>(), null);
+
+    private final BlockStatePalette palette;
+    private final ReplacementTable fallback;
+    private final List<Rule> rules;
+    private final Map<UUID, WorldRules> worlds = new ConcurrentHashMap<>();
+    private final Map<List<Rule>, Layer> layers = new ConcurrentHashMap<>();
+    private final Map<Rule, NeighbourCondition> neighbourConditions = new IdentityHashMap<>();
+
+    ConditionalRules(BlockStatePalette palette, ReplacementTable fallback, List<Rule> rules) {
+        this.palette = palette;
+        this.fallback = fallback;
+        this.rules = rules;
+        for (Rule rule : rules) {
+            if (rule.neighbours != null) {
+                this.neighbourConditions.put(rule, new NeighbourCondition(palette, rule.neighbours));
+            }
+        }
+    }
+
+    public List<Rule> getRules() {
+        return this.rules;
+    }
+
+    /**
+     * Gets whether any rule looks at the blocks around the one it replaces.
+     *
+     * @return True if there are rules with {@link Neighbours} conditions
+     */
+    public boolean hasNeighbourRules() {
+        return !this.neighbourConditions.isEmpty();
+    }
+
+    /**
+     * Gets the rules that can apply in the provided world.
+     *
+     * @param world The world
+     * @return The rules or null if none apply in the world
+     */
+    public WorldRules get(World world) {
+        WorldRules worldRules = this.worlds.get(world.getUniqueId());
+        if (worldRules == null) {
+            worldRules = compile(world);
+            this.worlds.put(world.getUniqueId(), worldRules);
+        }
+
+        return worldRules == NO_WORLD_RULES ? null : worldRules;
+    }
+
+    private WorldRules compile(World world) {
+        final String worldName = world.getName().toLowerCase(Locale.ENGLISH);
+        final String dimensionId = world.getDimension().getType().getId().toLowerCase(Locale.ENGLISH);
+        final List<Rule> worldRules = new ArrayList<>();
+        for (Rule rule : this.rules) {
+            if ((rule.worlds.isEmpty() || rule.worlds.contains(worldName)) && (rule.dimensions.isEmpty() || rule.dimensions.contains(dimensionId))) {
+                worldRules.add(rule);
+            }
+        }
+
+        if (worldRules.isEmpty()) {
+            return NO_WORLD_RULES;
+        }
+
+        final Map<BiomeType, BiomeRules> biomes = new IdentityHashMap<>();
+        for (Rule rule : worldRules) {
+            for (BiomeType biome : rule.biomes) {
+                if (!biomes.containsKey(biome)) {
+                    biomes.put(biome, compile(worldRules, biome));
+                }
+            }
+        }
+
+        return new WorldRules(biomes, compile(worldRules, null));
+    }
+
+    private BiomeRules compile(List<Rule> worldRules, BiomeType biome) {
+        final List<Rule> biomeRules = new ArrayList<>();
+        final TreeSet<Integer> bounds = new TreeSet<>();
+        for (Rule rule : worldRules) {
+            if (rule.biomes.isEmpty() || rule.biomes.contains(biome)) {
+                biomeRules.add(rule);
+                bounds.add(rule.minY);
+                bounds.add(rule.maxY + 1);
+            }
+        }
+
+        if (biomeRules.isEmpty()) {
+            return null;
+        }
+
+        final int[] boundsArray = bounds.stream().mapToInt(Integer::intValue).toArray();
+        final Layer[] layers = new Layer[boundsArray.length - 1];
+        for (int i = 0; i < layers.length; i++) {
+            final List<Rule> layerRules = new ArrayList<>();
+            for (Rule rule : biomeRules) {
+                if (rule.minY <= boundsArray[i] && rule.maxY >= boundsArray[i]) {
+                    layerRules.add(rule);
+                }
+            }
+            layers[i] = layerRules.isEmpty() ? null : this.layers.computeIfAbsent(ImmutableList.copyOf(layerRules), Layer::new);
+        }
+
+        return new BiomeRules(boundsArray, layers);
+    }
+
+    /**
+     * The rules that can apply in one world.
+     */
+    public static final class WorldRules {
+
+        private final Map<BiomeType, BiomeRules> biomes;
+        private final BiomeRules otherBiomes;
+
+        WorldRules(Map<BiomeType, BiomeRules> biomes, BiomeRules otherBiomes) {
+            this.biomes = biomes;
+            this.otherBiomes = otherBiomes;
+        }
+
+        /**
+         * Gets the rules that can apply in the provided biome.
+         *
+         * @param biome The biome
+         * @return The rules or null if none apply in the biome
+         */
+        public BiomeRules get(BiomeType biome) {
+            final BiomeRules biomeRules = this.biomes.get(biome);
+            return biomeRules == null ? this.otherBiomes : biomeRules;
+        }
+    }
+
+    /**
+     * The rules that can apply in one biome of one world, by height.
+     */
+    public static final class BiomeRules {
+
+        // Layer i applies from bounds[i] up to, but not including, bounds[i + 1]
+        private final int[] bounds;
+        private final Layer[] layers;
+
+        BiomeRules(int[] bounds, Layer[] layers) {
+            this.bounds = bounds;
+            this.layers = layers;
+        }
+
+        /**
+         * Gets the layer that applies at the provided height.
+         *
+         * @param y The y coordinate
+         * @return The layer or null if no rule applies at the height
+         */
+        public Layer get(int y) {
+            int index = Arrays.binarySearch(this.bounds, y);
+            if (index < 0) {
+                index = -index - 2;
+            }
+
+            return index < 0 || index >= this.layers.length ? null : this.layers[index];
+        }
+    }
+
+    /**
+     * One combination of rules, expanded per populator.
+     */
+    public final class Layer {
+
+        private final List<Rule> rules;
+        private final Map<PopulatorType, Expansion> expansions = new ConcurrentHashMap<>();
+
+        Layer(List<Rule> rules) {
+            this.rules = rules;
+        }
+
+        /**
+         * Gets the rules that apply to the provided {@link PopulatorType} in this layer, the unconditional rules included.
+         *
+         * @param type The populator type
+         * @return The rules indexed by {@link BlockStatePalette} id or null if there are none
+         */
+        public PopulatorMappingsRegistry.ReplacementEntry[] get(PopulatorType type) {
+            final Expansion expansion = expand(type);
+            return expansion == NO_RULES ? ConditionalRules.this.fallback.get(type) : expansion.entries;
+        }
+
+        /**
+         * Gets the rules with neighbour conditions that apply to the provided {@link PopulatorType} in this layer.
+         *
+         * @param type The populator type
+         * @return The guards indexed by {@link BlockStatePalette} id, null for states without any, or null if there are none at all
+         */
+        public Guard[] getGuards(PopulatorType type) {
+            return expand(type).guards;
+        }
+
+        private Expansion expand(PopulatorType type) {
+            Expansion expansion = this.expansions.get(type);
+            if (expansion == null) {
+                final BlockStatePalette palette = ConditionalRules.this.palette;
+                final List<PopulatorMappingsRegistry.ReplacementEntry> applicable = new ArrayList<>();
+                // A guarded rule only gets a say over a state as long as no rule without neighbour conditions took it before
+                final boolean[] taken = new boolean[palette.size()];
+                final List<List<NeighbourCondition>> conditions = new ArrayList<>(Collections.nCopies(palette.size(), null));
+                final List<List<PopulatorMappingsRegistry.ReplacementEntry>> guarded = new ArrayList<>(Collections.nCopies(palette.size(),
+                        null));
+                boolean anyGuarded = false;
+                for (Rule rule : this.rules) {
+                    if (!rule.populators.isEmpty() && !rule.populators.contains(type)) {
+                        continue;
+                    }
+
+                    final NeighbourCondition condition = ConditionalRules.this.neighbourConditions.get(rule);
+                    for (PopulatorMappingsRegistry.ReplacementEntry entry : rule.entries) {
+                        for (int id : palette.getMatchingIds(entry.original)) {
+                            if (taken[id]) {
+                                continue;
+                            }
+                            if (condition == null) {
+                                taken[id] = true;
+                            } else if (guarded.get(id) == null) {
+                                conditions.set(id, new ArrayList<>(Collections.singletonList(condition)));
+                                guarded.set(id, new ArrayList<>(Collections.singletonList(entry)));
+                                anyGuarded = true;
+                            } else if (conditions.get(id).get(conditions.get(id).size() - 1) != condition) {
+                                conditions.get(id).add(condition);
+                                guarded.get(id).add(entry);
+                            }
+                        }
+                    }
+                    if (condition == null) {
+                        applicable.addAll(rule.entries);
+                    }
+                }
+
+                Guard[] guards = null;
+                if (anyGuarded) {
+                    guards = new Guard[palette.size()];
+                    for (int id = 0; id < guards.length; id++) {
+                        if (guarded.get(id) != null) {
+                            guards[id] = new Guard(conditions.get(id).toArray(new NeighbourCondition[conditions.get(id).size()]), guarded
+                                    .get(id).toArray(new PopulatorMappingsRegistry.ReplacementEntry[guarded.get(id).size()]));
+                        }
+                    }
+                }
+
+                // Guards need a table to fall back to even if every rule has neighbour conditions
+                expansion = applicable.isEmpty() && guards == null ? NO_RULES : new Expansion(ReplacementTable.expand(palette, applicable,
+                        ConditionalRules.this.fallback.get(type)), guards);
+                this.expansions.put(type, expansion);
+            }
+
+            return expansion;
+        }
+    }
+
+    private static final class Expansion {
+
+        final PopulatorMappingsRegistry.ReplacementEntry[] entries;
+        final Guard[] guards;
+
+        Expansion(PopulatorMappingsRegistry.ReplacementEntry[] entries, Guard[] guards) {
+            this.entries = entries;
+            this.guards = guards;
+        }
+    }
+
+    /**
+     * The rules with neighbour conditions that can replace one state, tried in the order they are configured.
+     */
+    public static final class Guard {
+
+        private final NeighbourCondition[] conditions;
+        private final PopulatorMappingsRegistry.ReplacementEntry[] entries;
+
+        Guard(NeighbourCondition[] conditions, PopulatorMappingsRegistry.ReplacementEntry[] entries) {
+            this.conditions = conditions;
+            this.entries = entries;
+        }
+
+        /**
+         * Gets the first rule whose neighbour conditions hold at the provided position.
+         *
+         * @param index The index of the populated chunk
+         * @param x The x coordinate
+         * @param y The y coordinate
+         * @param z The z coordinate
+         * @return The rule or null if none of the conditions hold
+         */
+        PopulatorMappingsRegistry.ReplacementEntry resolve(NeighbourIndex index, int x, int y, int z) {
+            for (int i = 0; i < this.conditions.length; i++) {
+                if (this.conditions[i].test(index, x, y, z)) {
+                    return this.entries[i];
+                }
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * {@link Neighbours} expanded into lookups by {@link BlockStatePalette} id.
+     */
+    private static final class NeighbourCondition {
+
+        // Null when the list is empty
+        private final boolean[] any, all, none;
+
+        NeighbourCondition(BlockStatePalette palette, Neighbours neighbours) {
+            this.any = expand(palette, neighbours.any);
+            this.all = expand(palette, neighbours.all);
+            this.none = expand(palette, neighbours.none);
+        }
+
+        private static boolean[] expand(BlockStatePalette palette, List<BlockStatePattern> patterns) {
+            if (patterns.isEmpty()) {
+                return null;
+            }
+
+            final boolean[] matches = new boolean[palette.size()];
+            for (BlockStatePattern pattern : patterns) {
+                for (int id : palette.getMatchingIds(pattern)) {
+                    matches[id] = true;
+                }
+            }
+            return matches;
+        }
+
+        boolean test(NeighbourIndex index, int x, int y, int z) {
+            boolean matchedAny = this.any == null;
+            for (int[] face : NeighbourIndex.FACES) {
+                final int id = index.getId(x + face[0], y + face[1], z + face[2]);
+                if (id == BlockStatePalette.UNKNOWN_ID) {
+                    if (this.all != null) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (this.all != null && !this.all[id] || this.none != null && this.none[id]) {
+                    return false;
+                }
+                matchedAny |= this.any != null && this.any[id];
+            }
+
+            return matchedAny;
+        }
+    }
+
+    /**
+     * Conditions on the six blocks that share a face with the replaced one. At least one has to match {@link #any}, all of them have to
+     * match {@link #all} and none may match {@link #none}. Empty lists are not checked.
+     */
+    public static final class Neighbours {
+
+        public final List<BlockStatePattern> any, all, none;
+
+        public Neighbours(List<BlockStatePattern> any, List<BlockStatePattern> all, List<BlockStatePattern> none) {
+            this.any = ImmutableList.copyOf(any);
+            this.all = ImmutableList.copyOf(all);
+            this.none = ImmutableList.copyOf(none);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder("neighbours");
+            if (!this.any.isEmpty()) {
+                builder.append(" any ").append(this.any);
+            }
+            if (!this.all.isEmpty()) {
+                builder.append(" all ").append(this.all);
+            }
+            if (!this.none.isEmpty()) {
+                builder.append(" none ").append(this.none);
+            }
+
+            return builder.toString();
+        }
+    }
+
+    /**
+     * A set of replacements and the conditions under which they apply. Empty condition sets match everything.
+     */
+    public static final class Rule {
+
+        public final Set<String> worlds, dimensions;
+        public final Set<BiomeType> biomes;
+        public final Set<PopulatorType> populators;
+        public final int minY, maxY;
+        // Null unless the rule looks at the blocks around the one it replaces
+        public final Neighbours neighbours;
+        public final List<PopulatorMappingsRegistry.ReplacementEntry> entries;
+
+        public Rule(Set<String> worlds, Set<String> dimensions, Set<BiomeType> biomes, Set<PopulatorType> populators, int minY, int maxY,
+                List<PopulatorMappingsRegistry.ReplacementEntry> entries) {
+            this(worlds, dimensions, biomes, populators, minY, maxY, null, entries);
+        }
+
+        public Rule(Set<String> worlds, Set<String> dimensions, Set<BiomeType> biomes, Set<PopulatorType> populators, int minY, int maxY,
+                Neighbours neighbours, List<PopulatorMappingsRegistry.ReplacementEntry> entries) {
+            this.worlds = lowerCase(worlds);
+            this.dimensions = lowerCase(dimensions);
+            this.biomes = ImmutableSet.copyOf(biomes);
+            this.populators = ImmutableSet.copyOf(populators);
+            this.minY = minY;
+            this.maxY = maxY;
+            this.neighbours = neighbours;
+            this.entries = ImmutableList.copyOf(entries);
+        }
+
+        private static Set<String> lowerCase(Set<String> values) {
+            final ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+            for (String value : values) {
+                builder.add(value.toLowerCase(Locale.ENGLISH));
+            }
+            return builder.build();
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder("when");
+            if (!this.worlds.isEmpty()) {
+                builder.append(" worlds ").append(this.worlds);
+            }
+            if (!this.dimensions.isEmpty()) {
+                builder.append(" dimensions ").append(this.dimensions);
+            }
+            if (!this.biomes.isEmpty()) {
+                builder.append(" biomes ").append(this.biomes.stream().map(BiomeType::getId).collect(Collectors.toList()));
+            }
+            if (!this.populators.isEmpty()) {
+                builder.append(" populators ").append(this.populators.stream().map(PopulatorType::getId).collect(Collectors.toList()));
+            }
+
+            builder.append(" y [").append(this.minY).append(", ").append(this.maxY).append(']');
+            if (this.neighbours != null) {
+                builder.append(' ').append(this.neighbours);
+            }
+
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.flowpowered.math.vector.Vector3i;
+import ninja.leaping.configurate.ConfigurationNode;
+import org.spongepowered.api.Server;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.world.Chunk;
+import org.spongepowered.api.world.World;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replacement work that did not fit into the tick it was found in.
+ *
+ * <p>The populate listener spends at most the tick budget on replacements, the rest is queued here per chunk and written as plain block
+ * changes at the start of the following ticks, again within the budget. Chunks are applied in the order they were first deferred and a
+ * chunk that was unloaded in the meantime is dropped, as are blocks that no longer hold the state the populator placed. Work may be
+ * queued from any thread that populates chunks and is applied on the main thread, the queue is guarded by this instance's lock and the
+ * budget is shared by all populating threads. Deferred replacements are journaled once they are written, not when they are queued.</p>
+ */
+public final class DeferredReplacements {
+
+    private final Map<ChunkBatch.Key, ChunkBatch> batches = new LinkedHashMap<>();
+    private final LongAdder deferred = new LongAdder(), applied = new LongAdder(), stale = new LongAdder(), dropped = new LongAdder(),
+            overBudgetChunks = new LongAdder();
+    private volatile long budgetNanos;
+    private volatile int pending, maxPending;
+    private final AtomicLong spentNanos = new AtomicLong();
+    private ChunkBatch lastBatch;
+
+    /**
+     * Sets the time replacements may take per tick.
+     *
+     * @param budgetNanos The budget in nanoseconds, 0 to never defer
+     */
+    public void setBudgetNanos(long budgetNanos) {
+        this.budgetNanos = Math.max(0, budgetNanos);
+    }
+
+    public long getBudgetNanos() {
+        return this.budgetNanos;
+    }
+
+    /**
+     * Gets how much of this tick's budget is left.
+     *
+     * @return The nanoseconds left, 0 or less if the budget is exhausted
+     */
+    public long getRemainingNanos() {
+        return this.budgetNanos - this.spentNanos.get();
+    }
+
+    public void spend(long nanos) {
+        this.spentNanos.addAndGet(nanos);
+    }
+
+    public void recordOverBudgetChunk() {
+        this.overBudgetChunks.increment();
+    }
+
+    /**
+     * Queues a replacement for a later tick.
+     *
+     * @param worldUniqueId The world the block is in
+     * @param position The block position
+     * @param expected The state the populator placed
+     * @param replacement The state to replace it with
+     * @param rule The rule that matched
+     */
+    public synchronized void defer(UUID worldUniqueId, Vector3i position, BlockState expected, BlockState replacement,
+            PopulatorMappingsRegistry.ReplacementEntry rule) {
+        final int chunkX = position.getX() >> 4, chunkZ = position.getZ() >> 4;
+        ChunkBatch batch = this.lastBatch;
+        if (batch == null || batch.key.chunkX != chunkX || batch.key.chunkZ != chunkZ || !batch.key.worldUniqueId.equals(worldUniqueId)) {
+            batch = this.batches.computeIfAbsent(new ChunkBatch.Key(worldUniqueId, chunkX, chunkZ), ChunkBatch::new);
+            this.lastBatch = batch;
+        }
+
+        batch.add(position.getX(), position.getY(), position.getZ(), expected, replacement, rule);
+        this.deferred.increment();
+        this.pending++;
+        if (this.pending > this.maxPending) {
+            this.maxPending = this.pending;
+        }
+    }
+
+    /**
+     * Starts a new tick by writing as much queued work as fits into the budget. Should be called once at the start of every tick.
+     *
+     * @param server The server to resolve worlds from
+     * @param journal The journal to record written replacements in, null if disabled
+     */
+    public synchronized void tick(Server server, ReplacementJournal journal) {
+        this.spentNanos.set(0);
+        if (this.batches.isEmpty()) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        final long budget = this.budgetNanos;
+        apply(server, journal, budget == 0 ? Long.MAX_VALUE : start + budget);
+        this.spentNanos.set(System.nanoTime() - start);
+    }
+
+    /**
+     * Writes all queued work regardless of the budget, for when the server stops while chunks are still loaded.
+     *
+     * @param server The server to resolve worlds from
+     * @param journal The journal to record written replacements in, null if disabled
+     */
+    public synchronized void flush(Server server, ReplacementJournal journal) {
+        apply(server, journal, Long.MAX_VALUE);
+    }
+
+    private void apply(Server server, ReplacementJournal journal, long deadline) {
+        this.lastBatch = null;
+        int sinceClock = 0;
+        final Iterator<ChunkBatch> iterator = this.batches.values().iterator();
+        while (iterator.hasNext()) {
+            final ChunkBatch batch = iterator.next();
+            final Optional<World> world = server.getWorld(batch.key.worldUniqueId);
+            final Optional<Chunk> chunk = world.isPresent() ? world.get().getChunk(batch.key.chunkX, 0, batch.key.chunkZ) : Optional.empty();
+            if (!chunk.isPresent() || !chunk.get().isLoaded()) {
+                this.dropped.add(batch.remaining());
+                this.pending -= batch.remaining();
+                iterator.remove();
+                continue;
+            }
+
+            sinceClock = batch.apply(world.get(), deadline, sinceClock, (x, y, z, expected, replacement, rule, applied) -> {
+                if (applied) {
+                    this.applied.increment();
+                    if (journal != null) {
+                        journal.record(world.get(), x, y, z, expected, replacement, rule);
+                    }
+                } else {
+                    this.stale.increment();
+                }
+                this.pending--;
+            });
+            if (sinceClock < 0) {
+                return;
+            }
+            iterator.remove();
+        }
+    }
+
+    public int getPending() {
+        return this.pending;
+    }
+
+    /**
+     * Writes the deferral counters into the provided node.
+     *
+     * @param node The node to write to
+     */
+    public void write(ConfigurationNode node) {
+        node.getNode("budget-nanos").setValue(this.budgetNanos);
+        node.getNode("over-budget-chunks").setValue(this.overBudgetChunks.sum());
+        node.getNode("deferred").setValue(this.deferred.sum());
+        node.getNode("applied").setValue(this.applied.sum());
+        node.getNode("stale").setValue(this.stale.sum());
+        node.getNode("dropped").setValue(this.dropped.sum());
+        node.getNode("pending").setValue(this.pending);
+        node.getNode("max-pending").setValue(this.maxPending);
+    }
+
+    @Override
+    public String toString() {
+        return "over budget chunks [" + this.overBudgetChunks.sum() + "], deferred [" + this.deferred.sum() + "], applied [" + this.applied
+                .sum() + "], stale [" + this.stale.sum() + "], dropped [" + this.dropped.sum() + "], pending [" + this.pending + "], max pending ["
+                + this.maxPending + "]";
+    }
+}
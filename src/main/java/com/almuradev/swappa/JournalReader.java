@@ -0,0 +1,192 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Reads the segments written by {@link ReplacementJournal}, oldest first.
+ */
+public final class JournalReader {
+
+    private static final String SEGMENT_PREFIX = "segment-", SEGMENT_SUFFIX = ".dat";
+
+    private JournalReader() {
+    }
+
+    static String segmentName(int number) {
+        return String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    static int segmentNumber(Path segment) {
+        final String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Lists the segments of a journal directory in the order they were written.
+     *
+     * @param directory The journal directory
+     * @return The segments, empty if the directory does not exist
+     */
+    public static List<Path> list(Path directory) throws IOException {
+        if (Files.notExists(directory)) {
+            return Collections.emptyList();
+        }
+
+        final List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "[0-9]*" + SEGMENT_SUFFIX)) {
+            for (Path segment : stream) {
+                segments.add(segment);
+            }
+        }
+        segments.sort((o1, o2) -> Integer.compare(segmentNumber(o1), segmentNumber(o2)));
+        return segments;
+    }
+
+    /**
+     * Reads every replacement in the journal. Replacements that are still buffered by a running journal are not seen.
+     *
+     * @param directory The journal directory
+     * @param consumer Receives the replacements in the order they were recorded
+     */
+    public static void read(Path directory, Consumer<Entry> consumer) throws IOException {
+        for (Path segment : list(directory)) {
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                read(segment, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), consumer);
+            }
+        }
+    }
+
+    private static void read(Path segment, MappedByteBuffer buffer, Consumer<Entry> consumer) throws IOException {
+        if (buffer.remaining() < ReplacementJournal.HEADER_BYTES || buffer.getInt() != ReplacementJournal.MAGIC) {
+            throw new IOException(segment + " is not a journal segment");
+        }
+        final int version = buffer.getInt();
+        if (version != ReplacementJournal.VERSION) {
+            throw new IOException(segment + " is version [" + version + "], expected [" + ReplacementJournal.VERSION + "]");
+        }
+        buffer.getLong();
+
+        UUID[] worldUniqueIds = new UUID[4];
+        String[] worldNames = new String[4], states = new String[64], rules = new String[16];
+        try {
+            while (buffer.hasRemaining()) {
+                final byte tag = buffer.get();
+                switch (tag) {
+                    case ReplacementJournal.TAG_END:
+                        return;
+                    case ReplacementJournal.TAG_WORLD: {
+                        final int id = buffer.getInt();
+                        worldUniqueIds = grow(worldUniqueIds, id);
+                        worldNames = grow(worldNames, id);
+                        worldUniqueIds[id] = new UUID(buffer.getLong(), buffer.getLong());
+                        worldNames[id] = readString(buffer);
+                        break;
+                    }
+                    case ReplacementJournal.TAG_STATE: {
+                        final int id = buffer.getInt();
+                        states = grow(states, id);
+                        states[id] = readString(buffer);
+                        break;
+                    }
+                    case ReplacementJournal.TAG_RULE: {
+                        final int id = buffer.getInt();
+                        rules = grow(rules, id);
+                        rules[id] = readString(buffer);
+                        break;
+                    }
+                    case ReplacementJournal.TAG_REPLACEMENT: {
+                        final int world = buffer.getInt();
+                        consumer.accept(new Entry(worldUniqueIds[world], worldNames[world], buffer.getLong(), states[buffer.getInt()],
+                                states[buffer.getInt()], rules[buffer.getInt()]));
+                        break;
+                    }
+                    default:
+                        throw new IOException(segment + " has an unknown record [" + tag + "] at [" + (buffer.position() - 1) + "]");
+                }
+            }
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException(segment + " is truncated or corrupt at [" + buffer.position() + "]", e);
+        }
+    }
+
+    private static <T> T[] grow(T[] array, int id) {
+        return id < array.length ? array : Arrays.copyOf(array, Math.max(id + 1, array.length * 2));
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A single journaled replacement.
+     */
+    public static final class Entry {
+
+        public final UUID worldUniqueId;
+        public final String worldName;
+        public final long position;
+        public final String original, replacement, rule;
+
+        Entry(UUID worldUniqueId, String worldName, long position, String original, String replacement, String rule) {
+            this.worldUniqueId = worldUniqueId;
+            this.worldName = worldName;
+            this.position = position;
+            this.original = original;
+            this.replacement = replacement;
+            this.rule = rule;
+        }
+
+        public int getX() {
+            return ReplacementJournal.unpackX(this.position);
+        }
+
+        public int getY() {
+            return ReplacementJournal.unpackY(this.position);
+        }
+
+        public int getZ() {
+            return ReplacementJournal.unpackZ(this.position);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import org.spongepowered.api.Server;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.world.Chunk;
+import org.spongepowered.api.world.World;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Undoes the journaled replacements of a single rule.
+ *
+ * <p>The journal is read off the main thread, the blocks are then restored chunk by chunk on the main thread within
+ * {@link #NANOS_PER_TICK} per tick. Chunks are loaded if needed but never generated, and unloaded again once their blocks are restored. A
+ * block is only restored while it still holds the state Swappa replaced it with so later changes by players or other plugins are
+ * kept.</p>
+ */
+public final class JournalRollback {
+
+    static final long NANOS_PER_TICK = 10000000;
+
+    private final String rule;
+    private final Map<ChunkBatch.Key, ChunkBatch> batches = new LinkedHashMap<>();
+    // Chunks this rollback loaded, a batch may take several ticks
+    private final Set<ChunkBatch.Key> loaded = new HashSet<>();
+    private long total, restored, modified, missing, unknown;
+
+    private JournalRollback(String rule) {
+        this.rule = rule;
+    }
+
+    /**
+     * Collects the replacements of a rule from the journal. Must not be called from the main thread.
+     *
+     * @param directory The journal directory
+     * @param rule The rule, exactly as journaled
+     * @param palette The palette to resolve the journaled states against
+     * @return The rollback, ready to be ticked
+     */
+    public static JournalRollback read(Path directory, String rule, BlockStatePalette palette) throws IOException {
+        final Map<String, BlockState> states = new HashMap<>(palette.size() * 2);
+        for (int id = 0; id < palette.size(); id++) {
+            states.put(palette.get(id).toString(), palette.get(id));
+        }
+
+        final JournalRollback rollback = new JournalRollback(rule);
+        JournalReader.read(directory, entry -> {
+            if (!rule.equals(entry.rule)) {
+                return;
+            }
+
+            rollback.total++;
+            final BlockState original = states.get(entry.original), replacement = states.get(entry.replacement);
+            if (original == null || replacement == null) {
+                // The block is gone from the game since it was journaled
+                rollback.unknown++;
+                return;
+            }
+
+            // Swappa's replacement is expected and the original written back
+            rollback.batches.computeIfAbsent(new ChunkBatch.Key(entry.worldUniqueId, entry.getX() >> 4, entry.getZ() >> 4), ChunkBatch::new)
+                    .add(entry.getX(), entry.getY(), entry.getZ(), replacement, original);
+        });
+        return rollback;
+    }
+
+    /**
+     * Restores as many blocks as fit into this tick.
+     *
+     * @param server The server to resolve worlds from
+     * @return Whether the rollback is done
+     */
+    public boolean tick(Server server) {
+        final long deadline = System.nanoTime() + NANOS_PER_TICK;
+        int sinceClock = 0;
+        final Iterator<ChunkBatch> iterator = this.batches.values().iterator();
+        while (iterator.hasNext()) {
+            final ChunkBatch batch = iterator.next();
+            final Optional<World> world = server.getWorld(batch.key.worldUniqueId);
+            Optional<Chunk> chunk = world.isPresent() ? world.get().getChunk(batch.key.chunkX, 0, batch.key.chunkZ) : Optional.empty();
+            if (world.isPresent() && !chunk.isPresent()) {
+                chunk = world.get().loadChunk(batch.key.chunkX, 0, batch.key.chunkZ, false);
+                if (chunk.isPresent()) {
+                    this.loaded.add(batch.key);
+                }
+            }
+            if (!chunk.isPresent()) {
+                this.missing += batch.remaining();
+                iterator.remove();
+                continue;
+            }
+
+            sinceClock = batch.apply(world.get(), deadline, sinceClock, (x, y, z, expected, replacement, rule, restored) -> {
+                if (restored) {
+                    this.restored++;
+                } else {
+                    this.modified++;
+                }
+            });
+            if (sinceClock < 0) {
+                return false;
+            }
+            iterator.remove();
+            if (this.loaded.remove(batch.key)) {
+                chunk.get().unloadChunk();
+            }
+        }
+
+        return true;
+    }
+
+    public String getRule() {
+        return this.rule;
+    }
+
+    public long getTotal() {
+        return this.total;
+    }
+
+    @Override
+    public String toString() {
+        return "rule [" + this.rule + "] journaled [" + this.total + "], restored [" + this.restored + "], changed since [" + this.modified
+                + "], missing chunks or worlds [" + this.missing + "], unknown states [" + this.unknown + "]";
+    }
+}
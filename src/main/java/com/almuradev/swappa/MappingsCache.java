@@ -0,0 +1,516 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongepowered.api.GameRegistry;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.block.BlockType;
+import org.spongepowered.api.block.trait.BlockTrait;
+import org.spongepowered.api.plugin.PluginContainer;
+import org.spongepowered.api.plugin.PluginManager;
+import org.spongepowered.api.world.biome.BiomeType;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * The resolved mappings stored in binary form so an unchanged setup can skip YAML parsing and blockstate resolution at startup.
+ *
+ * <p>The cache is keyed by a SHA-256 over the mapping files and a fingerprint of everything they were resolved against: the plugin
+ * version, the loaded plugins, the registered populators and every block type with its traits. States are stored as the index of their
+ * block type, ordered by id, and their offset within that type's {@link BlockStatePalette} range, which the fingerprint pins down. Any
+ * mismatch or read error simply falls back to compiling the YAML.</p>
+ */
+final class MappingsCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(Swappa.PLUGIN_ID + "-cache");
+    private static final int MAGIC = 0x53575043, VERSION = 4;
+    private static final byte VALUE_NULL = 0, VALUE_BOOLEAN = 1, VALUE_LONG = 2, VALUE_DOUBLE = 3, VALUE_STRING = 4, VALUE_MAP = 5,
+            VALUE_LIST = 6;
+
+    final Map<PluginContainer, Map<String, BlockStatePattern>> mappings;
+    final Map<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> populatorEntries;
+    final List<PopulatorMappingsRegistry.ReplacementEntry> allEntries;
+    final List<ConditionalRules.Rule> conditionalRules;
+    // The raw value of the populators.yml "general" section
+    final Object general;
+
+    MappingsCache(Map<PluginContainer, Map<String, BlockStatePattern>> mappings, Map<PopulatorType, List<PopulatorMappingsRegistry
+            .ReplacementEntry>> populatorEntries, List<PopulatorMappingsRegistry.ReplacementEntry> allEntries, List<ConditionalRules.Rule>
+            conditionalRules, Object general) {
+        this.mappings = mappings;
+        this.populatorEntries = populatorEntries;
+        this.allEntries = allEntries;
+        this.conditionalRules = conditionalRules;
+        this.general = general;
+    }
+
+    /**
+     * Computes the cache key of a config directory, over blockstates.yml, populators.yml and the mappings.d files of loaded mods.
+     *
+     * @param configDir The directory holding the mapping files
+     * @param palette The palette the mappings are resolved against
+     * @param registry The game registry
+     * @param pluginManager The plugin manager
+     * @return The key
+     * @throws IOException If a file could not be read
+     */
+    static byte[] key(Path configDir, BlockStatePalette palette, GameRegistry registry, PluginManager pluginManager) throws IOException {
+        final List<Path> files = new ArrayList<>(Arrays.asList(configDir.resolve(Swappa.BLOCKSTATES_FILE), configDir.resolve(Swappa
+                .POPULATORS_FILE)));
+        files.addAll(MappingsShard.list(configDir.resolve(MappingsShard.DIRECTORY), pluginManager));
+        return key(files, palette, registry, pluginManager);
+    }
+
+    /**
+     * Computes the cache key.
+     *
+     * @param files The mapping files, a missing file hashes as empty
+     * @param palette The palette the mappings are resolved against
+     * @param registry The game registry
+     * @param pluginManager The plugin manager
+     * @return The key
+     * @throws IOException If a file could not be read
+     */
+    static byte[] key(List<Path> files, BlockStatePalette palette, GameRegistry registry, PluginManager pluginManager) throws IOException {
+        final MessageDigest digest = sha256();
+        update(digest, Swappa.PLUGIN_VERSION);
+        digest.update((byte) VERSION);
+        for (Path file : files) {
+            update(digest, file.getFileName().toString());
+            try {
+                digest.update(Files.readAllBytes(file));
+            } catch (NoSuchFileException ignore) {
+            }
+            digest.update((byte) 0);
+        }
+
+        pluginManager.getPlugins().stream().map(PluginContainer::getId).sorted().forEach(id -> update(digest, id));
+        registry.getAllOf(PopulatorType.class).stream().map(PopulatorType::getId).sorted().forEach(id -> update(digest, id));
+        for (BlockType type : sortedBlockTypes(palette)) {
+            update(digest, type.getId());
+            for (BlockTrait<?> trait : palette.getTraits(type)) {
+                update(digest, trait.getName());
+                update(digest, trait.getPossibleValues().toString());
+            }
+            update(digest, Integer.toString(palette.getEndId(type) - palette.getFirstId(type)));
+        }
+
+        return digest.digest();
+    }
+
+    /**
+     * Reads the cache if it was written for the provided key.
+     *
+     * @param path The cache file
+     * @param key The expected key
+     * @param palette The palette to resolve states against
+     * @return The cached mappings or empty if there is no usable cache
+     */
+    static Optional<MappingsCache> read(Path path, byte[] key, BlockStatePalette palette) {
+        if (Files.notExists(path)) {
+            return Optional.empty();
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return Optional.empty();
+            }
+            final byte[] storedKey = new byte[key.length];
+            in.readFully(storedKey);
+            if (!Arrays.equals(storedKey, key)) {
+                return Optional.empty();
+            }
+
+            return Optional.of(new Reader(in, palette).read());
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Potential corrupt " + path.getFileName() + ", compiling the mappings instead.", e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Writes the cache, replacing any previous one once it is complete.
+     *
+     * @param path The cache file
+     * @param key The key it is valid for
+     * @param palette The palette the mappings were resolved against
+     * @throws IOException If the file could not be written
+     */
+    void write(Path path, byte[] key, BlockStatePalette palette) throws IOException {
+        final Map<BlockType, Integer> typeIndices = new HashMap<>();
+        for (BlockType type : sortedBlockTypes(palette)) {
+            typeIndices.put(type, typeIndices.size());
+        }
+
+        final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(key);
+            final Writer writer = new Writer(out, palette, typeIndices);
+
+            out.writeInt(this.mappings.size());
+            for (Map.Entry<PluginContainer, Map<String, BlockStatePattern>> modEntry : this.mappings.entrySet()) {
+                out.writeUTF(modEntry.getKey().getId());
+                out.writeInt(modEntry.getValue().size());
+                for (Map.Entry<String, BlockStatePattern> mappedEntry : modEntry.getValue().entrySet()) {
+                    out.writeUTF(mappedEntry.getKey());
+                    writer.writePattern(mappedEntry.getValue());
+                }
+            }
+
+            out.writeInt(this.populatorEntries.size());
+            for (Map.Entry<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> populatorEntry : this.populatorEntries.entrySet()) {
+                out.writeUTF(populatorEntry.getKey().getId());
+                writer.writeEntries(populatorEntry.getValue());
+            }
+            writer.writeEntries(this.allEntries);
+            out.writeInt(this.conditionalRules.size());
+            for (ConditionalRules.Rule rule : this.conditionalRules) {
+                writer.writeRule(rule);
+            }
+            writer.writeValue(this.general);
+        }
+
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static List<BlockType> sortedBlockTypes(BlockStatePalette palette) {
+        final List<BlockType> types = new ArrayList<>(palette.getBlockTypes());
+        types.sort(Comparator.comparing(BlockType::getId));
+        return types;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static final class Writer {
+
+        private final DataOutputStream out;
+        private final BlockStatePalette palette;
+        private final Map<BlockType, Integer> typeIndices;
+
+        Writer(DataOutputStream out, BlockStatePalette palette, Map<BlockType, Integer> typeIndices) {
+            this.out = out;
+            this.palette = palette;
+            this.typeIndices = typeIndices;
+        }
+
+        void writeState(BlockState state) throws IOException {
+            final int id = this.palette.getId(state);
+            final Integer typeIndex = this.typeIndices.get(state.getType());
+            if (id == BlockStatePalette.UNKNOWN_ID || typeIndex == null) {
+                throw new IOException("BlockState [" + state + "] is not part of the palette!");
+            }
+
+            this.out.writeInt(typeIndex);
+            this.out.writeInt(id - this.palette.getFirstId(state.getType()));
+        }
+
+        void writePattern(BlockStatePattern pattern) throws IOException {
+            writeState(pattern.state);
+            this.out.writeBoolean(pattern.isAnyState());
+            this.out.writeInt(pattern.getWildcardTraits().size());
+            for (String trait : pattern.getWildcardTraits()) {
+                this.out.writeUTF(trait);
+            }
+        }
+
+        void writeEntries(List<PopulatorMappingsRegistry.ReplacementEntry> entries) throws IOException {
+            this.out.writeInt(entries.size());
+            for (PopulatorMappingsRegistry.ReplacementEntry entry : entries) {
+                this.out.writeUTF(entry.origin);
+                writePattern(entry.original);
+                final WeightedReplacement weighted = entry.weightedReplacement;
+                if (weighted == null) {
+                    this.out.writeInt(0);
+                    writeState(entry.replacementBlockState);
+                    continue;
+                }
+
+                this.out.writeInt(weighted.size());
+                for (int i = 0; i < weighted.size(); i++) {
+                    writeState(weighted.getState(i));
+                    this.out.writeDouble(weighted.getWeight(i));
+                }
+            }
+        }
+
+        void writeRule(ConditionalRules.Rule rule) throws IOException {
+            writeStrings(rule.worlds);
+            writeStrings(rule.dimensions);
+            writeStrings(rule.biomes.stream().map(BiomeType::getId).collect(Collectors.toList()));
+            writeStrings(rule.populators.stream().map(PopulatorType::getId).collect(Collectors.toList()));
+            this.out.writeInt(rule.minY);
+            this.out.writeInt(rule.maxY);
+            this.out.writeBoolean(rule.neighbours != null);
+            if (rule.neighbours != null) {
+                writePatterns(rule.neighbours.any);
+                writePatterns(rule.neighbours.all);
+                writePatterns(rule.neighbours.none);
+            }
+            writeEntries(rule.entries);
+        }
+
+        private void writePatterns(List<BlockStatePattern> patterns) throws IOException {
+            this.out.writeInt(patterns.size());
+            for (BlockStatePattern pattern : patterns) {
+                writePattern(pattern);
+            }
+        }
+
+        private void writeStrings(Collection<String> values) throws IOException {
+            this.out.writeInt(values.size());
+            for (String value : values) {
+                this.out.writeUTF(value);
+            }
+        }
+
+        void writeValue(Object value) throws IOException {
+            if (value == null) {
+                this.out.writeByte(VALUE_NULL);
+            } else if (value instanceof Boolean) {
+                this.out.writeByte(VALUE_BOOLEAN);
+                this.out.writeBoolean((Boolean) value);
+            } else if (value instanceof Float || value instanceof Double) {
+                this.out.writeByte(VALUE_DOUBLE);
+                this.out.writeDouble(((Number) value).doubleValue());
+            } else if (value instanceof Number) {
+                this.out.writeByte(VALUE_LONG);
+                this.out.writeLong(((Number) value).longValue());
+            } else if (value instanceof Map) {
+                this.out.writeByte(VALUE_MAP);
+                this.out.writeInt(((Map<?, ?>) value).size());
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    this.out.writeUTF(entry.getKey().toString());
+                    writeValue(entry.getValue());
+                }
+            } else if (value instanceof List) {
+                this.out.writeByte(VALUE_LIST);
+                this.out.writeInt(((List<?>) value).size());
+                for (Object element : (List<?>) value) {
+                    writeValue(element);
+                }
+            } else {
+                this.out.writeByte(VALUE_STRING);
+                this.out.writeUTF(value.toString());
+            }
+        }
+    }
+
+    private static final class Reader {
+
+        private final DataInputStream in;
+        private final BlockStatePalette palette;
+        private final List<BlockType> types;
+
+        Reader(DataInputStream in, BlockStatePalette palette) {
+            this.in = in;
+            this.palette = palette;
+            this.types = sortedBlockTypes(palette);
+        }
+
+        MappingsCache read() throws IOException {
+            final Map<PluginContainer, Map<String, BlockStatePattern>> mappings = new LinkedHashMap<>();
+            for (int mods = this.in.readInt(); mods > 0; mods--) {
+                final PluginContainer container = plugin(this.in.readUTF());
+                final Map<String, BlockStatePattern> mapped = new LinkedHashMap<>();
+                for (int names = this.in.readInt(); names > 0; names--) {
+                    mapped.put(this.in.readUTF(), readPattern());
+                }
+                mappings.put(container, ImmutableMap.copyOf(mapped));
+            }
+
+            final Map<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> populatorEntries = new LinkedHashMap<>();
+            for (int populators = this.in.readInt(); populators > 0; populators--) {
+                final String populatorTypeId = this.in.readUTF();
+                final PopulatorType populatorType = Swappa.instance.registry.getType(PopulatorType.class, populatorTypeId)
+                        .orElseThrow(() -> new IOException("Populator [" + populatorTypeId + "] is not registered!"));
+                populatorEntries.put(populatorType, readEntries());
+            }
+            final List<PopulatorMappingsRegistry.ReplacementEntry> allEntries = readEntries();
+            final List<ConditionalRules.Rule> conditionalRules = new ArrayList<>();
+            for (int rules = this.in.readInt(); rules > 0; rules--) {
+                conditionalRules.add(readRule());
+            }
+
+            return new MappingsCache(ImmutableMap.copyOf(mappings), ImmutableMap.copyOf(populatorEntries), allEntries, ImmutableList.copyOf(
+                    conditionalRules), readValue());
+        }
+
+        private ConditionalRules.Rule readRule() throws IOException {
+            final Set<String> worlds = new LinkedHashSet<>(readStrings()), dimensions = new LinkedHashSet<>(readStrings());
+            final Set<BiomeType> biomes = new LinkedHashSet<>();
+            for (String biomeId : readStrings()) {
+                biomes.add(Swappa.instance.registry.getType(BiomeType.class, biomeId).orElseThrow(() -> new IOException("Biome [" + biomeId
+                        + "] is not registered!")));
+            }
+            final Set<PopulatorType> populators = new LinkedHashSet<>();
+            for (String populatorTypeId : readStrings()) {
+                populators.add(Swappa.instance.registry.getType(PopulatorType.class, populatorTypeId).orElseThrow(() -> new IOException(
+                        "Populator [" + populatorTypeId + "] is not registered!")));
+            }
+            final int minY = this.in.readInt(), maxY = this.in.readInt();
+            final ConditionalRules.Neighbours neighbours = this.in.readBoolean() ? new ConditionalRules.Neighbours(readPatterns(), readPatterns(),
+                    readPatterns()) : null;
+
+            return new ConditionalRules.Rule(worlds, dimensions, biomes, populators, minY, maxY, neighbours, readEntries());
+        }
+
+        private List<BlockStatePattern> readPatterns() throws IOException {
+            final List<BlockStatePattern> patterns = new ArrayList<>();
+            for (int size = this.in.readInt(); size > 0; size--) {
+                patterns.add(readPattern());
+            }
+            return patterns;
+        }
+
+        private List<String> readStrings() throws IOException {
+            final List<String> values = new ArrayList<>();
+            for (int size = this.in.readInt(); size > 0; size--) {
+                values.add(this.in.readUTF());
+            }
+            return values;
+        }
+
+        private PluginContainer plugin(String modId) throws IOException {
+            return Swappa.instance.pluginManager.getPlugin(modId).orElseThrow(() -> new IOException("Mod [" + modId + "] is not loaded!"));
+        }
+
+        private BlockState readState() throws IOException {
+            final BlockType type = this.types.get(this.in.readInt());
+            final int id = this.palette.getFirstId(type) + this.in.readInt();
+            if (id >= this.palette.getEndId(type)) {
+                throw new IOException("BlockState offset out of range for Block [" + type.getId() + "]!");
+            }
+
+            return this.palette.get(id);
+        }
+
+        private BlockStatePattern readPattern() throws IOException {
+            final BlockState state = readState();
+            final boolean anyState = this.in.readBoolean();
+            final Set<String> wildcardTraits = new HashSet<>();
+            for (int traits = this.in.readInt(); traits > 0; traits--) {
+                wildcardTraits.add(this.in.readUTF());
+            }
+
+            return anyState ? BlockStatePattern.any(state.getType()) : BlockStatePattern.of(state, wildcardTraits);
+        }
+
+        private List<PopulatorMappingsRegistry.ReplacementEntry> readEntries() throws IOException {
+            final List<PopulatorMappingsRegistry.ReplacementEntry> entries = new ArrayList<>();
+            for (int count = this.in.readInt(); count > 0; count--) {
+                final String origin = this.in.readUTF();
+                final BlockStatePattern original = readPattern();
+                final int weights = this.in.readInt();
+                if (weights == 0) {
+                    entries.add(new PopulatorMappingsRegistry.ReplacementEntry(origin, original, readState()));
+                    continue;
+                }
+
+                final BlockState[] states = new BlockState[weights];
+                final double[] stateWeights = new double[weights];
+                for (int i = 0; i < weights; i++) {
+                    states[i] = readState();
+                    stateWeights[i] = this.in.readDouble();
+                }
+                entries.add(new PopulatorMappingsRegistry.ReplacementEntry(origin, original, new WeightedReplacement(states,
+                        stateWeights)));
+            }
+
+            return ImmutableList.copyOf(entries);
+        }
+
+        private Object readValue() throws IOException {
+            switch (this.in.readByte()) {
+                case VALUE_NULL:
+                    return null;
+                case VALUE_BOOLEAN:
+                    return this.in.readBoolean();
+                case VALUE_LONG:
+                    return this.in.readLong();
+                case VALUE_DOUBLE:
+                    return this.in.readDouble();
+                case VALUE_STRING:
+                    return this.in.readUTF();
+                case VALUE_MAP:
+                    final Map<String, Object> map = new LinkedHashMap<>();
+                    for (int size = this.in.readInt(); size > 0; size--) {
+                        map.put(this.in.readUTF(), readValue());
+                    }
+                    return map;
+                case VALUE_LIST:
+                    final List<Object> list = new ArrayList<>();
+                    for (int size = this.in.readInt(); size > 0; size--) {
+                        list.add(readValue());
+                    }
+                    return list;
+                default:
+                    throw new IOException("Unknown value type!");
+            }
+        }
+    }
+}
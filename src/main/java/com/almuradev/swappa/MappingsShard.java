@@ -0,0 +1,150 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.yaml.YAMLConfigurationLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongepowered.api.plugin.PluginContainer;
+import org.spongepowered.api.plugin.PluginManager;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A per mod mappings file from the mappings.d directory.
+ *
+ * <p>Each file is named after the mod it maps, such as "mappings.d/ic2.yml", and holds that mod's blockstate mappings under
+ * "blockstates" and its populator mappings under "populators", in the same format as the mod's section of blockstates.yml and
+ * populators.yml.</p>
+ */
+final class MappingsShard {
+
+    static final String DIRECTORY = "mappings.d", SECTION_BLOCKSTATES = "blockstates", SECTION_POPULATORS = "populators";
+    private static final String EXTENSION = ".yml";
+    private static final Logger logger = LoggerFactory.getLogger(Swappa.PLUGIN_ID + "-shards");
+
+    final ModSection blockStates, populators;
+
+    private MappingsShard(String origin, PluginContainer container, ConfigurationNode rootNode) {
+        this.blockStates = new ModSection(origin, container, rootNode.getNode(SECTION_BLOCKSTATES));
+        this.populators = new ModSection(origin, container, rootNode.getNode(SECTION_POPULATORS));
+    }
+
+    /**
+     * Lists the files of loaded mods, ordered by name. Files of mods that are not loaded are skipped without being read.
+     *
+     * @param directory The mappings.d directory
+     * @param pluginManager The plugin manager
+     * @return The files
+     * @throws IOException If the directory could not be listed
+     */
+    static List<Path> list(Path directory, PluginManager pluginManager) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        if (Files.notExists(directory)) {
+            return files;
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : stream) {
+                final String modId = getModId(file);
+                if (pluginManager.isLoaded(modId)) {
+                    files.add(file);
+                } else {
+                    logger.debug("Skipping [" + DIRECTORY + "/" + file.getFileName() + "] as Mod [" + modId + "] is not loaded.");
+                }
+            }
+        }
+        files.sort(null);
+
+        return files;
+    }
+
+    /**
+     * Parses the files of loaded mods on the common fork-join pool. A file that fails to parse is logged and skipped.
+     *
+     * @param directory The mappings.d directory
+     * @param pluginManager The plugin manager
+     * @return The shards, ordered by file name
+     * @throws IOException If the directory could not be listed
+     */
+    static List<MappingsShard> loadAll(Path directory, PluginManager pluginManager) throws IOException {
+        return loadAll(directory, pluginManager, MappingsShard.logger);
+    }
+
+    /**
+     * Parses the files of loaded mods like {@link #loadAll(Path, PluginManager)}, reporting the files that fail to parse to the given
+     * logger.
+     *
+     * @param directory The mappings.d directory
+     * @param pluginManager The plugin manager
+     * @param logger The logger the files that fail to parse are reported to
+     * @return The shards, ordered by file name
+     * @throws IOException If the directory could not be listed
+     */
+    static List<MappingsShard> loadAll(Path directory, PluginManager pluginManager, Logger logger) throws IOException {
+        final List<Path> files = list(directory, pluginManager);
+        final List<CompletableFuture<ConfigurationNode>> futures = new ArrayList<>(files.size());
+        for (Path file : files) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return YAMLConfigurationLoader.builder().setFile(file.toFile()).build().load();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, ForkJoinPool.commonPool()));
+        }
+
+        final List<MappingsShard> shards = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            final String origin = DIRECTORY + "/" + files.get(i).getFileName();
+            final Optional<PluginContainer> optPluginContainer = pluginManager.getPlugin(getModId(files.get(i)));
+            try {
+                final ConfigurationNode rootNode = futures.get(i).join();
+                if (optPluginContainer.isPresent()) {
+                    shards.add(new MappingsShard(origin, optPluginContainer.get(), rootNode));
+                }
+            } catch (CompletionException e) {
+                logger.error("Failed to load [" + origin + "], skipping it!", e.getCause());
+            }
+        }
+
+        return shards;
+    }
+
+    private static String getModId(Path file) {
+        final String fileName = file.getFileName().toString();
+        return fileName.substring(0, fileName.length() - EXTENSION.length());
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime counters for the populate listener.
+ *
+ * <p>All counters are striped so generation threads never contend. The listener counts into locals while it walks a populator's
+ * transactions and only touches these counters once per populator and once per chunk, rule counters are kept on the
+ * {@link PopulatorMappingsRegistry.ReplacementEntry} itself.</p>
+ */
+public final class Metrics {
+
+    private final Map<PopulatorType, PopulatorCounters> populators = new ConcurrentHashMap<>();
+    private final LatencyHistogram chunkLatency = new LatencyHistogram();
+    private volatile boolean enabled = true;
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Records the outcome of one populator's transactions within a chunk.
+     *
+     * @param type The populator type
+     * @param seen The amount of transactions the populator made
+     * @param replaced The amount of those that were replaced
+     * @param rejected The amount of those whose state no rule for the populator replaces, rejected before resolving any rule
+     */
+    public void recordPopulator(PopulatorType type, int seen, int replaced, int rejected) {
+        final PopulatorCounters counters = getCounters(type);
+        counters.seen.add(seen);
+        counters.replaced.add(replaced);
+        counters.rejected.add(rejected);
+    }
+
+    /**
+     * Records a populator whose transactions within a chunk were skipped without looking at them, as no rule applies to it.
+     *
+     * @param type The populator type
+     * @param seen The amount of transactions the populator made
+     */
+    public void recordSkippedPopulator(PopulatorType type, int seen) {
+        final PopulatorCounters counters = getCounters(type);
+        counters.seen.add(seen);
+        counters.skipped.add(seen);
+    }
+
+    private PopulatorCounters getCounters(PopulatorType type) {
+        final PopulatorCounters counters = this.populators.get(type);
+        return counters != null ? counters : this.populators.computeIfAbsent(type, k -> new PopulatorCounters());
+    }
+
+    public void recordChunk(long nanos) {
+        this.chunkLatency.record(nanos);
+    }
+
+    public Map<PopulatorType, PopulatorCounters> getPopulators() {
+        return this.populators;
+    }
+
+    public LatencyHistogram getChunkLatency() {
+        return this.chunkLatency;
+    }
+
+    /**
+     * Resets the populator and chunk counters along with the fired counts of the provided table's rules.
+     *
+     * @param table The table whose rules should be reset
+     */
+    public void reset(ReplacementTable table) {
+        this.populators.clear();
+        this.chunkLatency.reset();
+        for (Map.Entry<String, PopulatorMappingsRegistry.ReplacementEntry> rule : getRules(table)) {
+            rule.getValue().fired.reset();
+        }
+    }
+
+    /**
+     * Gets the rules of the provided table, most fired first.
+     *
+     * @param table The table
+     * @return The rules paired with where they are configured: the populator id, "all" or the conditions
+     */
+    public static List<Map.Entry<String, PopulatorMappingsRegistry.ReplacementEntry>> getRulesByFired(ReplacementTable table) {
+        final List<Map.Entry<String, PopulatorMappingsRegistry.ReplacementEntry>> rules = getRules(table);
+        rules.sort(Comparator.comparingLong(entry -> -entry.getValue().fired.sum()));
+        return rules;
+    }
+
+    /**
+     * Gets the rules of the provided table in the order they are configured.
+     *
+     * @param table The table
+     * @return The rules paired with where they are configured: the populator id, "all" or the conditions
+     */
+    public static List<Map.Entry<String, PopulatorMappingsRegistry.ReplacementEntry>> getRules(ReplacementTable table) {
+        final List<Map.Entry<String, PopulatorMappingsRegistry.ReplacementEntry>> rules = new ArrayList<>();
+        for (Map.Entry<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> entry : table.getPopulatorRules().entrySet()) {
+            for (PopulatorMappingsRegistry.ReplacementEntry rule : entry.getValue()) {
+                rules.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey().getId(), rule));
+            }
+        }
+        for (PopulatorMappingsRegistry.ReplacementEntry rule : table.getAllRules()) {
+            rules.add(new AbstractMap.SimpleImmutableEntry<>("all", rule));
+        }
+        if (table.getConditionalRules() != null) {
+            for (ConditionalRules.Rule conditionalRule : table.getConditionalRules().getRules()) {
+                for (PopulatorMappingsRegistry.ReplacementEntry rule : conditionalRule.entries) {
+                    rules.add(new AbstractMap.SimpleImmutableEntry<>(conditionalRule.toString(), rule));
+                }
+            }
+        }
+
+        return rules;
+    }
+
+    /**
+     * Writes the current counters into the provided node.
+     *
+     * @param rootNode The node to write to
+     * @param table The table whose rules should be included
+     */
+    public void write(ConfigurationNode rootNode, ReplacementTable table) {
+        rootNode.getNode("timestamp").setValue(System.currentTimeMillis());
+        for (Map.Entry<PopulatorType, PopulatorCounters> entry : this.populators.entrySet()) {
+            final ConfigurationNode populatorNode = rootNode.getNode("populators", entry.getKey().getId());
+            populatorNode.getNode("seen").setValue(entry.getValue().seen.sum());
+            populatorNode.getNode("replaced").setValue(entry.getValue().replaced.sum());
+            populatorNode.getNode("skipped").setValue(entry.getValue().skipped.sum());
+            populatorNode.getNode("rejected").setValue(entry.getValue().rejected.sum());
+        }
+
+        for (Map.Entry<String, PopulatorMappingsRegistry.ReplacementEntry> rule : getRulesByFired(table)) {
+            rootNode.getNode("rules", rule.getKey(), rule.getValue().toString())
+                    .setValue(rule.getValue().fired.sum());
+        }
+
+        final ConfigurationNode latencyNode = rootNode.getNode("chunks");
+        latencyNode.getNode("count").setValue(this.chunkLatency.getCount());
+        latencyNode.getNode("mean-nanos").setValue(this.chunkLatency.getMean());
+        latencyNode.getNode("p50-nanos").setValue(this.chunkLatency.getPercentile(50));
+        latencyNode.getNode("p99-nanos").setValue(this.chunkLatency.getPercentile(99));
+        latencyNode.getNode("max-nanos").setValue(this.chunkLatency.getMax());
+    }
+
+    public static final class PopulatorCounters {
+
+        public final LongAdder seen = new LongAdder(), replaced = new LongAdder();
+        // Transactions of chunks where no rule applied to the populator, and ones rejected by their state
+        public final LongAdder skipped = new LongAdder(), rejected = new LongAdder();
+    }
+
+    /**
+     * A histogram with power of two buckets, good to within a factor of two which is plenty to spot tick spikes.
+     */
+    public static final class LatencyHistogram {
+
+        private static final int BUCKETS = 64;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder(), total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        LatencyHistogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            this.buckets[BUCKETS - 1 - Long.numberOfLeadingZeros(Math.max(nanos, 1))].increment();
+            this.count.increment();
+            this.total.add(nanos);
+            this.max.accumulate(nanos);
+        }
+
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        public long getMean() {
+            final long count = this.count.sum();
+            return count == 0 ? 0 : this.total.sum() / count;
+        }
+
+        public long getMax() {
+            return this.max.get();
+        }
+
+        /**
+         * Gets the upper bound of the bucket the provided percentile falls in.
+         *
+         * @param percentile The percentile, between 0 and 100
+         * @return The latency in nanoseconds
+         */
+        public long getPercentile(double percentile) {
+            final long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = this.buckets[i].sum();
+                count += counts[i];
+            }
+
+            final long rank = (long) Math.ceil(count * percentile / 100d);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Math.min((2L << i) - 1, getMax());
+                }
+            }
+
+            return 0;
+        }
+
+        void reset() {
+            for (LongAdder bucket : this.buckets) {
+                bucket.reset();
+            }
+            this.count.reset();
+            this.total.reset();
+            this.max.reset();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import org.slf4j.Logger;
+import org.spongepowered.api.plugin.PluginContainer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/**
+ * One mod's section of a mappings file, either of blockstates.yml/populators.yml or of a file in mappings.d.
+ */
+final class ModSection {
+
+    final String origin;
+    final PluginContainer container;
+    final ConfigurationNode node;
+
+    ModSection(String origin, PluginContainer container, ConfigurationNode node) {
+        this.origin = origin;
+        this.container = container;
+        this.node = node;
+    }
+
+    /**
+     * Gets the key the compiled form of this section is cached under between reloads.
+     *
+     * @return The key
+     */
+    String getKey() {
+        return this.origin + "/" + this.container.getId();
+    }
+
+    /**
+     * Compiles the provided sections on the common fork-join pool. A section that fails is logged and skipped so it cannot hold back the
+     * others.
+     *
+     * @param sections The sections
+     * @param compiler The function compiling a single section
+     * @param logger The logger to report failures to
+     * @param <T> The compiled type
+     * @return The compiled sections in the order they were provided, null for those that failed
+     */
+    static <T> List<T> compileInParallel(List<ModSection> sections, Function<ModSection, T> compiler, Logger logger) {
+        final List<CompletableFuture<T>> futures = new ArrayList<>(sections.size());
+        for (ModSection section : sections) {
+            futures.add(CompletableFuture.supplyAsync(() -> compiler.apply(section), ForkJoinPool.commonPool()));
+        }
+
+        final List<T> compiled = new ArrayList<>(sections.size());
+        for (int i = 0; i < sections.size(); i++) {
+            try {
+                compiled.add(futures.get(i).join());
+            } catch (CompletionException e) {
+                logger.error("Failed to compile Mod [" + sections.get(i).container.getId() + "] in [" + sections.get(i).origin + "], skipping "
+                        + "it!", e.getCause());
+                compiled.add(null);
+            }
+        }
+
+        return compiled;
+    }
+}
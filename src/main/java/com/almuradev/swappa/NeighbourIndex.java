@@ -0,0 +1,103 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.flowpowered.math.vector.Vector3i;
+import org.spongepowered.api.block.BlockTransaction;
+import org.spongepowered.api.event.world.chunk.PopulateChunkEvent;
+import org.spongepowered.api.world.World;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The states of one populated chunk by position, for rules that look at the blocks around the one they replace.
+ *
+ * <p>The index is built once per event from the states the populators left behind, a later transaction at the same position wins. Rules
+ * see the chunk as populated, before any replacement, so the outcome does not depend on the order of the transactions. Positions that no
+ * populator touched are read from the world the first time they are asked for, as long as their chunk is loaded, and kept for the rest
+ * of the event. Neighbours in unloaded chunks or outside the world's height are unknown and match nothing.</p>
+ */
+final class NeighbourIndex {
+
+    static final int[][] FACES = {{1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}, {0, 0, 1}, {0, 0, -1}};
+    private static final int MAX_Y = 255;
+    // The table is only used by one event at a time per thread, so it is kept instead of growing a new one for every chunk. It shrinks
+    // again after an unusually large chunk
+    private static final ThreadLocal<PositionTable> TABLES = ThreadLocal.withInitial(PositionTable::new);
+
+    private final World world;
+    private final BlockStatePalette palette;
+    private final PositionTable states = TABLES.get();
+    private int lastChunkX = Integer.MIN_VALUE, lastChunkZ = Integer.MIN_VALUE;
+    private boolean lastChunkLoaded;
+
+    NeighbourIndex(PopulateChunkEvent.Post event, BlockStatePalette palette) {
+        this.world = event.getTargetChunk().getWorld();
+        this.palette = palette;
+
+        int size = 0;
+        for (List<BlockTransaction> transactions : event.getPopulatedTransactions().values()) {
+            size += transactions.size();
+        }
+        this.states.clear(size);
+        for (Map.Entry<PopulatorType, List<BlockTransaction>> entry : event.getPopulatedTransactions().entrySet()) {
+            for (BlockTransaction transaction : entry.getValue()) {
+                final Vector3i position = transaction.getFinalReplacement().getPosition();
+                this.states.put(ReplacementJournal.pack(position.getX(), position.getY(), position.getZ()), palette.getId(transaction
+                        .getFinalReplacement().getState()));
+            }
+        }
+    }
+
+    /**
+     * Gets the state at the provided position.
+     *
+     * @param x The x coordinate
+     * @param y The y coordinate
+     * @param z The z coordinate
+     * @return The {@link BlockStatePalette} id of the state or {@link BlockStatePalette#UNKNOWN_ID} if it is not known
+     */
+    int getId(int x, int y, int z) {
+        if (y < 0 || y > MAX_Y) {
+            return BlockStatePalette.UNKNOWN_ID;
+        }
+
+        final long packed = ReplacementJournal.pack(x, y, z);
+        int id = this.states.get(packed);
+        if (id == PositionTable.ABSENT) {
+            if (x >> 4 != this.lastChunkX || z >> 4 != this.lastChunkZ) {
+                this.lastChunkX = x >> 4;
+                this.lastChunkZ = z >> 4;
+                this.lastChunkLoaded = this.world.getChunk(this.lastChunkX, 0, this.lastChunkZ).isPresent();
+            }
+            id = this.lastChunkLoaded ? this.palette.getId(this.world.getBlock(x, y, z)) : BlockStatePalette.UNKNOWN_ID;
+            this.states.put(packed, id);
+        }
+
+        return id;
+    }
+}
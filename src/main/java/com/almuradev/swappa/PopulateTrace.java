@@ -0,0 +1,434 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.flowpowered.math.vector.Vector3i;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.block.BlockTransaction;
+import org.spongepowered.api.block.BlockType;
+import org.spongepowered.api.block.trait.BlockTrait;
+import org.spongepowered.api.event.world.chunk.PopulateChunkEvent;
+import org.spongepowered.api.world.World;
+import org.spongepowered.api.world.biome.BiomeType;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * A binary trace of the {@link PopulateChunkEvent.Post} events Swappa saw, to replay real workloads away from the server.
+ *
+ * <p>The trace starts with {@link #MAGIC} and {@link #VERSION} and is followed by tagged records:</p>
+ *
+ * <ul>
+ *     <li>{@link #TAG_BLOCK_TYPE}: id, block id, and per trait its name and possible values</li>
+ *     <li>{@link #TAG_STATE}: id, block type id and the index of each trait's value</li>
+ *     <li>{@link #TAG_POPULATOR}: id and populator id</li>
+ *     <li>{@link #TAG_BIOME}: id and biome id</li>
+ *     <li>{@link #TAG_WORLD}: id, name, dimension type id and seed</li>
+ *     <li>{@link #TAG_CHUNK}: world id, chunk x and z, the biome of every column a transaction touched, then per populator its id and
+ *     per transaction the packed position, original state id and populated state id</li>
+ * </ul>
+ *
+ * <p>Every id is defined before it is first used. The populated state is what the populator placed, before Swappa or any later
+ * listener changed it. States unknown to the palette are written as -1.</p>
+ */
+public final class PopulateTrace {
+
+    static final int MAGIC = 0x53575054, VERSION = 1;
+    static final byte TAG_BLOCK_TYPE = 1, TAG_STATE = 2, TAG_POPULATOR = 3, TAG_BIOME = 4, TAG_WORLD = 5, TAG_CHUNK = 6;
+    private static final Logger logger = LoggerFactory.getLogger(Swappa.PLUGIN_ID + "-trace");
+
+    private PopulateTrace() {
+    }
+
+    /**
+     * Reads a trace.
+     *
+     * @param path The trace file
+     * @param visitor Receives the records in the order they were written
+     */
+    public static void read(Path path, Visitor visitor) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(path + " is not a populate trace");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(path + " is version [" + version + "], expected [" + VERSION + "]");
+            }
+
+            while (true) {
+                final int tag = in.read();
+                switch (tag) {
+                    case -1:
+                        return;
+                    case TAG_BLOCK_TYPE: {
+                        final int id = in.readInt();
+                        final String blockId = in.readUTF();
+                        final String[] traits = new String[in.readUnsignedShort()];
+                        final String[][] values = new String[traits.length][];
+                        for (int i = 0; i < traits.length; i++) {
+                            traits[i] = in.readUTF();
+                            values[i] = new String[in.readUnsignedShort()];
+                            for (int j = 0; j < values[i].length; j++) {
+                                values[i][j] = in.readUTF();
+                            }
+                        }
+                        visitor.blockType(id, blockId, traits, values);
+                        break;
+                    }
+                    case TAG_STATE: {
+                        final int id = in.readInt();
+                        final int blockType = in.readInt();
+                        final int[] values = new int[in.readUnsignedShort()];
+                        for (int i = 0; i < values.length; i++) {
+                            values[i] = in.readUnsignedShort();
+                        }
+                        visitor.state(id, blockType, values);
+                        break;
+                    }
+                    case TAG_POPULATOR:
+                        visitor.populator(in.readInt(), in.readUTF());
+                        break;
+                    case TAG_BIOME:
+                        visitor.biome(in.readInt(), in.readUTF());
+                        break;
+                    case TAG_WORLD:
+                        visitor.world(in.readInt(), in.readUTF(), in.readUTF(), in.readLong());
+                        break;
+                    case TAG_CHUNK: {
+                        final int world = in.readInt(), chunkX = in.readInt(), chunkZ = in.readInt();
+                        final long[] columns = new long[in.readInt()];
+                        final int[] columnBiomes = new int[columns.length];
+                        for (int i = 0; i < columns.length; i++) {
+                            columns[i] = in.readLong();
+                            columnBiomes[i] = in.readInt();
+                        }
+                        final int[] populators = new int[in.readUnsignedShort()];
+                        final long[][] positions = new long[populators.length][];
+                        final int[][] originals = new int[populators.length][], populated = new int[populators.length][];
+                        for (int i = 0; i < populators.length; i++) {
+                            populators[i] = in.readInt();
+                            final int transactions = in.readInt();
+                            positions[i] = new long[transactions];
+                            originals[i] = new int[transactions];
+                            populated[i] = new int[transactions];
+                            for (int j = 0; j < transactions; j++) {
+                                positions[i][j] = in.readLong();
+                                originals[i][j] = in.readInt();
+                                populated[i][j] = in.readInt();
+                            }
+                        }
+                        visitor.chunk(world, chunkX, chunkZ, columns, columnBiomes, populators, positions, originals, populated);
+                        break;
+                    }
+                    default:
+                        throw new IOException(path + " has an unknown record [" + tag + "]");
+                }
+            }
+        } catch (EOFException e) {
+            // The server stopped in the middle of a chunk, everything before it is still usable
+            logger.warn("Potential truncated trace [" + path + "], the last chunk is ignored.");
+        }
+    }
+
+    /**
+     * Receives the records of a trace. Positions are packed with {@link ReplacementJournal#pack(int, int, int)}, columns the same way
+     * with a y of 0.
+     */
+    public interface Visitor {
+
+        void blockType(int id, String blockId, String[] traits, String[][] values);
+
+        void state(int id, int blockType, int[] values);
+
+        void populator(int id, String populatorId);
+
+        void biome(int id, String biomeId);
+
+        void world(int id, String name, String dimensionTypeId, long seed);
+
+        void chunk(int world, int chunkX, int chunkZ, long[] columns, int[] columnBiomes, int[] populators, long[][] positions,
+                int[][] originals, int[][] populated);
+    }
+
+    /**
+     * Captures events into a trace. Events are encoded on the thread that populates, one at a time, and written on the provided
+     * executor.
+     */
+    public static final class Recorder {
+
+        private final BlockStatePalette palette;
+        private final Executor executor;
+        private final OutputStream out;
+        private final int maxChunks;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1 << 16);
+        private final DataOutputStream data = new DataOutputStream(this.buffer);
+        private final Map<BlockType, Integer> blockTypes = new IdentityHashMap<>();
+        private final Map<BlockState, Integer> states = new IdentityHashMap<>();
+        private final Map<PopulatorType, Integer> populators = new IdentityHashMap<>();
+        private final Map<BiomeType, Integer> biomes = new IdentityHashMap<>();
+        private final Map<UUID, Integer> worlds = new HashMap<>();
+        private final Map<Long, Integer> columns = new LinkedHashMap<>();
+        private volatile IOException failure;
+        private int chunks, stateCount;
+        private boolean closed;
+        private long bytes;
+
+        /**
+         * @param path The trace file, replaced if it exists
+         * @param palette The palette to describe block states with
+         * @param executor The executor to write on, must run tasks one at a time in order
+         * @param maxChunks How many chunks to record at most
+         */
+        public Recorder(Path path, BlockStatePalette palette, Executor executor, int maxChunks) throws IOException {
+            this.palette = palette;
+            this.executor = executor;
+            this.maxChunks = maxChunks;
+            this.out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16);
+            this.data.writeInt(MAGIC);
+            this.data.writeInt(VERSION);
+            flush();
+        }
+
+        /**
+         * Records an event. Must be called before anything changed its transactions.
+         *
+         * @param event The event
+         * @return Whether more chunks may be recorded
+         */
+        public synchronized boolean record(PopulateChunkEvent.Post event) {
+            if (this.closed || this.chunks >= this.maxChunks || this.failure != null) {
+                return false;
+            }
+
+            try {
+                final World world = event.getTargetChunk().getWorld();
+                final int worldId = defineWorld(world);
+                // Columns are resolved up front so their biomes are defined before the chunk record
+                this.columns.clear();
+                for (List<BlockTransaction> transactions : event.getPopulatedTransactions().values()) {
+                    int lastX = Integer.MIN_VALUE, lastZ = Integer.MIN_VALUE;
+                    for (BlockTransaction transaction : transactions) {
+                        final Vector3i position = transaction.getFinalReplacement().getPosition();
+                        if (position.getX() != lastX || position.getZ() != lastZ) {
+                            lastX = position.getX();
+                            lastZ = position.getZ();
+                            final Long column = ReplacementJournal.pack(lastX, 0, lastZ);
+                            if (!this.columns.containsKey(column)) {
+                                this.columns.put(column, defineBiome(world.getBiome(lastX, lastZ)));
+                            }
+                        }
+                        defineState(transaction.getOriginal().getState());
+                        defineState(transaction.getFinalReplacement().getState());
+                    }
+                }
+                for (PopulatorType populatorType : event.getPopulatedTransactions().keySet()) {
+                    definePopulator(populatorType);
+                }
+
+                this.data.writeByte(TAG_CHUNK);
+                this.data.writeInt(worldId);
+                this.data.writeInt(event.getTargetChunk().getPosition().getX());
+                this.data.writeInt(event.getTargetChunk().getPosition().getZ());
+                this.data.writeInt(this.columns.size());
+                for (Map.Entry<Long, Integer> column : this.columns.entrySet()) {
+                    this.data.writeLong(column.getKey());
+                    this.data.writeInt(column.getValue());
+                }
+                this.data.writeShort(event.getPopulatedTransactions().size());
+                for (Map.Entry<PopulatorType, List<BlockTransaction>> entry : event.getPopulatedTransactions().entrySet()) {
+                    this.data.writeInt(this.populators.get(entry.getKey()));
+                    this.data.writeInt(entry.getValue().size());
+                    for (BlockTransaction transaction : entry.getValue()) {
+                        final Vector3i position = transaction.getFinalReplacement().getPosition();
+                        this.data.writeLong(ReplacementJournal.pack(position.getX(), position.getY(), position.getZ()));
+                        this.data.writeInt(this.states.get(transaction.getOriginal().getState()));
+                        this.data.writeInt(this.states.get(transaction.getFinalReplacement().getState()));
+                    }
+                }
+            } catch (IOException e) {
+                // Writing to memory does not fail
+                throw new IllegalStateException(e);
+            }
+
+            flush();
+            return ++this.chunks < this.maxChunks;
+        }
+
+        private void flush() {
+            final byte[] bytes = this.buffer.toByteArray();
+            this.buffer.reset();
+            this.bytes += bytes.length;
+            this.executor.execute(() -> {
+                if (this.failure != null) {
+                    return;
+                }
+                try {
+                    this.out.write(bytes);
+                } catch (IOException e) {
+                    logger.error("Failed to write the populate trace, recording stopped!", e);
+                    this.failure = e;
+                }
+            });
+        }
+
+        private int defineWorld(World world) throws IOException {
+            Integer id = this.worlds.get(world.getUniqueId());
+            if (id == null) {
+                id = this.worlds.size();
+                this.data.writeByte(TAG_WORLD);
+                this.data.writeInt(id);
+                this.data.writeUTF(world.getName());
+                this.data.writeUTF(world.getDimension().getType().getId());
+                this.data.writeLong(world.getProperties().getSeed());
+                this.worlds.put(world.getUniqueId(), id);
+            }
+            return id;
+        }
+
+        private int defineBiome(BiomeType biome) throws IOException {
+            Integer id = this.biomes.get(biome);
+            if (id == null) {
+                id = this.biomes.size();
+                this.data.writeByte(TAG_BIOME);
+                this.data.writeInt(id);
+                this.data.writeUTF(biome.getId());
+                this.biomes.put(biome, id);
+            }
+            return id;
+        }
+
+        private void definePopulator(PopulatorType populatorType) throws IOException {
+            if (!this.populators.containsKey(populatorType)) {
+                this.data.writeByte(TAG_POPULATOR);
+                this.data.writeInt(this.populators.size());
+                this.data.writeUTF(populatorType.getId());
+                this.populators.put(populatorType, this.populators.size());
+            }
+        }
+
+        private void defineState(BlockState state) throws IOException {
+            if (this.states.containsKey(state)) {
+                return;
+            }
+
+            final int paletteId = this.palette.getId(state);
+            if (paletteId == BlockStatePalette.UNKNOWN_ID) {
+                this.states.put(state, -1);
+                return;
+            }
+
+            final BlockType type = state.getType();
+            final BlockTrait<?>[] traits = this.palette.getTraits(type);
+            Integer typeId = this.blockTypes.get(type);
+            if (typeId == null) {
+                typeId = this.blockTypes.size();
+                this.data.writeByte(TAG_BLOCK_TYPE);
+                this.data.writeInt(typeId);
+                this.data.writeUTF(type.getId());
+                this.data.writeShort(traits.length);
+                for (BlockTrait<?> trait : traits) {
+                    this.data.writeUTF(trait.getName());
+                    this.data.writeShort(trait.getPossibleValues().size());
+                    for (Object value : trait.getPossibleValues()) {
+                        this.data.writeUTF(value.toString());
+                    }
+                }
+                this.blockTypes.put(type, typeId);
+            }
+
+            final int id = this.stateCount++;
+            final Object[] values = this.palette.getTraitValues(paletteId);
+            this.data.writeByte(TAG_STATE);
+            this.data.writeInt(id);
+            this.data.writeInt(typeId);
+            this.data.writeShort(traits.length);
+            for (int i = 0; i < traits.length; i++) {
+                int index = 0;
+                for (Object value : traits[i].getPossibleValues()) {
+                    if (value.equals(values[i])) {
+                        break;
+                    }
+                    index++;
+                }
+                this.data.writeShort(index);
+            }
+            this.states.put(state, id);
+        }
+
+        public int getChunks() {
+            return this.chunks;
+        }
+
+        /**
+         * Flushes and closes the trace once everything recorded so far is written.
+         *
+         * @return The future that completes once the trace is closed
+         */
+        public synchronized CompletableFuture<Void> close() {
+            if (this.closed) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            this.closed = true;
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    this.out.close();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+                if (this.failure != null) {
+                    throw new CompletionException(this.failure);
+                }
+            }, this.executor);
+        }
+
+        @Override
+        public String toString() {
+            return "recorded [" + this.chunks + "] of at most [" + this.maxChunks + "] chunks, [" + this.bytes / 1024 + "] KiB";
+        }
+    }
+}
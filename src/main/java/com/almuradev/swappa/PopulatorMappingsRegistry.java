@@ -24,137 +24,455 @@
  */
 package com.almuradev.swappa;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import ninja.leaping.configurate.ConfigurationNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.spongepowered.api.block.BlockState;
 import org.spongepowered.api.block.BlockType;
 import org.spongepowered.api.plugin.PluginContainer;
+import org.spongepowered.api.world.DimensionType;
+import org.spongepowered.api.world.biome.BiomeType;
 import org.spongepowered.api.world.gen.PopulatorType;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 public class PopulatorMappingsRegistry {
 
     private static final Logger logger = LoggerFactory.getLogger(Swappa.PLUGIN_ID + "-populators");
-    private static final Map<PluginContainer, Map<PopulatorType, Set<ReplacementEntry>>> REGISTRY_POPULATORS = new HashMap<>();
-    private static final Set<ReplacementEntry> REGISTRY_ALL = new HashSet<>();
+    private static volatile ReplacementTable table = ReplacementTable.EMPTY;
+    private static CompiledSection<List<ReplacementEntry>> allSection;
+    private static CompiledSection<List<ConditionalRules.Rule>> conditionalSection;
+    private static Map<String, CompiledSection<Map<PopulatorType, List<ReplacementEntry>>>> sections = new HashMap<>();
 
-    private static final String SECTION_ALL = "all", SECTION_POPULATORS = "populators";
+    private static final String SECTION_ALL = "all", SECTION_POPULATORS = "populators", SECTION_CONDITIONAL = "conditional";
     private static final PluginContainer PLUGIN_MINECRAFT = Swappa.instance.pluginManager.getPlugin("minecraft").get();
 
-    public static Optional<ReplacementEntry> getEntry(PopulatorType type, BlockState populatedBlockState) {
-        for (Map.Entry<PluginContainer, Map<PopulatorType, Set<ReplacementEntry>>> pluginContainerEntry : REGISTRY_POPULATORS.entrySet()) {
-            for (Map.Entry<PopulatorType, Set<ReplacementEntry>> populatorTypeEntry : pluginContainerEntry.getValue().entrySet()) {
-                if (populatorTypeEntry.getKey().equals(type)) {
-                    final Set<ReplacementEntry> replacementEntries = populatorTypeEntry.getValue();
-                    if (replacementEntries != null) {
-                        for (ReplacementEntry replacementEntry : replacementEntries) {
-                            final BlockState originalReplacementEntry = replacementEntry.originalBlockState;
-
-                            if (originalReplacementEntry.getType().equals(populatedBlockState.getType())) {
-                                return Optional.of(replacementEntry);
-                            }
-                        }
-                    }
+    public static ReplacementTable getTable() {
+        return table;
+    }
 
-                    return Optional.empty();
+    /**
+     * Publishes a table. Rules that are listed the same way as in the previous table, with the same origin, pattern and replacement, but
+     * were compiled again take over the fired count of the rule they replace. Sections reused by {@link #compile} keep their rules as is,
+     * this covers the rest, such as a table read from {@link MappingsCache} at startup being replaced by the first reload.
+     *
+     * @param table The table
+     */
+    static void setTable(ReplacementTable table) {
+        final ReplacementTable previous = PopulatorMappingsRegistry.table;
+        if (previous != table) {
+            final Map<String, ReplacementEntry> previousRules = new HashMap<>();
+            for (Map.Entry<String, ReplacementEntry> rule : Metrics.getRules(previous)) {
+                previousRules.putIfAbsent(rule.getValue().describe(), rule.getValue());
+            }
+            for (Map.Entry<String, ReplacementEntry> rule : Metrics.getRules(table)) {
+                final ReplacementEntry previousRule = previousRules.remove(rule.getValue().describe());
+                if (previousRule != null && previousRule != rule.getValue()) {
+                    rule.getValue().fired.add(previousRule.fired.sum());
                 }
             }
         }
+        PopulatorMappingsRegistry.table = table;
+    }
 
-        return Optional.empty();
+    /**
+     * Looks up the rule for a single state. The listener reads the arrays of {@link #getTable()} directly instead, this is meant for
+     * callers outside of the populate hot path.
+     *
+     * @param type The populator type
+     * @param populatedBlockState The state the populator placed
+     * @return The rule, if any
+     */
+    public static Optional<ReplacementEntry> getEntry(PopulatorType type, BlockState populatedBlockState) {
+        return Optional.ofNullable(table.get(type, populatedBlockState));
     }
 
     public static Optional<ReplacementEntry> getEntry(BlockState populatedBlockState) {
-        for (ReplacementEntry replacementEntry : REGISTRY_ALL) {
-            if (replacementEntry.originalBlockState.getType().equals(populatedBlockState.getType())) {
-                return Optional.of(replacementEntry);
+        return Optional.ofNullable(table.get(populatedBlockState));
+    }
+
+    /**
+     * Compiles the populator mappings into a {@link ReplacementTable} without publishing it. Mod sections are compiled in parallel and
+     * merged in a fixed order, populators.yml first and then mappings.d by file name, so rules from populators.yml take precedence. Sections
+     * whose raw values are unchanged since the previous compile, and that were resolved against the same blockstate mappings, are reused
+     * as is.
+     *
+     * @param rootNode The root of populators.yml
+     * @param shards The files of mappings.d
+     * @param mappings The blockstate mappings to resolve mapped names against
+     * @param palette The palette to index the table by
+     * @return The compiled table
+     */
+    static ReplacementTable compile(ConfigurationNode rootNode, List<MappingsShard> shards, Map<PluginContainer, Map<String,
+            BlockStatePattern>> mappings, BlockStatePalette palette) {
+        return compile(rootNode, shards, mappings, palette, PopulatorMappingsRegistry.logger);
+    }
+
+    /**
+     * Compiles the populator mappings like {@link #compile(ConfigurationNode, List, Map, BlockStatePalette)}, reporting the problems of the
+     * files to the given logger.
+     *
+     * @param rootNode The root of populators.yml
+     * @param shards The files of mappings.d
+     * @param mappings The blockstate mappings to resolve mapped names against
+     * @param palette The palette to index the table by
+     * @param logger The logger the problems of the files are reported to
+     * @return The compiled table
+     */
+    static synchronized ReplacementTable compile(ConfigurationNode rootNode, List<MappingsShard> shards, Map<PluginContainer, Map<String,
+            BlockStatePattern>> mappings, BlockStatePalette palette, Logger logger) {
+        return compile(rootNode, shards, mappings, palette, false, logger);
+    }
+
+    /**
+     * Compiles a candidate populators.yml for {@link ShadowMode}. Nothing is reused from or remembered for the live mappings, so the
+     * candidate's rules are always distinct objects from the live ones.
+     *
+     * @param rootNode The root of the candidate file
+     * @param shards The files of mappings.d
+     * @param mappings The blockstate mappings to resolve mapped names against
+     * @param palette The palette to index the table by
+     * @return The compiled table
+     */
+    static synchronized ReplacementTable compileCandidate(ConfigurationNode rootNode, List<MappingsShard> shards, Map<PluginContainer,
+            Map<String, BlockStatePattern>> mappings, BlockStatePalette palette) {
+        return compile(rootNode, shards, mappings, palette, true, PopulatorMappingsRegistry.logger);
+    }
+
+    private static ReplacementTable compile(ConfigurationNode rootNode, List<MappingsShard> shards, Map<PluginContainer, Map<String,
+            BlockStatePattern>> mappings, BlockStatePalette palette, boolean candidate, Logger logger) {
+        final ConfigurationNode allNode = rootNode.getNode(PopulatorMappingsRegistry.SECTION_ALL);
+        CompiledSection<List<ReplacementEntry>> allSection = candidate ? null : PopulatorMappingsRegistry.allSection;
+        if (allSection == null || !allSection.isCurrent(allNode.getValue(), mappings)) {
+            allSection = new CompiledSection<>(allNode.getValue(), mappings, compileAll(allNode, mappings, logger));
+        }
+        final ConfigurationNode conditionalNode = rootNode.getNode(PopulatorMappingsRegistry.SECTION_CONDITIONAL);
+        CompiledSection<List<ConditionalRules.Rule>> conditionalSection = candidate ? null : PopulatorMappingsRegistry.conditionalSection;
+        if (conditionalSection == null || !conditionalSection.isCurrent(conditionalNode.getValue(), mappings)) {
+            conditionalSection = new CompiledSection<>(conditionalNode.getValue(), mappings, compileConditional(conditionalNode, mappings, logger));
+        }
+        final Map<String, CompiledSection<Map<PopulatorType, List<ReplacementEntry>>>> sections = candidate ? Collections.emptyMap()
+                : PopulatorMappingsRegistry.sections;
+
+        final List<ModSection> modSections = new ArrayList<>();
+        for (Map.Entry<Object, ? extends ConfigurationNode> modEntry : rootNode.getNode(PopulatorMappingsRegistry.SECTION_POPULATORS)
+                .getChildrenMap().entrySet()) {
+            final String modId = (String) modEntry.getKey();
+            final Optional<PluginContainer> optPluginContainer = Swappa.instance.pluginManager.getPlugin(modId);
+            if (!optPluginContainer.isPresent()) {
+                logger.warn("Potential Mod [" + modId + "] is not loaded (did you forget it in /mods ?)");
+                continue;
+            }
+
+            modSections.add(new ModSection(Swappa.POPULATORS_FILE, optPluginContainer.get(), modEntry.getValue()));
+        }
+        for (MappingsShard shard : shards) {
+            if (shard.populators.node.hasMapChildren()) {
+                modSections.add(shard.populators);
             }
         }
 
-        return Optional.empty();
+        final List<CompiledSection<Map<PopulatorType, List<ReplacementEntry>>>> compiledSections = ModSection.compileInParallel(modSections,
+                modSection -> {
+                    final Object source = modSection.node.getValue();
+                    final CompiledSection<Map<PopulatorType, List<ReplacementEntry>>> section = sections.get(modSection.getKey());
+                    return section != null && section.isCurrent(source, mappings) ? section : new CompiledSection<>(source, mappings,
+                            compileMod(modSection.container, modSection.node, mappings, logger));
+                }, logger);
+
+        final Map<String, CompiledSection<Map<PopulatorType, List<ReplacementEntry>>>> nextSections = new HashMap<>();
+        final Map<PopulatorType, List<ReplacementEntry>> populatorEntries = new LinkedHashMap<>();
+        for (int i = 0; i < modSections.size(); i++) {
+            final CompiledSection<Map<PopulatorType, List<ReplacementEntry>>> section = compiledSections.get(i);
+            if (section == null) {
+                continue;
+            }
+
+            nextSections.put(modSections.get(i).getKey(), section);
+            for (Map.Entry<PopulatorType, List<ReplacementEntry>> entry : section.compiled.entrySet()) {
+                final List<ReplacementEntry> entries = populatorEntries.get(entry.getKey());
+                populatorEntries.put(entry.getKey(), entries == null ? entry.getValue() : ImmutableList.<ReplacementEntry>builder().addAll(entries)
+                        .addAll(entry.getValue()).build());
+            }
+        }
+        if (!candidate) {
+            PopulatorMappingsRegistry.allSection = allSection;
+            PopulatorMappingsRegistry.conditionalSection = conditionalSection;
+            PopulatorMappingsRegistry.sections = nextSections;
+        }
+
+        return ReplacementTable.compile(palette, populatorEntries, allSection.compiled, conditionalSection.compiled);
     }
 
-    public static void load() {
-        REGISTRY_ALL.clear();
-        REGISTRY_POPULATORS.clear();
+    private static List<ReplacementEntry> compileAll(ConfigurationNode allNode, Map<PluginContainer, Map<String, BlockStatePattern>> mappings,
+            Logger logger) {
+        final List<ReplacementEntry> allEntries = new ArrayList<>();
 
-        for (Map.Entry<Object, ? extends ConfigurationNode> blockStateMappingEntry : Swappa.instance.populatorsRootNode.getNode
-                (PopulatorMappingsRegistry.SECTION_ALL).getChildrenMap().entrySet()) {
+        for (Map.Entry<Object, ? extends ConfigurationNode> blockStateMappingEntry : allNode.getChildrenMap().entrySet()) {
             final String originalBlockStateMapping = (String) blockStateMappingEntry.getKey();
-            final Optional<BlockState> optOriginalBlockState = lookupBlockState(originalBlockStateMapping);
+            final Optional<BlockStatePattern> optOriginalBlockState = lookupBlockState(mappings, originalBlockStateMapping);
             if (!optOriginalBlockState.isPresent()) {
                 logger.warn("Original All BlockState [" + originalBlockStateMapping + "] is not a registered BlockState nor a mapping!");
                 continue;
             }
+            if (blockStateMappingEntry.getValue().hasMapChildren()) {
+                compileWeighted(mappings, blockStateMappingEntry.getValue(), "[All]", logger).ifPresent(weighted -> allEntries.add(
+                        new ReplacementEntry(ReplacementEntry.ORIGIN_ALL, optOriginalBlockState.get(), weighted)));
+                continue;
+            }
             final String replacementBlockStateMapping = blockStateMappingEntry.getValue().getString("");
-            final Optional<BlockState> optReplacementBlockState = lookupBlockState(replacementBlockStateMapping);
+            final Optional<BlockStatePattern> optReplacementBlockState = lookupBlockState(mappings, replacementBlockStateMapping);
             if (!optReplacementBlockState.isPresent()) {
                 logger.warn("Replacement BlockState [" + replacementBlockStateMapping + "] for [All] is not a registered BlockState nor a mapping!");
                 continue;
             }
-            REGISTRY_ALL.add(new ReplacementEntry(optOriginalBlockState.get(), optReplacementBlockState.get()));
+            allEntries.add(new ReplacementEntry(ReplacementEntry.ORIGIN_ALL, optOriginalBlockState.get(), optReplacementBlockState.get().state));
         }
 
-        for (Map.Entry<Object, ? extends ConfigurationNode> modEntry : Swappa.instance.populatorsRootNode.getNode(
-                PopulatorMappingsRegistry.SECTION_POPULATORS)
-                .getChildrenMap().entrySet()) {
-            final String modId = (String) modEntry.getKey();
-            final Optional<PluginContainer> optPluginContainer = Swappa.instance.pluginManager.getPlugin(modId);
-            if (!optPluginContainer.isPresent()) {
-                logger.warn("Potential Mod [" + modId + "] is not loaded (did you forget it in /mods ?)");
+        return ImmutableList.copyOf(allEntries);
+    }
+
+    private static Map<PopulatorType, List<ReplacementEntry>> compileMod(PluginContainer container, ConfigurationNode modNode,
+            Map<PluginContainer, Map<String, BlockStatePattern>> mappings, Logger logger) {
+        final String modId = container.getId();
+        final Map<PopulatorType, List<ReplacementEntry>> populatorEntries = new LinkedHashMap<>();
+
+        for (Map.Entry<Object, ? extends ConfigurationNode> populatorTypeEntry : modNode.getChildrenMap().entrySet()) {
+            final String populatorTypeId = (String) populatorTypeEntry.getKey();
+            final Optional<PopulatorType> optPopulatorType = Swappa.instance.registry.getType(PopulatorType.class, modId + ":" + populatorTypeId);
+            if (!optPopulatorType.isPresent()) {
+                logger.warn("Potential Populator [" + populatorTypeId + "] for Mod [" + modId + "] is not a valid Populator!");
                 continue;
             }
 
-            for (Map.Entry<Object, ? extends ConfigurationNode> populatorTypeEntry : modEntry.getValue().getChildrenMap().entrySet()) {
-                final String populatorTypeId = (String) populatorTypeEntry.getKey();
-                final Optional<PopulatorType> optPopulatorType = Swappa.instance.registry.getType(PopulatorType.class, modId + ":" + populatorTypeId);
-                if (!optPopulatorType.isPresent()) {
-                    logger.warn("Potential Populator [" + populatorTypeId + "] for Mod [" + modId + "] is not a valid Populator!");
+            final List<ReplacementEntry> populatorReplacementEntries = new ArrayList<>();
+            for (Map.Entry<Object, ? extends ConfigurationNode> blockStateMappingEntry : populatorTypeEntry.getValue().getChildrenMap()
+                    .entrySet()) {
+                final String originalBlockStateMapping = (String) blockStateMappingEntry.getKey();
+                final Optional<BlockStatePattern> optOriginalBlockState = lookupBlockState(mappings, originalBlockStateMapping);
+                if (!optOriginalBlockState.isPresent()) {
+                    logger.warn("Original Populator BlockState [" + originalBlockStateMapping + "] for Populator [" + optPopulatorType.get()
+                            .getId() + "] in Mod [" + modId + "] is not a registered BlockState nor a mapping!");
+                    continue;
+                }
+                if (blockStateMappingEntry.getValue().hasMapChildren()) {
+                    compileWeighted(mappings, blockStateMappingEntry.getValue(), "Populator [" + optPopulatorType.get().getId() + "] in Mod ["
+                            + modId + "]", logger).ifPresent(weighted -> populatorReplacementEntries.add(new ReplacementEntry(optPopulatorType.get()
+                            .getId(), optOriginalBlockState.get(), weighted)));
                     continue;
                 }
+                final String replacementBlockStateMapping = blockStateMappingEntry.getValue().getString("");
+                final Optional<BlockStatePattern> optReplacementBlockState = lookupBlockState(mappings, replacementBlockStateMapping);
+                if (!optReplacementBlockState.isPresent()) {
+                    logger.warn("Replacement BlockState [" + originalBlockStateMapping + "] for Populator [" + optPopulatorType.get()
+                            .getId() + "] in Mod [" + modId + "] is not a registered BlockState nor a mapping!");
+                    continue;
+                }
+
+                populatorReplacementEntries.add(new ReplacementEntry(optPopulatorType.get().getId(), optOriginalBlockState.get(),
+                        optReplacementBlockState.get().state));
+            }
+
+            if (!populatorReplacementEntries.isEmpty()) {
+                populatorEntries.put(optPopulatorType.get(), ImmutableList.copyOf(populatorReplacementEntries));
+            }
+        }
+
+        return ImmutableMap.copyOf(populatorEntries);
+    }
+
+    private static List<ConditionalRules.Rule> compileConditional(ConfigurationNode conditionalNode, Map<PluginContainer, Map<String,
+            BlockStatePattern>> mappings, Logger logger) {
+        final List<ConditionalRules.Rule> rules = new ArrayList<>();
+        final List<? extends ConfigurationNode> ruleNodes = conditionalNode.getChildrenList();
+        for (int index = 0; index < ruleNodes.size(); index++) {
+            final ConfigurationNode ruleNode = ruleNodes.get(index);
+            final String context = "Conditional Rule [" + index + "]";
+            final String origin = ReplacementEntry.ORIGIN_CONDITIONAL + index;
+
+            final List<String> dimensions = getStrings(ruleNode.getNode("dimensions"));
+            for (String dimension : dimensions) {
+                if (!Swappa.instance.registry.getType(DimensionType.class, dimension).isPresent()) {
+                    logger.warn("Potential Dimension [" + dimension + "] for " + context + " is not a registered Dimension!");
+                }
+            }
+
+            final Set<BiomeType> biomes = new LinkedHashSet<>();
+            final List<String> biomeIds = getStrings(ruleNode.getNode("biomes"));
+            for (String biomeId : biomeIds) {
+                final Optional<BiomeType> optBiome = Swappa.instance.registry.getType(BiomeType.class, biomeId);
+                if (optBiome.isPresent()) {
+                    biomes.add(optBiome.get());
+                } else {
+                    logger.warn("Potential Biome [" + biomeId + "] for " + context + " is not a registered Biome!");
+                }
+            }
 
-                final Set<ReplacementEntry> populatorReplacementEntries = new HashSet<>();
-                for (Map.Entry<Object, ? extends ConfigurationNode> blockStateMappingEntry : populatorTypeEntry.getValue().getChildrenMap()
-                        .entrySet()) {
-                    final String originalBlockStateMapping = (String) blockStateMappingEntry.getKey();
-                    final Optional<BlockState> optOriginalBlockState = lookupBlockState(originalBlockStateMapping);
-                    if (!optOriginalBlockState.isPresent()) {
-                        logger.warn("Original Populator BlockState [" + originalBlockStateMapping + "] for Populator [" + optPopulatorType.get()
-                                .getId() + "] in Mod [" + optPluginContainer.get().getId() + "] is not a registered BlockState nor a mapping!");
-                        continue;
-                    }
-                    final String replacementBlockStateMapping = blockStateMappingEntry.getValue().getString("");
-                    final Optional<BlockState> optReplacementBlockState = lookupBlockState(replacementBlockStateMapping);
-                    if (!optReplacementBlockState.isPresent()) {
-                        logger.warn("Replacement BlockState [" + originalBlockStateMapping + "] for Populator [" + optPopulatorType.get()
-                                .getId() + "] in Mod [" + optPluginContainer.get().getId() + "] is not a registered BlockState nor a mapping!");
-                        continue;
-                    }
-
-                    populatorReplacementEntries.add(new ReplacementEntry(optOriginalBlockState.get(), optReplacementBlockState.get()));
+            final Set<PopulatorType> populators = new LinkedHashSet<>();
+            final List<String> populatorIds = getStrings(ruleNode.getNode("populators"));
+            for (String populatorId : populatorIds) {
+                final Optional<PopulatorType> optPopulatorType = Swappa.instance.registry.getType(PopulatorType.class, populatorId);
+                if (optPopulatorType.isPresent()) {
+                    populators.add(optPopulatorType.get());
+                } else {
+                    logger.warn("Potential Populator [" + populatorId + "] for " + context + " is not a valid Populator!");
                 }
+            }
 
-                if (!populatorReplacementEntries.isEmpty()) {
-                    Map<PopulatorType, Set<ReplacementEntry>> storedPopulatorReplacementEntries = REGISTRY_POPULATORS.get(optPluginContainer.get());
-                    if (storedPopulatorReplacementEntries == null) {
-                        storedPopulatorReplacementEntries = new HashMap<>();
-                        REGISTRY_POPULATORS.put(optPluginContainer.get(), storedPopulatorReplacementEntries);
-                    }
+            // An empty set matches everything, so a list that named nothing valid must not widen the rule
+            if (biomes.isEmpty() && !biomeIds.isEmpty() || populators.isEmpty() && !populatorIds.isEmpty()) {
+                logger.warn(context + " is skipped as none of its Biomes or Populators are valid.");
+                continue;
+            }
 
-                    storedPopulatorReplacementEntries.put(optPopulatorType.get(), populatorReplacementEntries);
+            final int minY = ruleNode.getNode("y", "min").getInt(0), maxY = ruleNode.getNode("y", "max").getInt(255);
+            if (minY > maxY) {
+                logger.warn(context + " is skipped as its y min [" + minY + "] is above its y max [" + maxY + "].");
+                continue;
+            }
+
+            ConditionalRules.Neighbours neighbours = null;
+            final ConfigurationNode neighboursNode = ruleNode.getNode("neighbours");
+            if (neighboursNode.hasMapChildren()) {
+                final List<String> anyIds = getStrings(neighboursNode.getNode("any")), allIds = getStrings(neighboursNode.getNode("all")),
+                        noneIds = getStrings(neighboursNode.getNode("none"));
+                final List<BlockStatePattern> any = lookupBlockStates(mappings, anyIds, context, logger),
+                        all = lookupBlockStates(mappings, allIds, context, logger), none = lookupBlockStates(mappings, noneIds, context, logger);
+                // Like above, a list that named nothing valid must not widen the rule
+                if (any.isEmpty() && !anyIds.isEmpty() || all.isEmpty() && !allIds.isEmpty() || none.isEmpty() && !noneIds.isEmpty()) {
+                    logger.warn(context + " is skipped as one of its Neighbour lists has no valid BlockStates.");
+                    continue;
+                }
+                if (!any.isEmpty() || !all.isEmpty() || !none.isEmpty()) {
+                    neighbours = new ConditionalRules.Neighbours(any, all, none);
                 }
             }
+
+            final List<ReplacementEntry> entries = new ArrayList<>();
+            for (Map.Entry<Object, ? extends ConfigurationNode> blockStateMappingEntry : ruleNode.getNode("replace").getChildrenMap().entrySet()) {
+                final String originalBlockStateMapping = (String) blockStateMappingEntry.getKey();
+                final Optional<BlockStatePattern> optOriginalBlockState = lookupBlockState(mappings, originalBlockStateMapping);
+                if (!optOriginalBlockState.isPresent()) {
+                    logger.warn("Original BlockState [" + originalBlockStateMapping + "] for " + context + " is not a registered BlockState "
+                            + "nor a mapping!");
+                    continue;
+                }
+                if (blockStateMappingEntry.getValue().hasMapChildren()) {
+                    compileWeighted(mappings, blockStateMappingEntry.getValue(), context, logger).ifPresent(weighted -> entries.add(
+                            new ReplacementEntry(origin, optOriginalBlockState.get(), weighted)));
+                    continue;
+                }
+                final String replacementBlockStateMapping = blockStateMappingEntry.getValue().getString("");
+                final Optional<BlockStatePattern> optReplacementBlockState = lookupBlockState(mappings, replacementBlockStateMapping);
+                if (!optReplacementBlockState.isPresent()) {
+                    logger.warn("Replacement BlockState [" + replacementBlockStateMapping + "] for " + context + " is not a registered "
+                            + "BlockState nor a mapping!");
+                    continue;
+                }
+
+                entries.add(new ReplacementEntry(origin, optOriginalBlockState.get(), optReplacementBlockState.get().state));
+            }
+
+            if (entries.isEmpty()) {
+                logger.warn(context + " is skipped as it has no valid replacements.");
+                continue;
+            }
+
+            rules.add(new ConditionalRules.Rule(new LinkedHashSet<>(getStrings(ruleNode.getNode("worlds"))), new LinkedHashSet<>(dimensions), biomes,
+                    populators, minY, maxY, neighbours, entries));
         }
+
+        return ImmutableList.copyOf(rules);
     }
 
-    static Optional<BlockState> lookupBlockState(String rawId) {
-        Optional<BlockState> optBlockState;
+    private static List<BlockStatePattern> lookupBlockStates(Map<PluginContainer, Map<String, BlockStatePattern>> mappings, List<String>
+            rawIds, String context, Logger logger) {
+        final List<BlockStatePattern> patterns = new ArrayList<>();
+        for (String rawId : rawIds) {
+            final Optional<BlockStatePattern> optBlockState = lookupBlockState(mappings, rawId);
+            if (optBlockState.isPresent()) {
+                patterns.add(optBlockState.get());
+            } else {
+                logger.warn("Potential Neighbour BlockState [" + rawId + "] for " + context + " is not a registered BlockState nor a mapping!");
+            }
+        }
+
+        return patterns;
+    }
+
+    /**
+     * Reads a list of strings, a single value counts as a list of one.
+     *
+     * @param node The node
+     * @return The strings
+     */
+    private static List<String> getStrings(ConfigurationNode node) {
+        final List<String> values = new ArrayList<>();
+        if (node.hasListChildren()) {
+            for (ConfigurationNode child : node.getChildrenList()) {
+                values.add(child.getString(""));
+            }
+        } else if (node.getValue() != null) {
+            values.add(node.getString(""));
+        }
+
+        return values;
+    }
+
+    /**
+     * Compiles a weighted replacement, a map of replacement blockstates to their weights.
+     *
+     * @param mappings The blockstate mappings to resolve mapped names against
+     * @param weightsNode The node holding the weights
+     * @param context Where the replacement is configured, for warnings
+     * @param logger The logger warnings are reported to
+     * @return The replacement or empty if none of its states resolved
+     */
+    private static Optional<WeightedReplacement> compileWeighted(Map<PluginContainer, Map<String, BlockStatePattern>> mappings,
+            ConfigurationNode weightsNode, String context, Logger logger) {
+        final List<BlockState> states = new ArrayList<>();
+        final List<Double> weights = new ArrayList<>();
+        for (Map.Entry<Object, ? extends ConfigurationNode> weightEntry : weightsNode.getChildrenMap().entrySet()) {
+            final String replacementBlockStateMapping = (String) weightEntry.getKey();
+            final Optional<BlockStatePattern> optReplacementBlockState = lookupBlockState(mappings, replacementBlockStateMapping);
+            if (!optReplacementBlockState.isPresent()) {
+                logger.warn("Weighted Replacement BlockState [" + replacementBlockStateMapping + "] for " + context + " is not a registered "
+                        + "BlockState nor a mapping!");
+                continue;
+            }
+            final double weight = weightEntry.getValue().getDouble(0);
+            if (!(weight > 0) || Double.isInfinite(weight)) {
+                logger.warn("Weight [" + weightEntry.getValue().getValue() + "] of Replacement BlockState [" + replacementBlockStateMapping
+                        + "] for " + context + " is not a positive number!");
+                continue;
+            }
+
+            states.add(optReplacementBlockState.get().state);
+            weights.add(weight);
+        }
+
+        if (states.isEmpty()) {
+            logger.warn("Weighted Replacement for " + context + " has no usable BlockStates!");
+            return Optional.empty();
+        }
+
+        return Optional.of(new WeightedReplacement(states.toArray(new BlockState[states.size()]), weights.stream().mapToDouble(
+                Double::doubleValue).toArray()));
+    }
+
+    static Optional<BlockStatePattern> lookupBlockState(Map<PluginContainer, Map<String, BlockStatePattern>> mappings, String rawId) {
+        Optional<BlockStatePattern> optBlockState;
 
         // Lookup from registry first
         Optional<BlockType> optBlockType = Swappa.instance.registry.getType(BlockType.class, rawId);
@@ -174,9 +492,9 @@ static Optional<BlockState> lookupBlockState(String rawId) {
                 id = split[0];
             }
 
-            optBlockState = BlockStateMappingsRegistry.get(container, id);
+            optBlockState = BlockStateMappingsRegistry.get(mappings, container, id);
         } else {
-            optBlockState = Optional.ofNullable(optBlockType.get().getDefaultState());
+            optBlockState = Optional.of(BlockStatePattern.any(optBlockType.get()));
         }
 
         return optBlockState;
@@ -184,11 +502,44 @@ static Optional<BlockState> lookupBlockState(String rawId) {
 
     public static class ReplacementEntry {
 
+        public static final String ORIGIN_ALL = "all", ORIGIN_CONDITIONAL = "conditional ";
+
+        // Where the rule is listed, "all", a populator id or "conditional <index>"
+        public final String origin;
+        public final BlockStatePattern original;
         public final BlockState originalBlockState, replacementBlockState;
+        // Null unless the replacement is picked by weight, replacementBlockState then holds the most likely pick
+        public final WeightedReplacement weightedReplacement;
+        public final LongAdder fired = new LongAdder();
 
-        public ReplacementEntry(BlockState originalBlockState, BlockState replacementBlockState) {
-            this.originalBlockState = originalBlockState;
+        public ReplacementEntry(String origin, BlockStatePattern original, BlockState replacementBlockState) {
+            this.origin = origin;
+            this.original = original;
+            this.originalBlockState = original.state;
             this.replacementBlockState = replacementBlockState;
+            this.weightedReplacement = null;
+        }
+
+        public ReplacementEntry(String origin, BlockStatePattern original, WeightedReplacement weightedReplacement) {
+            this.origin = origin;
+            this.original = original;
+            this.originalBlockState = original.state;
+            this.replacementBlockState = weightedReplacement.getMostLikely();
+            this.weightedReplacement = weightedReplacement;
+        }
+
+        /**
+         * Describes the rule along with where it is listed, the same rule may be listed under "all", a populator and a conditional rule.
+         *
+         * @return The description
+         */
+        public String describe() {
+            return "[" + this.origin + "] " + this;
+        }
+
+        @Override
+        public String toString() {
+            return this.original + " -> " + (this.weightedReplacement == null ? this.replacementBlockState : this.weightedReplacement);
         }
     }
 }
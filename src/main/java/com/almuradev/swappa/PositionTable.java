@@ -0,0 +1,146 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing table from block positions, packed by {@link ReplacementJournal#pack(int, int, int)}, to ints. Nothing is boxed and
+ * the arrays are reused across {@link #clear(int)} calls, so one table per thread serves every chunk. Arrays grown past
+ * {@link #RETAINED_CAPACITY} for an unusually large chunk are shrunk again by the next smaller one, so a thread does not hold on to them.
+ */
+final class PositionTable {
+
+    static final int ABSENT = Integer.MIN_VALUE;
+    // Room for 16384 positions, far more than a chunk's populators usually touch
+    private static final int RETAINED_CAPACITY = 1 << 15;
+
+    private long[] keys = new long[0];
+    // ABSENT marks a free slot, so it can not be stored as a value
+    private int[] values = new int[0];
+    private int mask, shift, size, capacity;
+
+    /**
+     * Empties the table and makes room for the provided number of positions.
+     *
+     * @param expected The number of positions expected, more are allowed
+     */
+    void clear(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        if (this.keys.length < capacity || this.keys.length > Math.max(capacity, RETAINED_CAPACITY)) {
+            final int length = Math.max(capacity, Math.min(this.keys.length, RETAINED_CAPACITY));
+            this.keys = new long[length];
+            this.values = new int[length];
+        }
+        Arrays.fill(this.values, 0, capacity, ABSENT);
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        this.size = 0;
+    }
+
+    /**
+     * Gets the value of a position.
+     *
+     * @param packed The packed position
+     * @return The value or {@link #ABSENT}
+     */
+    int get(long packed) {
+        int slot = slot(packed);
+        while (this.values[slot] != ABSENT) {
+            if (this.keys[slot] == packed) {
+                return this.values[slot];
+            }
+            slot = slot + 1 & this.mask;
+        }
+        return ABSENT;
+    }
+
+    /**
+     * Stores the value of a position unless it already has one.
+     *
+     * @param packed The packed position
+     * @param value The value
+     * @return The value already stored or {@link #ABSENT} if the provided one was stored
+     */
+    int putIfAbsent(long packed, int value) {
+        int slot = slot(packed);
+        while (this.values[slot] != ABSENT) {
+            if (this.keys[slot] == packed) {
+                return this.values[slot];
+            }
+            slot = slot + 1 & this.mask;
+        }
+        if (++this.size * 2 > this.capacity) {
+            grow();
+            return putIfAbsent(packed, value);
+        }
+        this.keys[slot] = packed;
+        this.values[slot] = value;
+        return ABSENT;
+    }
+
+    /**
+     * Stores the value of a position, replacing the value it had.
+     *
+     * @param packed The packed position
+     * @param value The value
+     */
+    void put(long packed, int value) {
+        int slot = slot(packed);
+        while (this.values[slot] != ABSENT) {
+            if (this.keys[slot] == packed) {
+                this.values[slot] = value;
+                return;
+            }
+            slot = slot + 1 & this.mask;
+        }
+        if (++this.size * 2 > this.capacity) {
+            grow();
+            put(packed, value);
+            return;
+        }
+        this.keys[slot] = packed;
+        this.values[slot] = value;
+    }
+
+    private void grow() {
+        final long[] keys = Arrays.copyOf(this.keys, this.capacity);
+        final int[] values = Arrays.copyOf(this.values, this.capacity);
+        clear(this.capacity);
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (values[slot] != ABSENT) {
+                putIfAbsent(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    private int slot(long packed) {
+        return (int) (packed * 0x9E3779B97F4A7C15L >>> this.shift);
+    }
+}
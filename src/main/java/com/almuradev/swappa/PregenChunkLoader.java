@@ -0,0 +1,214 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import org.spongepowered.api.Server;
+import org.spongepowered.api.world.Chunk;
+import org.spongepowered.api.world.World;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Generates the chunks a {@link Pregenerator} requests on a running server.
+ *
+ * <p>Requests are queued and loaded on the following tick, so a pregenerator tick never waits on one. A chunk is only populated once the
+ * chunks on its positive x and z sides exist, so those are loaded with it. A request completes once Swappa's listener sees its chunk
+ * populated, or right after loading if it was populated before, and fails if that does not happen within {@value #TIMEOUT_TICKS}
+ * ticks. Chunks loaded for requests are unloaded again once no pending request needs them, unless they were loaded before.</p>
+ *
+ * <p>Everything but {@link #onPopulated(UUID, int, int)} must be called from the main thread.</p>
+ */
+final class PregenChunkLoader implements Pregenerator.Generator {
+
+    static final int TIMEOUT_TICKS = 200;
+    // The chunk itself first, then the neighbours its population needs
+    private static final int[][] OFFSETS = {{0, 0}, {1, 0}, {0, 1}, {1, 1}};
+
+    private final UUID worldUniqueId;
+    private final Queue<Request> queued = new ArrayDeque<>();
+    private final Map<Long, Request> pending = new HashMap<>();
+    private final Queue<Long> populated = new ConcurrentLinkedQueue<>();
+    // How many pending requests need a chunk, chunks that were loaded before are never unloaded
+    private final Map<Long, Integer> holds = new HashMap<>();
+    private final Set<Long> loadedBefore = new HashSet<>();
+    private int ticks;
+
+    PregenChunkLoader(UUID worldUniqueId) {
+        this.worldUniqueId = worldUniqueId;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> generate(int chunkX, int chunkZ) {
+        final Request request = new Request(chunkX, chunkZ);
+        this.queued.add(request);
+        return request.future;
+    }
+
+    /**
+     * Notes that a chunk was populated. May be called from any thread, the request completes on the next tick.
+     *
+     * @param worldUniqueId The world of the chunk
+     * @param chunkX The chunk x coordinate
+     * @param chunkZ The chunk z coordinate
+     */
+    void onPopulated(UUID worldUniqueId, int chunkX, int chunkZ) {
+        if (this.worldUniqueId.equals(worldUniqueId)) {
+            this.populated.add(key(chunkX, chunkZ));
+        }
+    }
+
+    /**
+     * Completes the requests that were populated or timed out, unloading their chunks, then loads the queued ones.
+     *
+     * @param server The server
+     * @return How many requests were loaded
+     */
+    int tick(Server server) {
+        this.ticks++;
+        final World world = server.getWorld(this.worldUniqueId).orElse(null);
+        Long populatedKey;
+        while ((populatedKey = this.populated.poll()) != null) {
+            final Request request = this.pending.remove(populatedKey);
+            if (request != null) {
+                finish(world, request, true);
+            }
+        }
+        for (Iterator<Request> iterator = this.pending.values().iterator(); iterator.hasNext(); ) {
+            final Request request = iterator.next();
+            if (this.ticks - request.loadedTick > TIMEOUT_TICKS) {
+                iterator.remove();
+                finish(world, request, false);
+            }
+        }
+
+        int loaded = 0;
+        Request request;
+        while ((request = this.queued.poll()) != null) {
+            if (world == null) {
+                request.future.complete(false);
+                continue;
+            }
+            load(world, request);
+            loaded++;
+        }
+        return loaded;
+    }
+
+    private void load(World world, Request request) {
+        for (int[] offset : OFFSETS) {
+            final int chunkX = request.chunkX + offset[0], chunkZ = request.chunkZ + offset[1];
+            final long key = key(chunkX, chunkZ);
+            final Integer held = this.holds.get(key);
+            if (held == null) {
+                if (world.getChunk(chunkX, 0, chunkZ).isPresent()) {
+                    this.loadedBefore.add(key);
+                } else {
+                    world.loadChunk(chunkX, 0, chunkZ, true);
+                }
+            }
+            this.holds.put(key, held == null ? 1 : held + 1);
+        }
+
+        final Optional<Chunk> chunk = world.getChunk(request.chunkX, 0, request.chunkZ);
+        if (!chunk.isPresent() || chunk.get().isPopulated()) {
+            finish(world, request, chunk.isPresent());
+        } else {
+            request.loadedTick = this.ticks;
+            this.pending.put(key(request.chunkX, request.chunkZ), request);
+        }
+    }
+
+    private void finish(World world, Request request, boolean success) {
+        for (int[] offset : OFFSETS) {
+            release(world, request.chunkX + offset[0], request.chunkZ + offset[1]);
+        }
+        request.future.complete(success);
+    }
+
+    private void release(World world, int chunkX, int chunkZ) {
+        final long key = key(chunkX, chunkZ);
+        final Integer held = this.holds.get(key);
+        if (held == null) {
+            return;
+        }
+        if (held > 1) {
+            this.holds.put(key, held - 1);
+            return;
+        }
+
+        this.holds.remove(key);
+        if (!this.loadedBefore.remove(key) && world != null) {
+            world.getChunk(chunkX, 0, chunkZ).ifPresent(Chunk::unloadChunk);
+        }
+    }
+
+    /**
+     * Unloads every chunk loaded for a request. Requests that are still queued or pending are dropped without completing, the saved walk
+     * starts again from them.
+     *
+     * @param server The server
+     */
+    void close(Server server) {
+        final World world = server.getWorld(this.worldUniqueId).orElse(null);
+        this.queued.clear();
+        this.pending.clear();
+        this.populated.clear();
+        if (world != null) {
+            for (Long key : this.holds.keySet()) {
+                if (!this.loadedBefore.contains(key)) {
+                    world.getChunk((int) (key >> 32), 0, (int) (long) key).ifPresent(Chunk::unloadChunk);
+                }
+            }
+        }
+        this.holds.clear();
+        this.loadedBefore.clear();
+    }
+
+    private static long key(int chunkX, int chunkZ) {
+        return (long) chunkX << 32 | chunkZ & 0xFFFFFFFFL;
+    }
+
+    private static final class Request {
+
+        final int chunkX, chunkZ;
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+        int loadedTick;
+
+        Request(int chunkX, int chunkZ) {
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+        }
+    }
+}
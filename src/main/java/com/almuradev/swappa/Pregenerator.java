@@ -0,0 +1,363 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import ninja.leaping.configurate.ConfigurationNode;
+
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generates every chunk within a radius around a world's spawn so the map is populated, and swapped, before anyone gets there.
+ *
+ * <p>Chunks are walked outwards in a square spiral and requested through a {@link Generator} from {@link #tick(long)}, once per server
+ * tick. A request stays in flight until its chunk is populated and at most {@link #getMaxInFlight()} requests are in flight at a time.
+ * Within that the pace follows the server: the number of requests in flight grows by one every tick the server keeps up and halves,
+ * skipping the tick, whenever the TPS falls below the minimum. A tick also never starts more chunks than fit into its budget, judged by
+ * whichever is slower per chunk, generating it as reported to {@link #onGenerated(int, long)} or Swappa's own listener.</p>
+ *
+ * <p>The walk is resumable: {@link #write(ConfigurationNode)} saves the first spiral position that is not done yet, and
+ * {@link #resume(ConfigurationNode, Generator, UUID, int, long, double)} continues from there. Chunks past that position that are
+ * already done are not counted in the saved progress, as they are requested again.</p>
+ */
+public final class Pregenerator {
+
+    static final long TICK_NANOS = 50000000;
+    // Weight of the newest sample in the moving averages
+    private static final double SMOOTHING = 0.1;
+
+    private final Generator generator;
+    private final UUID worldUniqueId;
+    private final String worldName;
+    private final int centerX, centerZ, radius;
+    private final long total;
+    private final int maxInFlight;
+    private final long budgetNanos;
+    private final double minTps;
+    private final NavigableSet<Long> inFlight = new ConcurrentSkipListSet<>();
+    // Whether the positions done past the first one in flight were generated, see write
+    private final NavigableMap<Long, Boolean> doneAhead = new ConcurrentSkipListMap<>();
+    private final LongAdder generated = new LongAdder(), failed = new LongAdder(), replacements = new LongAdder(),
+            listenerChunks = new LongAdder(), listenerNanos = new LongAdder();
+    private final long startGenerated;
+    private long next;
+    private int limit = 1;
+    private double tickNanos = TICK_NANOS, listenerNanosPerChunk;
+    private long firstTick, lastTick, lastListenerChunks, lastListenerNanos;
+    private volatile double generatedNanosPerChunk;
+
+    /**
+     * Creates a pregenerator that starts at the center.
+     *
+     * @param generator The generator to request chunks from
+     * @param worldUniqueId The unique id of the world, only its populated chunks are counted
+     * @param worldName The name of the world, for reporting
+     * @param centerX The x coordinate of the center chunk
+     * @param centerZ The z coordinate of the center chunk
+     * @param radius The radius in chunks, the center chunk not included
+     * @param maxInFlight The most requests that may be outstanding at a time
+     * @param budgetNanos The time a tick may spend on chunks
+     * @param minTps The TPS below which the pace is cut back
+     */
+    public Pregenerator(Generator generator, UUID worldUniqueId, String worldName, int centerX, int centerZ, int radius, int maxInFlight,
+            long budgetNanos, double minTps) {
+        this(generator, worldUniqueId, worldName, centerX, centerZ, radius, maxInFlight, budgetNanos, minTps, 0, 0, 0, 0);
+    }
+
+    private Pregenerator(Generator generator, UUID worldUniqueId, String worldName, int centerX, int centerZ, int radius, int maxInFlight,
+            long budgetNanos, double minTps, long next, long generated, long failed, long replacements) {
+        if (radius < 0 || maxInFlight < 1) {
+            throw new IllegalArgumentException("Expected a radius of at least 0 and at least 1 request in flight!");
+        }
+
+        this.generator = generator;
+        this.worldUniqueId = worldUniqueId;
+        this.worldName = worldName;
+        this.centerX = centerX;
+        this.centerZ = centerZ;
+        this.radius = radius;
+        this.total = (2L * radius + 1) * (2L * radius + 1);
+        this.maxInFlight = maxInFlight;
+        this.budgetNanos = budgetNanos;
+        this.minTps = minTps;
+        this.next = next;
+        this.generated.add(generated);
+        this.failed.add(failed);
+        this.replacements.add(replacements);
+        this.startGenerated = generated;
+    }
+
+    /**
+     * Continues a walk saved by {@link #write(ConfigurationNode)}.
+     *
+     * @param node The node the walk was saved to
+     * @param generator The generator to request chunks from
+     * @param worldUniqueId The unique id of the world
+     * @param maxInFlight The most requests that may be outstanding at a time
+     * @param budgetNanos The time a tick may spend on chunks
+     * @param minTps The TPS below which the pace is cut back
+     * @return The pregenerator
+     */
+    public static Pregenerator resume(ConfigurationNode node, Generator generator, UUID worldUniqueId, int maxInFlight, long budgetNanos,
+            double minTps) {
+        return new Pregenerator(generator, worldUniqueId, node.getNode("world").getString(""), node.getNode("center-x").getInt(0), node
+                .getNode("center-z").getInt(0), node.getNode("radius").getInt(0), maxInFlight, budgetNanos, minTps, node.getNode("next")
+                .getLong(0), node.getNode("generated").getLong(0), node.getNode("failed").getLong(0), node.getNode("replacements").getLong(0));
+    }
+
+    /**
+     * Starts as many requests as this tick allows. Must be called once per tick.
+     *
+     * @param now The current {@link System#nanoTime()}
+     * @return Whether every chunk is done
+     */
+    public boolean tick(long now) {
+        if (this.lastTick != 0) {
+            this.tickNanos += SMOOTHING * (now - this.lastTick - this.tickNanos);
+        } else {
+            this.firstTick = now;
+        }
+        this.lastTick = now;
+
+        final long listenerChunks = this.listenerChunks.sum(), listenerNanos = this.listenerNanos.sum();
+        if (listenerChunks > this.lastListenerChunks) {
+            final double sample = (double) (listenerNanos - this.lastListenerNanos) / (listenerChunks - this.lastListenerChunks);
+            this.listenerNanosPerChunk = this.lastListenerChunks == 0 ? sample : this.listenerNanosPerChunk + SMOOTHING * (sample
+                    - this.listenerNanosPerChunk);
+            this.lastListenerChunks = listenerChunks;
+            this.lastListenerNanos = listenerNanos;
+        }
+
+        if (getTps() < this.minTps) {
+            this.limit = Math.max(1, this.limit / 2);
+            return isDone();
+        }
+        this.limit = Math.min(this.maxInFlight, this.limit + 1);
+
+        final Long first = this.inFlight.isEmpty() ? null : this.inFlight.first();
+        this.doneAhead.headMap(first == null ? this.next : first).clear();
+
+        final double chunkNanos = Math.max(this.generatedNanosPerChunk, this.listenerNanosPerChunk);
+        final long affordable = chunkNanos <= 0 ? this.limit : Math.max(1, (long) (this.budgetNanos / chunkNanos));
+        final long requests = Math.min(Math.min(this.limit - this.inFlight.size(), affordable), this.total - this.next);
+        for (long i = 0; i < requests; i++) {
+            final long index = this.next++;
+            this.inFlight.add(index);
+            this.generator.generate(this.centerX + spiralX(index), this.centerZ + spiralZ(index)).whenComplete((success, throwable) -> complete(
+                    index, throwable == null && success));
+        }
+
+        return isDone();
+    }
+
+    private synchronized void complete(long index, boolean success) {
+        this.doneAhead.put(index, success);
+        (success ? this.generated : this.failed).increment();
+        this.inFlight.remove(index);
+    }
+
+    /**
+     * Counts the time the generator spent on the server thread generating chunks. May be called from any thread.
+     *
+     * @param chunks The chunks generated
+     * @param nanos The time it took
+     */
+    public void onGenerated(int chunks, long nanos) {
+        if (chunks > 0) {
+            final double sample = (double) nanos / chunks, current = this.generatedNanosPerChunk;
+            this.generatedNanosPerChunk = current == 0 ? sample : current + SMOOTHING * (sample - current);
+        }
+    }
+
+    /**
+     * Counts a chunk Swappa's listener handled. May be called from any thread.
+     *
+     * @param worldUniqueId The world the chunk is in
+     * @param replaced The blocks replaced in the chunk
+     * @param nanos The time the listener took
+     */
+    public void onPopulated(UUID worldUniqueId, int replaced, long nanos) {
+        if (worldUniqueId.equals(this.worldUniqueId)) {
+            this.replacements.add(replaced);
+            this.listenerChunks.increment();
+            this.listenerNanos.add(nanos);
+        }
+    }
+
+    public boolean isDone() {
+        return this.next >= this.total && this.inFlight.isEmpty();
+    }
+
+    /**
+     * Gets the TPS judged by how far apart the last ticks were.
+     *
+     * @return The TPS, at most 20
+     */
+    public double getTps() {
+        return (double) TimeUnit.SECONDS.toNanos(1) / Math.max(TICK_NANOS, this.tickNanos);
+    }
+
+    public int getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    public int getInFlight() {
+        return this.inFlight.size();
+    }
+
+    /**
+     * Gets how many requests may be in flight at the current pace.
+     *
+     * @return The limit, between 1 and {@link #getMaxInFlight()}
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public long getGenerated() {
+        return this.generated.sum();
+    }
+
+    public long getFailed() {
+        return this.failed.sum();
+    }
+
+    public String getWorldName() {
+        return this.worldName;
+    }
+
+    public int getRadius() {
+        return this.radius;
+    }
+
+    /**
+     * Gets how many chunks were generated per second since this pregenerator started ticking, chunks from before a resume not included.
+     *
+     * @return The chunks per second
+     */
+    public double getChunksPerSecond() {
+        final long elapsed = this.lastTick - this.firstTick;
+        return elapsed <= 0 ? 0 : (this.generated.sum() - this.startGenerated) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /**
+     * Saves the walk, from the first position that is not done yet. Positions past it that are done are left out of the counts, a
+     * resumed walk requests them again. Must be called from the thread that ticks.
+     *
+     * @param node The node to write to
+     */
+    public synchronized void write(ConfigurationNode node) {
+        final long first = this.inFlight.isEmpty() ? this.next : this.inFlight.first();
+        long generatedAhead = 0, failedAhead = 0;
+        for (boolean success : this.doneAhead.tailMap(first).values()) {
+            if (success) {
+                generatedAhead++;
+            } else {
+                failedAhead++;
+            }
+        }
+
+        node.getNode("world").setValue(this.worldName);
+        node.getNode("center-x").setValue(this.centerX);
+        node.getNode("center-z").setValue(this.centerZ);
+        node.getNode("radius").setValue(this.radius);
+        node.getNode("next").setValue(first);
+        node.getNode("generated").setValue(this.generated.sum() - generatedAhead);
+        node.getNode("failed").setValue(this.failed.sum() - failedAhead);
+        node.getNode("replacements").setValue(this.replacements.sum());
+    }
+
+    /**
+     * Gets the x offset of a position in the spiral. Position 0 is the center, the ring at distance k holds positions (2k - 1)^2 up to
+     * but not including (2k + 1)^2.
+     *
+     * @param index The position
+     * @return The x offset
+     */
+    static int spiralX(long index) {
+        return (int) spiral(index, true);
+    }
+
+    static int spiralZ(long index) {
+        return (int) spiral(index, false);
+    }
+
+    private static long spiral(long index, boolean x) {
+        if (index == 0) {
+            return 0;
+        }
+
+        // The ring is the smallest k with (2k + 1)^2 > index
+        long ring = (long) ((Math.sqrt(index) + 1) / 2);
+        while ((2 * ring + 1) * (2 * ring + 1) <= index) {
+            ring++;
+        }
+        while (ring > 0 && (2 * ring - 1) * (2 * ring - 1) > index) {
+            ring--;
+        }
+
+        // Walk the ring's four sides, each 2k long, starting just above its bottom right corner
+        final long offset = index - (2 * ring - 1) * (2 * ring - 1), side = offset / (2 * ring), along = offset % (2 * ring);
+        switch ((int) side) {
+            case 0:
+                return x ? ring : -ring + 1 + along;
+            case 1:
+                return x ? ring - 1 - along : ring;
+            case 2:
+                return x ? -ring : ring - 1 - along;
+            default:
+                return x ? -ring + 1 + along : -ring;
+        }
+    }
+
+    @Override
+    public String toString() {
+        final long done = this.generated.sum() + this.failed.sum();
+        return "world [" + this.worldName + "] radius [" + this.radius + "] chunks [" + done + " / " + this.total + "], failed ["
+                + this.failed.sum() + "], " + String.format("%.1f", getChunksPerSecond()) + " chunks/s, replacements [" + this.replacements.sum()
+                + "], in flight [" + this.inFlight.size() + " / " + this.limit + "], tps [" + String.format("%.1f", getTps()) + "]";
+    }
+
+    /**
+     * Generates and populates chunks, so the pacing can be driven by the server or by a stand-in.
+     */
+    public interface Generator {
+
+        /**
+         * Requests a chunk to be generated and populated. Must not wait for it, the returned future completes later.
+         *
+         * @param chunkX The chunk x coordinate
+         * @param chunkZ The chunk z coordinate
+         * @return Completes with true once the chunk is populated or with false if it could not be generated
+         */
+        CompletableFuture<Boolean> generate(int chunkX, int chunkZ);
+    }
+}
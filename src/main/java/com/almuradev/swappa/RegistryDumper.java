@@ -0,0 +1,265 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import org.spongepowered.api.block.BlockType;
+import org.spongepowered.api.block.trait.BlockTrait;
+import org.spongepowered.api.plugin.PluginContainer;
+import org.spongepowered.api.world.DimensionType;
+import org.spongepowered.api.world.biome.BiomeType;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * Streams the registered blocks straight to disk, one block at a time, so memory use does not depend on how many blocks are registered.
+ *
+ * <p>The YAML dump lists every trait with its possible values, the same layout the dump always had. With permutations enabled the
+ * traits move under a "traits" key next to a "states" key listing every state permutation. The compact dump is line delimited with
+ * tab separated fields, easy to grep and cheap to load back:</p>
+ *
+ * <pre>
+ * B    minecraft:log2    axis=x,y,z,none    variant=acacia,dark_oak
+ * S    minecraft:log2    axis=x    variant=acacia
+ * P    minecraft:ore
+ * M    minecraft
+ * D    nether
+ * G    minecraft:hell
+ * </pre>
+ *
+ * <p>"B" lines describe a block and its traits, "S" lines one state (only written with permutations enabled), "P" lines a populator,
+ * "M" lines a loaded mod or plugin, "D" lines a dimension type and "G" lines a biome. The config checker in src/check reads the compact dump
+ * back. Files are written to a temporary file first and moved in place once complete.</p>
+ */
+final class RegistryDumper {
+
+    static final String COMPACT_BLOCK = "B", COMPACT_STATE = "S", COMPACT_POPULATOR = "P", COMPACT_PLUGIN = "M", COMPACT_DIMENSION = "D",
+            COMPACT_BIOME = "G";
+    private static final Pattern PLAIN_SCALAR = Pattern.compile("[A-Za-z0-9_.-]+");
+
+    private final List<BlockType> blockTypes;
+    private final List<PopulatorType> populatorTypes;
+    private final List<PluginContainer> plugins;
+    private final List<DimensionType> dimensionTypes;
+    private final List<BiomeType> biomes;
+    private final BlockStatePalette palette;
+    private final boolean permutations;
+
+    /**
+     * @param blockTypes The blocks to dump, in the order to dump them
+     * @param populatorTypes The populators to include in the compact dump
+     * @param plugins The plugins to include in the compact dump
+     * @param dimensionTypes The dimension types to include in the compact dump
+     * @param biomes The biomes to include in the compact dump
+     * @param palette The palette to read state permutations from
+     * @param permutations Whether to include every state permutation
+     */
+    RegistryDumper(List<BlockType> blockTypes, List<PopulatorType> populatorTypes, List<PluginContainer> plugins, List<DimensionType>
+            dimensionTypes, List<BiomeType> biomes, BlockStatePalette palette, boolean permutations) {
+        this.blockTypes = blockTypes;
+        this.populatorTypes = populatorTypes;
+        this.plugins = plugins;
+        this.dimensionTypes = dimensionTypes;
+        this.biomes = biomes;
+        this.palette = palette;
+        this.permutations = permutations;
+    }
+
+    /**
+     * Writes the dump.
+     *
+     * @param yamlPath Where to write the YAML dump
+     * @param compactPath Where to write the compact dump or null to skip it
+     * @param progress Called with the percentage of blocks written, roughly every ten percent
+     * @return The amount of states written
+     * @throws IOException If either file could not be written
+     */
+    long dump(Path yamlPath, Path compactPath, IntConsumer progress) throws IOException {
+        final Path yamlTemp = yamlPath.resolveSibling(yamlPath.getFileName() + ".tmp");
+        final Path compactTemp = compactPath == null ? null : compactPath.resolveSibling(compactPath.getFileName() + ".tmp");
+        long states = 0;
+
+        try (BufferedWriter yaml = Files.newBufferedWriter(yamlTemp, StandardCharsets.UTF_8);
+             BufferedWriter compact = compactTemp == null ? null : Files.newBufferedWriter(compactTemp, StandardCharsets.UTF_8)) {
+            String currentModId = null;
+            int lastPercent = 0;
+            for (int i = 0; i < this.blockTypes.size(); i++) {
+                final BlockType blockType = this.blockTypes.get(i);
+                final String[] modIdName = blockType.getName().split(":", 2);
+                if (!modIdName[0].equals(currentModId)) {
+                    currentModId = modIdName[0];
+                    yaml.write(scalar(currentModId));
+                    yaml.write(":\n");
+                }
+
+                states += writeBlock(yaml, compact, blockType, modIdName.length > 1 ? modIdName[1] : modIdName[0]);
+
+                final int percent = (i + 1) * 100 / this.blockTypes.size();
+                if (percent / 10 != lastPercent / 10) {
+                    lastPercent = percent;
+                    progress.accept(percent);
+                }
+            }
+
+            if (compact != null) {
+                for (PopulatorType populatorType : this.populatorTypes) {
+                    writeId(compact, COMPACT_POPULATOR, populatorType.getId());
+                }
+                for (PluginContainer plugin : this.plugins) {
+                    writeId(compact, COMPACT_PLUGIN, plugin.getId());
+                }
+                for (DimensionType dimensionType : this.dimensionTypes) {
+                    writeId(compact, COMPACT_DIMENSION, dimensionType.getId());
+                }
+                for (BiomeType biome : this.biomes) {
+                    writeId(compact, COMPACT_BIOME, biome.getId());
+                }
+            }
+        }
+
+        Files.move(yamlTemp, yamlPath, StandardCopyOption.REPLACE_EXISTING);
+        if (compactTemp != null) {
+            Files.move(compactTemp, compactPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        return states;
+    }
+
+    private long writeBlock(Writer yaml, Writer compact, BlockType blockType, String blockName) throws IOException {
+        BlockTrait<?>[] traits = this.palette.getTraits(blockType);
+        final boolean indexed = traits != null;
+        if (!indexed) {
+            traits = blockType.getTraits().toArray(new BlockTrait<?>[0]);
+        }
+
+        // With permutations the traits and states get their own keys, so a trait named "states" cannot clash with the list
+        final boolean nested = this.permutations && indexed;
+        final String indent = nested ? "      " : "    ";
+        yaml.write("  ");
+        yaml.write(scalar(blockName));
+        yaml.write(traits.length == 0 && !nested ? ": {}\n" : ":\n");
+        if (nested) {
+            yaml.write(traits.length == 0 ? "    traits: {}\n" : "    traits:\n");
+        }
+        if (compact != null) {
+            compact.write(COMPACT_BLOCK);
+            compact.write('\t');
+            compact.write(blockType.getName());
+        }
+
+        for (BlockTrait<?> trait : traits) {
+            yaml.write(indent);
+            yaml.write(scalar(trait.getName()));
+            yaml.write(": [");
+            if (compact != null) {
+                compact.write('\t');
+                compact.write(trait.getName());
+                compact.write('=');
+            }
+
+            boolean first = true;
+            for (Object value : trait.getPossibleValues()) {
+                if (!first) {
+                    yaml.write(", ");
+                    if (compact != null) {
+                        compact.write(',');
+                    }
+                }
+                first = false;
+                yaml.write(scalar(String.valueOf(value)));
+                if (compact != null) {
+                    compact.write(String.valueOf(value));
+                }
+            }
+            yaml.write("]\n");
+        }
+
+        if (compact != null) {
+            compact.write('\n');
+        }
+
+        if (!nested) {
+            return 0;
+        }
+
+        final int first = this.palette.getFirstId(blockType), end = this.palette.getEndId(blockType);
+        yaml.write("    states:\n");
+        for (int id = first; id < end; id++) {
+            final Object[] values = this.palette.getTraitValues(id);
+            yaml.write("      - {");
+            if (compact != null) {
+                compact.write(COMPACT_STATE);
+                compact.write('\t');
+                compact.write(blockType.getName());
+            }
+
+            for (int i = 0; i < traits.length; i++) {
+                if (i > 0) {
+                    yaml.write(", ");
+                }
+                yaml.write(scalar(traits[i].getName()));
+                yaml.write(": ");
+                yaml.write(scalar(String.valueOf(values[i])));
+                if (compact != null) {
+                    compact.write('\t');
+                    compact.write(traits[i].getName());
+                    compact.write('=');
+                    compact.write(String.valueOf(values[i]));
+                }
+            }
+
+            yaml.write("}\n");
+            if (compact != null) {
+                compact.write('\n');
+            }
+        }
+
+        return end - first;
+    }
+
+    private static void writeId(Writer compact, String tag, String id) throws IOException {
+        compact.write(tag);
+        compact.write('\t');
+        compact.write(id);
+        compact.write('\n');
+    }
+
+    private static String scalar(String value) {
+        if (PLAIN_SCALAR.matcher(value).matches()) {
+            return value;
+        }
+
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
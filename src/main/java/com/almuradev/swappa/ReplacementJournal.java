@@ -0,0 +1,397 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.flowpowered.math.vector.Vector3i;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.world.World;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An append only record of every replacement Swappa made, for tracing and undoing bad rules.
+ *
+ * <p>The populate thread only claims a slot of a bounded ring buffer and stores references into it, it never blocks and never touches
+ * the disk. When the buffer is full the replacement is counted as dropped instead. A dedicated thread drains the buffer into memory
+ * mapped segment files of a fixed size in the journal directory. Every segment starts with {@link #MAGIC} and {@link #VERSION} and is
+ * followed by tagged records:</p>
+ *
+ * <ul>
+ *     <li>{@link #TAG_WORLD}: id, most and least significant bits of the world's unique id and its name</li>
+ *     <li>{@link #TAG_STATE}: id and the block state</li>
+ *     <li>{@link #TAG_RULE}: id and the rule as described by {@link PopulatorMappingsRegistry.ReplacementEntry#describe()}, so the same
+ *     rule listed in several places is told apart</li>
+ *     <li>{@link #TAG_REPLACEMENT}: world id, packed position, original state id, replacement state id and rule id</li>
+ * </ul>
+ *
+ * <p>Ids are only valid within their segment, every segment defines the worlds, states and rules it uses before their first use, so it
+ * can be read on its own and does not depend on the palette of the server that wrote it. Strings are written as an unsigned short length
+ * followed by UTF-8. A record's tag is written after its body, a zero tag marks the end of the segment.</p>
+ */
+public final class ReplacementJournal implements AutoCloseable {
+
+    public static final String DIRECTORY = "journal";
+    static final int MAGIC = 0x53574A4C, VERSION = 1;
+    static final byte TAG_END = 0, TAG_WORLD = 1, TAG_STATE = 2, TAG_RULE = 3, TAG_REPLACEMENT = 4;
+    static final int HEADER_BYTES = 4 + 4 + 8, REPLACEMENT_BYTES = 1 + 4 + 8 + 4 + 4 + 4;
+    private static final Logger logger = LoggerFactory.getLogger(Swappa.PLUGIN_ID + "-journal");
+    // How long the writer sleeps when the buffer is empty
+    private static final long IDLE_NANOS = 1000000;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int mask;
+    // A slot may be written once its sequence equals the claiming position and read once it is one past it
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // Threads inside record, close waits for them so a replacement that passed the running check is never lost
+    private final AtomicInteger recording = new AtomicInteger();
+    private final World[] worlds;
+    private final long[] positions;
+    private final BlockState[] originals, replacements;
+    private final PopulatorMappingsRegistry.ReplacementEntry[] rules;
+    private final LongAdder recorded = new LongAdder(), dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean running = true, failed;
+    private boolean closed;
+    private long head;
+
+    // Writer thread only
+    private final Map<UUID, Integer> worldIds = new HashMap<>();
+    private final Map<BlockState, Integer> stateIds = new IdentityHashMap<>();
+    private final Map<PopulatorMappingsRegistry.ReplacementEntry, Integer> ruleIds = new IdentityHashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private volatile long written, segments;
+
+    private ReplacementJournal(Path directory, int segmentBytes, int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.directory = directory;
+        // Large enough for the longest string a record can hold
+        this.segmentBytes = Math.max(segmentBytes, 1 << 20);
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+        this.worlds = new World[size];
+        this.positions = new long[size];
+        this.originals = new BlockState[size];
+        this.replacements = new BlockState[size];
+        this.rules = new PopulatorMappingsRegistry.ReplacementEntry[size];
+        this.writer = new Thread(this::drainLoop, Swappa.PLUGIN_ID + "-journal");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Opens a journal that appends to a new segment after the existing ones.
+     *
+     * @param directory The journal directory
+     * @param segmentBytes The size of each segment file
+     * @param capacity How many replacements may wait to be written, rounded up to a power of two
+     * @return The journal
+     */
+    public static ReplacementJournal open(Path directory, int segmentBytes, int capacity) throws IOException {
+        Files.createDirectories(directory);
+        final ReplacementJournal journal = new ReplacementJournal(directory, segmentBytes, capacity);
+        final List<Path> existing = JournalReader.list(directory);
+        journal.segmentNumber = existing.isEmpty() ? 0 : JournalReader.segmentNumber(existing.get(existing.size() - 1));
+        journal.nextSegment();
+        journal.writer.start();
+        return journal;
+    }
+
+    /**
+     * Packs a block position into a long, 26 bits for x and z and 12 for y.
+     */
+    public static long pack(int x, int y, int z) {
+        return ((long) x & 0x3FFFFFF) << 38 | ((long) z & 0x3FFFFFF) << 12 | y & 0xFFF;
+    }
+
+    public static int unpackX(long packed) {
+        return (int) (packed >> 38);
+    }
+
+    public static int unpackY(long packed) {
+        return (int) (packed & 0xFFF);
+    }
+
+    public static int unpackZ(long packed) {
+        return (int) (packed << 26 >> 38);
+    }
+
+    /**
+     * Records a replacement. Safe to call from any thread, never blocks.
+     *
+     * @param world The world
+     * @param position The block position
+     * @param original The state the populator placed
+     * @param replacement The state Swappa replaced it with
+     * @param rule The rule that matched
+     */
+    public void record(World world, Vector3i position, BlockState original, BlockState replacement,
+            PopulatorMappingsRegistry.ReplacementEntry rule) {
+        record(world, position.getX(), position.getY(), position.getZ(), original, replacement, rule);
+    }
+
+    /**
+     * Records a replacement. Safe to call from any thread, never blocks.
+     *
+     * @param world The world
+     * @param x The block x coordinate
+     * @param y The block y coordinate
+     * @param z The block z coordinate
+     * @param original The state the populator placed
+     * @param replacement The state Swappa replaced it with
+     * @param rule The rule that matched
+     */
+    public void record(World world, int x, int y, int z, BlockState original, BlockState replacement,
+            PopulatorMappingsRegistry.ReplacementEntry rule) {
+        this.recording.incrementAndGet();
+        try {
+            if (this.running) {
+                claim(world, pack(x, y, z), original, replacement, rule);
+            } else {
+                this.dropped.increment();
+            }
+        } finally {
+            this.recording.decrementAndGet();
+        }
+    }
+
+    private void claim(World world, long position, BlockState original, BlockState replacement, PopulatorMappingsRegistry.ReplacementEntry
+            rule) {
+        long claimed;
+        int index;
+        while (true) {
+            claimed = this.tail.get();
+            index = (int) claimed & this.mask;
+            final long sequence = this.sequences.get(index);
+            if (sequence == claimed) {
+                if (this.tail.compareAndSet(claimed, claimed + 1)) {
+                    break;
+                }
+            } else if (sequence < claimed) {
+                // The writer has not caught up with this slot yet
+                this.dropped.increment();
+                return;
+            }
+        }
+
+        this.worlds[index] = world;
+        this.positions[index] = position;
+        this.originals[index] = original;
+        this.replacements[index] = replacement;
+        this.rules[index] = rule;
+        this.sequences.lazySet(index, claimed + 1);
+        this.recorded.increment();
+    }
+
+    private void drainLoop() {
+        while (this.running) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    private int drain() {
+        int drained = 0;
+        while (true) {
+            final int index = (int) this.head & this.mask;
+            if (this.sequences.get(index) != this.head + 1) {
+                break;
+            }
+
+            try {
+                write(this.worlds[index], this.positions[index], this.originals[index], this.replacements[index], this.rules[index]);
+            } catch (IOException e) {
+                logger.error("Failed to write to the journal, replacements are no longer recorded!", e);
+                this.failed = true;
+                this.running = false;
+                return drained;
+            }
+            this.worlds[index] = null;
+            this.originals[index] = null;
+            this.replacements[index] = null;
+            this.rules[index] = null;
+            this.sequences.lazySet(index, this.head + this.mask + 1);
+            this.head++;
+            drained++;
+        }
+
+        return drained;
+    }
+
+    private void write(World world, long position, BlockState original, BlockState replacement, PopulatorMappingsRegistry.ReplacementEntry
+            rule) throws IOException {
+        Integer worldId = this.worldIds.get(world.getUniqueId());
+        if (worldId == null) {
+            worldId = this.worldIds.size();
+            final byte[] name = utf(world.getName());
+            reserve(1 + 4 + 16 + 2 + name.length);
+            final int start = this.segment.position();
+            this.segment.position(start + 1);
+            this.segment.putInt(worldId).putLong(world.getUniqueId().getMostSignificantBits()).putLong(world.getUniqueId()
+                    .getLeastSignificantBits()).putShort((short) name.length).put(name);
+            this.segment.put(start, TAG_WORLD);
+            this.worldIds.put(world.getUniqueId(), worldId);
+        }
+        final int originalId = define(this.stateIds, original, original.toString(), TAG_STATE);
+        final int replacementId = define(this.stateIds, replacement, replacement.toString(), TAG_STATE);
+        final int ruleId = define(this.ruleIds, rule, rule.describe(), TAG_RULE);
+
+        // Defining the above may have started a new segment which would not know them, so they are defined again
+        if (this.segment.remaining() < REPLACEMENT_BYTES + 1) {
+            nextSegment();
+            write(world, position, original, replacement, rule);
+            return;
+        }
+
+        final int start = this.segment.position();
+        this.segment.position(start + 1);
+        this.segment.putInt(worldId).putLong(position).putInt(originalId).putInt(replacementId).putInt(ruleId);
+        this.segment.put(start, TAG_REPLACEMENT);
+        this.written++;
+    }
+
+    private <T> int define(Map<T, Integer> ids, T value, String text, byte tag) throws IOException {
+        final Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+
+        final byte[] bytes = utf(text);
+        reserve(1 + 4 + 2 + bytes.length);
+        final int newId = ids.size();
+        final int start = this.segment.position();
+        this.segment.position(start + 1);
+        this.segment.putInt(newId).putShort((short) bytes.length).put(bytes);
+        this.segment.put(start, tag);
+        ids.put(value, newId);
+        return newId;
+    }
+
+    private void reserve(int bytes) throws IOException {
+        // Room is always left for the end tag
+        if (this.segment.remaining() < bytes + 1) {
+            nextSegment();
+        }
+    }
+
+    private static byte[] utf(String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return bytes.length > 0xFFFF ? Arrays.copyOf(bytes, 0xFFFF) : bytes;
+    }
+
+    private void nextSegment() throws IOException {
+        closeSegment();
+        this.worldIds.clear();
+        this.stateIds.clear();
+        this.ruleIds.clear();
+        this.segmentNumber++;
+        this.channel = FileChannel.open(this.directory.resolve(JournalReader.segmentName(this.segmentNumber)), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.segment = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentBytes);
+        this.segment.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+        this.segments++;
+    }
+
+    private void closeSegment() throws IOException {
+        if (this.segment == null) {
+            return;
+        }
+
+        // The rest of the file is still zero, which already reads as the end tag
+        this.segment.force();
+        this.channel.close();
+        this.segment = null;
+        this.channel = null;
+    }
+
+    /**
+     * Stops the writer once everything recorded so far is written and closes the current segment.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+
+        this.closed = true;
+        this.running = false;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // A thread that saw the journal running may still be filling its slot
+        while (this.recording.get() != 0) {
+            Thread.yield();
+        }
+        if (!this.failed) {
+            drain();
+        }
+        closeSegment();
+    }
+
+    public long getRecorded() {
+        return this.recorded.sum();
+    }
+
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "recorded [" + this.recorded.sum() + "], written [" + this.written + "], dropped [" + this.dropped.sum() + "], segments ["
+                + this.segments + "]";
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * An immutable, precompiled view of the populator mappings.
+ *
+ * <p>Rules are expanded against the {@link BlockStatePalette} at compile time so every table is a plain array indexed by state id.
+ * Every {@link PopulatorType} that has rules is given its own table with the "all" rules already merged in underneath the populator
+ * specific ones. Populators without rules share the "all" table. The listener resolves the table once per populator and then performs a
+ * single array read per transaction. Rules with conditions are kept apart in {@link ConditionalRules}, which merges these tables in
+ * underneath its own.</p>
+ *
+ * <p>Each populator also gets a bitset of the states any rule that may apply to it replaces, conditional rules included, so the listener
+ * rejects unrelated transactions with a single bit test before resolving conditions, and skips populators no rule applies to.</p>
+ */
+public final class ReplacementTable {
+
+    public static final ReplacementTable EMPTY = new ReplacementTable(BlockStatePalette.EMPTY, ImmutableMap.of(), null, ImmutableMap.of(),
+            ImmutableList.of(), ImmutableList.of());
+
+    private final BlockStatePalette palette;
+    private final Map<PopulatorType, PopulatorMappingsRegistry.ReplacementEntry[]> populators;
+    private final PopulatorMappingsRegistry.ReplacementEntry[] all;
+    private final Map<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> populatorRules;
+    private final List<PopulatorMappingsRegistry.ReplacementEntry> allRules;
+    private final ConditionalRules conditionalRules;
+    private final Map<PopulatorType, long[]> sources;
+    // The sources of populators without rules of their own, null if no rule applies to them
+    private final long[] sharedSources;
+    private final boolean weighted;
+
+    private ReplacementTable(BlockStatePalette palette, Map<PopulatorType, PopulatorMappingsRegistry.ReplacementEntry[]> populators,
+            PopulatorMappingsRegistry.ReplacementEntry[] all, Map<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> populatorRules,
+            List<PopulatorMappingsRegistry.ReplacementEntry> allRules, List<ConditionalRules.Rule> conditionalRules) {
+        this.palette = palette;
+        this.populators = populators;
+        this.all = all;
+        this.populatorRules = populatorRules;
+        this.allRules = allRules;
+        this.conditionalRules = conditionalRules.isEmpty() ? null : new ConditionalRules(palette, this, conditionalRules);
+
+        final long[] shared = new long[(palette.size() + 63) >>> 6];
+        boolean sharedAny = addSources(palette, shared, allRules);
+        for (ConditionalRules.Rule rule : conditionalRules) {
+            if (rule.populators.isEmpty()) {
+                sharedAny |= addSources(palette, shared, rule.entries);
+            }
+        }
+        final Map<PopulatorType, long[]> sources = new HashMap<>();
+        for (Map.Entry<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> entry : populatorRules.entrySet()) {
+            addSources(palette, sources.computeIfAbsent(entry.getKey(), k -> shared.clone()), entry.getValue());
+        }
+        for (ConditionalRules.Rule rule : conditionalRules) {
+            for (PopulatorType populatorType : rule.populators) {
+                addSources(palette, sources.computeIfAbsent(populatorType, k -> shared.clone()), rule.entries);
+            }
+        }
+        this.sources = ImmutableMap.copyOf(sources);
+        this.sharedSources = sharedAny ? shared : null;
+        this.weighted = Stream.concat(Stream.concat(allRules.stream(), populatorRules.values().stream().flatMap(List::stream)),
+                conditionalRules.stream().flatMap(rule -> rule.entries.stream())).anyMatch(rule -> rule.weightedReplacement != null);
+    }
+
+    /**
+     * Compiles the table from the parsed rules. When several rules match the same state the first one configured wins, which mirrors the
+     * order in which the rules appear in populators.yml.
+     *
+     * @param palette The palette to index the tables by
+     * @param populatorEntries The populator specific rules
+     * @param allEntries The "all" rules
+     * @param conditionalRules The rules with conditions, which take precedence over the others
+     * @return The compiled table
+     */
+    public static ReplacementTable compile(BlockStatePalette palette, Map<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>>
+            populatorEntries, List<PopulatorMappingsRegistry.ReplacementEntry> allEntries, List<ConditionalRules.Rule> conditionalRules) {
+        final PopulatorMappingsRegistry.ReplacementEntry[] all = allEntries.isEmpty() ? null : expand(palette, allEntries, null);
+
+        final ImmutableMap.Builder<PopulatorType, PopulatorMappingsRegistry.ReplacementEntry[]> populators = ImmutableMap.builder();
+        for (Map.Entry<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> populatorEntry : populatorEntries.entrySet()) {
+            populators.put(populatorEntry.getKey(), expand(palette, populatorEntry.getValue(), all));
+        }
+
+        return new ReplacementTable(palette, populators.build(), all, ImmutableMap.copyOf(populatorEntries), ImmutableList.copyOf(allEntries),
+                ImmutableList.copyOf(conditionalRules));
+    }
+
+    static PopulatorMappingsRegistry.ReplacementEntry[] expand(BlockStatePalette palette, List<PopulatorMappingsRegistry
+            .ReplacementEntry> entries, PopulatorMappingsRegistry.ReplacementEntry[] fallback) {
+        final PopulatorMappingsRegistry.ReplacementEntry[] expanded = new PopulatorMappingsRegistry.ReplacementEntry[palette.size()];
+        for (PopulatorMappingsRegistry.ReplacementEntry entry : entries) {
+            for (int id : palette.getMatchingIds(entry.original)) {
+                if (expanded[id] == null) {
+                    expanded[id] = entry;
+                }
+            }
+        }
+
+        if (fallback != null) {
+            for (int id = 0; id < expanded.length; id++) {
+                if (expanded[id] == null) {
+                    expanded[id] = fallback[id];
+                }
+            }
+        }
+
+        return expanded;
+    }
+
+    private static boolean addSources(BlockStatePalette palette, long[] sources, List<PopulatorMappingsRegistry.ReplacementEntry> entries) {
+        boolean added = false;
+        for (PopulatorMappingsRegistry.ReplacementEntry entry : entries) {
+            for (int id : palette.getMatchingIds(entry.original)) {
+                sources[id >>> 6] |= 1L << id;
+                added = true;
+            }
+        }
+
+        return added;
+    }
+
+    public BlockStatePalette getPalette() {
+        return this.palette;
+    }
+
+    /**
+     * Gets the rules that apply to the provided {@link PopulatorType}, "all" rules included.
+     *
+     * @param type The populator type
+     * @return The rules indexed by {@link BlockStatePalette} id or null if there are none
+     */
+    public PopulatorMappingsRegistry.ReplacementEntry[] get(PopulatorType type) {
+        final PopulatorMappingsRegistry.ReplacementEntry[] entries = this.populators.get(type);
+        return entries == null ? this.all : entries;
+    }
+
+    /**
+     * Gets the states that rules which may apply to the provided {@link PopulatorType} replace, whatever their conditions. A state
+     * whose bit is clear is never replaced for this populator.
+     *
+     * @param type The populator type
+     * @return The bitset indexed by {@link BlockStatePalette} id or null if no rule applies to the populator
+     */
+    public long[] getSources(PopulatorType type) {
+        final long[] sources = this.sources.get(type);
+        return sources == null ? this.sharedSources : sources;
+    }
+
+    /**
+     * Gets the "all" rules on their own.
+     *
+     * @return The rules indexed by {@link BlockStatePalette} id or null if there are none
+     */
+    public PopulatorMappingsRegistry.ReplacementEntry[] getAll() {
+        return this.all;
+    }
+
+    public PopulatorMappingsRegistry.ReplacementEntry get(PopulatorType type, BlockState populatedBlockState) {
+        return get(get(type), populatedBlockState);
+    }
+
+    public PopulatorMappingsRegistry.ReplacementEntry get(BlockState populatedBlockState) {
+        return get(this.all, populatedBlockState);
+    }
+
+    private PopulatorMappingsRegistry.ReplacementEntry get(PopulatorMappingsRegistry.ReplacementEntry[] entries, BlockState state) {
+        if (entries == null) {
+            return null;
+        }
+
+        final int id = this.palette.getId(state);
+        return id == BlockStatePalette.UNKNOWN_ID ? null : entries[id];
+    }
+
+    /**
+     * Gets the populator specific rules as they were configured, before expansion.
+     *
+     * @return The rules keyed by populator type
+     */
+    public Map<PopulatorType, List<PopulatorMappingsRegistry.ReplacementEntry>> getPopulatorRules() {
+        return this.populatorRules;
+    }
+
+    public List<PopulatorMappingsRegistry.ReplacementEntry> getAllRules() {
+        return this.allRules;
+    }
+
+    /**
+     * Gets whether any rule picks its replacement by weight, the listener only derives the seed when it does.
+     *
+     * @return True if there are weighted rules
+     */
+    public boolean isWeighted() {
+        return this.weighted;
+    }
+
+    /**
+     * Gets the rules with conditions.
+     *
+     * @return The rules or null if there are none
+     */
+    public ConditionalRules getConditionalRules() {
+        return this.conditionalRules;
+    }
+
+    /**
+     * Gets whether there are rules without conditions, if there are none a world without conditional rules can be skipped entirely.
+     *
+     * @return True if there are rules without conditions
+     */
+    public boolean hasUnconditionalRules() {
+        return !this.populators.isEmpty() || this.all != null;
+    }
+
+    public boolean isEmpty() {
+        return !hasUnconditionalRules() && this.conditionalRules == null;
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.almuradev.swappa.retro.RetroSwapTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongepowered.api.block.BlockState;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Compiles the "all" mappings into a {@link RetroSwapTable} for the offline retro swap tool.
+ *
+ * <p>Region files store numeric block ids and metadata, which the Sponge API does not expose. They are read from the implementation's
+ * Block#getStateId instead, under either its deobfuscated or its SRG name. Some states share their id and metadata with others because
+ * part of their traits is derived from the surroundings rather than stored. Such a key is only swapped when every state that shares it
+ * is swapped to the same replacement. A key swapped to a key that is swapped itself is dropped as well, so a chunk swapped twice by a
+ * resumed run ends up the same.</p>
+ */
+final class RetroSwapExporter {
+
+    private static final Logger logger = LoggerFactory.getLogger(Swappa.PLUGIN_ID + "-retroswap");
+    private static final String[] GET_STATE_ID = {"getStateId", "func_176210_f"};
+
+    private final Method getStateId;
+
+    private RetroSwapExporter(Method getStateId) {
+        this.getStateId = getStateId;
+    }
+
+    static RetroSwapExporter create() throws ReflectiveOperationException {
+        final Class<?> blockClass = Class.forName("net.minecraft.block.Block");
+        final Class<?> stateClass = Class.forName("net.minecraft.block.state.IBlockState");
+        for (String name : GET_STATE_ID) {
+            try {
+                return new RetroSwapExporter(blockClass.getMethod(name, stateClass));
+            } catch (NoSuchMethodException ignore) {
+            }
+        }
+
+        throw new NoSuchMethodException("Block#getStateId");
+    }
+
+    private int key(BlockState state) throws InvocationTargetException, IllegalAccessException {
+        final int stateId = (Integer) this.getStateId.invoke(null, state);
+        return RetroSwapTable.key(stateId & 0xFFF, stateId >>> 12);
+    }
+
+    RetroSwapTable export(ReplacementTable table) throws ReflectiveOperationException {
+        final PopulatorMappingsRegistry.ReplacementEntry[] all = table.getAll();
+        final BlockStatePalette palette = table.getPalette();
+        final int[] replacements = new int[RetroSwapTable.KEYS];
+        final boolean[] seen = new boolean[RetroSwapTable.KEYS], ambiguous = new boolean[RetroSwapTable.KEYS];
+        Arrays.fill(replacements, RetroSwapTable.NONE);
+
+        for (int id = 0; id < palette.size(); id++) {
+            final int key = key(palette.get(id));
+            final PopulatorMappingsRegistry.ReplacementEntry entry = all == null ? null : all[id];
+            // The offline table maps every key to a single replacement, weighted rules are left to newly populated chunks
+            int replacement = entry == null || entry.weightedReplacement != null ? RetroSwapTable.NONE : key(entry.replacementBlockState);
+            if (replacement == key) {
+                replacement = RetroSwapTable.NONE;
+            }
+
+            if (!seen[key]) {
+                seen[key] = true;
+                replacements[key] = replacement;
+            } else if (replacements[key] != replacement) {
+                ambiguous[key] = true;
+            }
+        }
+
+        for (PopulatorMappingsRegistry.ReplacementEntry rule : table.getAllRules()) {
+            if (rule.weightedReplacement != null) {
+                logger.warn("Not swapping [" + rule + "] offline as weighted rules only apply to newly populated chunks.");
+            }
+        }
+        if (table.getConditionalRules() != null) {
+            logger.warn("Not swapping conditional rules offline as they only apply to newly populated chunks.");
+        }
+
+        for (int key = 0; key < RetroSwapTable.KEYS; key++) {
+            if (ambiguous[key] && replacements[key] != RetroSwapTable.NONE) {
+                logger.warn("Not swapping block id [" + (key >>> 4) + "] meta [" + (key & 0xF) + "] offline as only some of the states stored "
+                        + "under it have the same \"all\" rule.");
+                replacements[key] = RetroSwapTable.NONE;
+            }
+        }
+
+        // A resumed run swaps some chunks again, which is only safe when no key is swapped to a key that is swapped itself. Whether a
+        // key goes is decided on the table as it was, so dropping one never leaves another chain behind and cycles are dropped whole.
+        final int[] chained = replacements.clone();
+        for (int key = 0; key < RetroSwapTable.KEYS; key++) {
+            if (chained[key] != RetroSwapTable.NONE && chained[chained[key]] != RetroSwapTable.NONE) {
+                logger.warn("Not swapping block id [" + (key >>> 4) + "] meta [" + (key & 0xF) + "] offline as it is swapped to block id ["
+                        + (chained[key] >>> 4) + "] meta [" + (chained[key] & 0xF) + "], which is swapped itself.");
+                replacements[key] = RetroSwapTable.NONE;
+            }
+        }
+
+        return new RetroSwapTable(replacements);
+    }
+}
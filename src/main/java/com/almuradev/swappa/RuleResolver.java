@@ -0,0 +1,247 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.flowpowered.math.vector.Vector3i;
+import org.spongepowered.api.block.BlockSnapshot;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.block.BlockTransaction;
+import org.spongepowered.api.event.world.chunk.PopulateChunkEvent;
+import org.spongepowered.api.world.World;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.util.List;
+
+/**
+ * Resolves the rule of a {@link ReplacementTable} that replaces a populated block and the state it is replaced with. The populate listener
+ * and {@link ShadowMode} both go through it, so a candidate table is evaluated exactly the way it would be applied.
+ *
+ * <p>A resolver handles one table for one chunk, one populator at a time. {@link #populator(PopulatorType, List)} selects the populator
+ * and {@link #resolve(BlockSnapshot, BlockState)} is then called for its transactions in order, as the lookups it remembers between
+ * calls assume neighbouring transactions. Resolvers of different tables for the same chunk share a {@link PopulatedChunk}, so the
+ * neighbour index and the vein clusters, which are both kept per thread, are built once.</p>
+ */
+final class RuleResolver {
+
+    private final ReplacementTable table;
+    private final PopulatedChunk chunk;
+    private final ConditionalRules.WorldRules worldRules;
+    private final BlockStatePalette palette;
+    private final long seed;
+
+    // Of the selected populator
+    private PopulatorType populatorType;
+    private PopulatorMappingsRegistry.ReplacementEntry[] populatorEntries;
+    private long[] sources;
+    // Populators tend to emit runs of the same state (a vein of stone, a lake of water) so the previous id is remembered
+    private BlockState lastState;
+    private int lastStateId;
+    // Conditional rules are resolved per column and height. Both change far less often than the state does, so the biome is only looked
+    // up when the column changes
+    private PopulatorMappingsRegistry.ReplacementEntry[] entries;
+    private int lastX, lastZ;
+    private ConditionalRules.BiomeRules biomeRules;
+    private ConditionalRules.Layer lastLayer;
+    private ConditionalRules.Guard[] guards;
+    private int rejected;
+
+    RuleResolver(ReplacementTable table, PopulatedChunk chunk) {
+        this.table = table;
+        this.chunk = chunk;
+        this.worldRules = table.getConditionalRules() == null ? null : table.getConditionalRules().get(chunk.world);
+        this.palette = table.getPalette();
+        this.seed = table.isWeighted() ? WeightedReplacement.seed(chunk.world.getProperties().getSeed()) : 0L;
+    }
+
+    /**
+     * Gets whether any rule of the table may apply to the chunk at all.
+     *
+     * @return False if the chunk can be skipped
+     */
+    boolean isApplicable() {
+        return this.worldRules != null || this.table.hasUnconditionalRules();
+    }
+
+    /**
+     * Selects the populator whose transactions are resolved next.
+     *
+     * @param populatorType The populator
+     * @param transactions Its transactions
+     * @return False if no rule replaces anything for this populator, its transactions can then be skipped
+     */
+    boolean populator(PopulatorType populatorType, List<BlockTransaction> transactions) {
+        this.chunk.populator(transactions);
+        this.populatorType = populatorType;
+        this.populatorEntries = this.table.get(populatorType);
+        this.sources = this.table.getSources(populatorType);
+        this.lastState = null;
+        this.lastStateId = BlockStatePalette.UNKNOWN_ID;
+        this.entries = this.populatorEntries;
+        this.lastX = Integer.MIN_VALUE;
+        this.lastZ = Integer.MIN_VALUE;
+        this.biomeRules = null;
+        this.lastLayer = null;
+        this.guards = null;
+        this.rejected = 0;
+
+        return this.sources != null && (this.populatorEntries != null || this.worldRules != null);
+    }
+
+    /**
+     * Resolves the rule that replaces a block of the selected populator.
+     *
+     * @param populated The block as populated
+     * @param state Its state
+     * @return The rule or null if no rule replaces it
+     */
+    PopulatorMappingsRegistry.ReplacementEntry resolve(BlockSnapshot populated, BlockState state) {
+        if (state != this.lastState) {
+            this.lastState = state;
+            this.lastStateId = this.palette.getId(state);
+        }
+        final int stateId = this.lastStateId;
+        // No rule for this populator replaces the state, whatever the conditions
+        if (stateId == BlockStatePalette.UNKNOWN_ID || (this.sources[stateId >>> 6] & 1L << stateId) == 0) {
+            this.rejected++;
+            return null;
+        }
+
+        if (this.worldRules != null) {
+            final Vector3i position = populated.getPosition();
+            if (position.getX() != this.lastX || position.getZ() != this.lastZ) {
+                this.lastX = position.getX();
+                this.lastZ = position.getZ();
+                this.biomeRules = this.worldRules.get(this.chunk.world.getBiome(this.lastX, this.lastZ));
+            }
+
+            final ConditionalRules.Layer layer = this.biomeRules == null ? null : this.biomeRules.get(position.getY());
+            if (layer != this.lastLayer) {
+                this.lastLayer = layer;
+                this.entries = layer == null ? this.populatorEntries : layer.get(this.populatorType);
+                this.guards = layer == null ? null : layer.getGuards(this.populatorType);
+            }
+            if (this.entries == null) {
+                return null;
+            }
+        }
+
+        final ConditionalRules.Guard guard = this.guards == null ? null : this.guards[stateId];
+        if (guard != null) {
+            final Vector3i position = populated.getPosition();
+            final PopulatorMappingsRegistry.ReplacementEntry guarded = guard.resolve(this.chunk.getNeighbourIndex(), position.getX(),
+                    position.getY(), position.getZ());
+            if (guarded != null) {
+                return guarded;
+            }
+        }
+
+        return this.entries[stateId];
+    }
+
+    /**
+     * Gets the state a rule replaces a block of the selected populator with.
+     *
+     * @param rule The rule resolved for the block
+     * @param index The index of the block in the populator's transactions
+     * @param populated The block as populated
+     * @return The replacement, a weighted rule may pick the populated state itself
+     */
+    BlockState replace(PopulatorMappingsRegistry.ReplacementEntry rule, int index, BlockSnapshot populated) {
+        if (rule.weightedReplacement == null) {
+            return rule.replacementBlockState;
+        }
+
+        if (this.chunk.veinMode) {
+            // Picking at the cluster's first block gives the whole vein the same state
+            final VeinClusters clusters = this.chunk.getClusters();
+            final int representative = clusters.getRepresentative(index);
+            return rule.weightedReplacement.pick(this.seed, clusters.getX(representative), clusters.getY(representative), clusters.getZ(
+                    representative));
+        }
+
+        final Vector3i position = populated.getPosition();
+        return rule.weightedReplacement.pick(this.seed, position.getX(), position.getY(), position.getZ());
+    }
+
+    /**
+     * Gets how many blocks of the selected populator were rejected without looking at any rule, as no rule replaces their state.
+     *
+     * @return The amount
+     */
+    int getRejected() {
+        return this.rejected;
+    }
+
+    /**
+     * What the resolvers of one populated chunk share.
+     */
+    static final class PopulatedChunk {
+
+        final World world;
+        final boolean veinMode;
+        final PopulateChunkEvent.Post event;
+        private final BlockStatePalette palette;
+        // Only indexed once the first rule with neighbour conditions applies
+        private NeighbourIndex neighbourIndex;
+        private List<BlockTransaction> transactions;
+        // Only clustered once the first weighted rule fires
+        private VeinClusters clusters;
+
+        /**
+         * @param event The event
+         * @param palette The palette the tables are indexed by
+         * @param veinMode Whether weighted rules pick once per cluster of touching blocks
+         */
+        PopulatedChunk(PopulateChunkEvent.Post event, BlockStatePalette palette, boolean veinMode) {
+            this.world = event.getTargetChunk().getWorld();
+            this.veinMode = veinMode;
+            this.event = event;
+            this.palette = palette;
+        }
+
+        void populator(List<BlockTransaction> transactions) {
+            if (transactions != this.transactions) {
+                this.transactions = transactions;
+                this.clusters = null;
+            }
+        }
+
+        NeighbourIndex getNeighbourIndex() {
+            if (this.neighbourIndex == null) {
+                this.neighbourIndex = new NeighbourIndex(this.event, this.palette);
+            }
+
+            return this.neighbourIndex;
+        }
+
+        VeinClusters getClusters() {
+            if (this.clusters == null) {
+                this.clusters = VeinClusters.of(this.transactions);
+            }
+
+            return this.clusters;
+        }
+    }
+}
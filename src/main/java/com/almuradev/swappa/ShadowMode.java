@@ -0,0 +1,216 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import org.spongepowered.api.block.BlockSnapshot;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.block.BlockTransaction;
+import org.spongepowered.api.world.gen.PopulatorType;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Evaluates a candidate populators.yml next to the live one without changing anything.
+ *
+ * <p>A sample of the populated chunks is run through both tables from the same populated states. Every rule of either table counts the
+ * blocks it would have replaced and every populator counts how many of its blocks each side would change, how many end up differently
+ * and by how much each state's count would move if the candidate went live. The live mappings are applied as usual, so the live side of
+ * the report is what the server actually did for the sampled chunks.</p>
+ */
+public final class ShadowMode {
+
+    private final ReplacementTable candidate;
+    private final double sampleRate;
+    private final long started = System.currentTimeMillis();
+    private final LongAdder sampledChunks = new LongAdder(), seenChunks = new LongAdder();
+    private final Map<PopulatorMappingsRegistry.ReplacementEntry, LongAdder> wouldFire = new ConcurrentHashMap<>();
+    private final Map<PopulatorType, PopulatorImpact> populators = new ConcurrentHashMap<>();
+
+    /**
+     * @param candidate The candidate table, compiled against the same palette as the live one
+     * @param sampleRate The share of chunks to evaluate, between 0 and 1
+     */
+    public ShadowMode(ReplacementTable candidate, double sampleRate) {
+        this.candidate = candidate;
+        this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+    }
+
+    public ReplacementTable getCandidate() {
+        return this.candidate;
+    }
+
+    public double getSampleRate() {
+        return this.sampleRate;
+    }
+
+    public long getSampledChunks() {
+        return this.sampledChunks.sum();
+    }
+
+    /**
+     * Evaluates a populated chunk if it is sampled. This has to run before the live mappings are applied to the chunk.
+     *
+     * @param chunk The populated chunk, shared with the resolver the live table is then applied through
+     * @param live The live table
+     */
+    void onPopulate(RuleResolver.PopulatedChunk chunk, ReplacementTable live) {
+        this.seenChunks.increment();
+        if (this.sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= this.sampleRate) {
+            return;
+        }
+
+        this.sampledChunks.increment();
+        final BlockStatePalette palette = this.candidate.getPalette();
+        final RuleResolver liveResolver = new RuleResolver(live, chunk);
+        final RuleResolver candidateResolver = new RuleResolver(this.candidate, chunk);
+        BlockState[] liveResults = new BlockState[0], candidateResults = new BlockState[0];
+        for (Map.Entry<PopulatorType, List<BlockTransaction>> entry : chunk.event.getPopulatedTransactions().entrySet()) {
+            final PopulatorType populatorType = entry.getKey();
+            final List<BlockTransaction> transactions = entry.getValue();
+            if (liveResults.length < transactions.size()) {
+                liveResults = new BlockState[transactions.size()];
+                candidateResults = new BlockState[transactions.size()];
+            }
+
+            final int liveChanged = evaluate(liveResolver, populatorType, transactions, liveResults);
+            final int candidateChanged = evaluate(candidateResolver, populatorType, transactions, candidateResults);
+            final PopulatorImpact impact = this.populators.computeIfAbsent(populatorType, type -> new PopulatorImpact(palette.size()));
+            synchronized (impact) {
+                impact.transactions += transactions.size();
+                impact.changedLive += liveChanged;
+                impact.changedCandidate += candidateChanged;
+                for (int i = 0; i < transactions.size(); i++) {
+                    if (liveResults[i] != candidateResults[i]) {
+                        impact.differing++;
+                        impact.delta(palette.getId(candidateResults[i]), 1);
+                        impact.delta(palette.getId(liveResults[i]), -1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Works out what the resolver's table would turn the populator's blocks into, through the same {@link RuleResolver} the populate
+     * listener applies the live table with.
+     *
+     * @return How many blocks would be changed
+     */
+    private int evaluate(RuleResolver resolver, PopulatorType populatorType, List<BlockTransaction> transactions, BlockState[] results) {
+        final boolean applies = resolver.populator(populatorType, transactions);
+        int changed = 0;
+        for (int i = 0; i < transactions.size(); i++) {
+            final BlockSnapshot populated = transactions.get(i).getFinalReplacement();
+            final BlockState state = populated.getState();
+            results[i] = state;
+            if (!applies) {
+                continue;
+            }
+
+            final PopulatorMappingsRegistry.ReplacementEntry replacementEntry = resolver.resolve(populated, state);
+            if (replacementEntry == null) {
+                continue;
+            }
+
+            final BlockState replacement = resolver.replace(replacementEntry, i, populated);
+            if (replacement != state) {
+                results[i] = replacement;
+                this.wouldFire.computeIfAbsent(replacementEntry, rule -> new LongAdder()).increment();
+                changed++;
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Writes the report into the provided node.
+     *
+     * @param rootNode The node to write to
+     * @param live The live table at the time of writing
+     */
+    public void write(ConfigurationNode rootNode, ReplacementTable live) {
+        rootNode.getNode("started").setValue(this.started);
+        rootNode.getNode("stopped").setValue(System.currentTimeMillis());
+        rootNode.getNode("sample-rate").setValue(this.sampleRate);
+        rootNode.getNode("chunks", "seen").setValue(this.seenChunks.sum());
+        rootNode.getNode("chunks", "sampled").setValue(this.sampledChunks.sum());
+
+        final BlockStatePalette palette = this.candidate.getPalette();
+        for (Map.Entry<PopulatorType, PopulatorImpact> entry : this.populators.entrySet()) {
+            final ConfigurationNode populatorNode = rootNode.getNode("populators", entry.getKey().getId());
+            final PopulatorImpact impact = entry.getValue();
+            synchronized (impact) {
+                populatorNode.getNode("transactions").setValue(impact.transactions);
+                populatorNode.getNode("replaced-live").setValue(impact.changedLive);
+                populatorNode.getNode("replaced-candidate").setValue(impact.changedCandidate);
+                populatorNode.getNode("differing").setValue(impact.differing);
+                for (int id = 0; id < impact.deltas.length; id++) {
+                    if (impact.deltas[id] != 0) {
+                        populatorNode.getNode("deltas", palette.get(id).toString()).setValue(impact.deltas[id]);
+                    }
+                }
+            }
+        }
+
+        writeRules(rootNode.getNode("rules", "live"), live);
+        writeRules(rootNode.getNode("rules", "candidate"), this.candidate);
+    }
+
+    private void writeRules(ConfigurationNode rulesNode, ReplacementTable table) {
+        // Rules that never fire are kept in the report, a candidate rule that matches nothing is worth knowing about
+        for (Map.Entry<String, PopulatorMappingsRegistry.ReplacementEntry> rule : Metrics.getRules(table)) {
+            final LongAdder count = this.wouldFire.get(rule.getValue());
+            rulesNode.getNode(rule.getKey(), rule.getValue().toString()).setValue(count == null ? 0L : count.sum());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "sampled [" + this.sampledChunks.sum() + "] of [" + this.seenChunks.sum() + "] chunks at [" + this.sampleRate + "]";
+    }
+
+    private static final class PopulatorImpact {
+
+        long transactions, changedLive, changedCandidate, differing;
+        // How many more blocks of each state the candidate would leave behind than the live mappings did
+        final long[] deltas;
+
+        PopulatorImpact(int states) {
+            this.deltas = new long[states];
+        }
+
+        void delta(int stateId, long amount) {
+            if (stateId != BlockStatePalette.UNKNOWN_ID) {
+                this.deltas[stateId] += amount;
+            }
+        }
+    }
+}
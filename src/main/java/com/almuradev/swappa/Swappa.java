@@ -24,29 +24,40 @@
  */
 package com.almuradev.swappa;
 
+import com.almuradev.swappa.retro.RetroSwapTable;
+import com.flowpowered.math.vector.Vector3i;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import ninja.leaping.configurate.ConfigurationNode;
 import ninja.leaping.configurate.ConfigurationOptions;
+import ninja.leaping.configurate.SimpleConfigurationNode;
 import ninja.leaping.configurate.yaml.YAMLConfigurationLoader;
 import org.slf4j.Logger;
+import org.spongepowered.api.Game;
 import org.spongepowered.api.GameRegistry;
+import org.spongepowered.api.block.BlockSnapshot;
 import org.spongepowered.api.block.BlockState;
 import org.spongepowered.api.block.BlockTransaction;
 import org.spongepowered.api.block.BlockType;
-import org.spongepowered.api.block.trait.BlockTrait;
 import org.spongepowered.api.event.Listener;
 import org.spongepowered.api.event.game.state.GameInitializationEvent;
 import org.spongepowered.api.event.game.state.GameLoadCompleteEvent;
+import org.spongepowered.api.event.game.state.GameStoppingServerEvent;
 import org.spongepowered.api.event.world.chunk.PopulateChunkEvent;
 import org.spongepowered.api.plugin.Plugin;
 import org.spongepowered.api.plugin.PluginContainer;
 import org.spongepowered.api.plugin.PluginManager;
 import org.spongepowered.api.service.config.DefaultConfig;
+import org.spongepowered.api.service.scheduler.Task;
 import org.spongepowered.api.text.Texts;
-import org.spongepowered.api.util.command.CommandException;
 import org.spongepowered.api.util.command.CommandResult;
+import org.spongepowered.api.util.command.CommandSource;
+import org.spongepowered.api.util.command.args.GenericArguments;
 import org.spongepowered.api.util.command.spec.CommandSpec;
+import org.spongepowered.api.world.DimensionType;
+import org.spongepowered.api.world.World;
+import org.spongepowered.api.world.biome.BiomeType;
 import org.spongepowered.api.world.gen.PopulatorType;
 import org.yaml.snakeyaml.DumperOptions;
 
@@ -55,26 +66,61 @@
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 @Plugin(id = Swappa.PLUGIN_ID, name = Swappa.PLUGIN_NAME, version = Swappa.PLUGIN_VERSION)
 public class Swappa {
 
     public static final String PLUGIN_ID = "swappa", PLUGIN_NAME = "Swappa", PLUGIN_VERSION = "1.0-r2.1", POPULATORS_FILE = "populators.yml",
-            BLOCKSTATES_FILE = "blockstates.yml", DUMP_FILE = "dump.yml";
+            BLOCKSTATES_FILE = "blockstates.yml", DUMP_FILE = "dump.yml", COMPACT_DUMP_FILE = "dump.txt", STATS_FILE = "stats.yml",
+            RETROSWAP_FILE = "retroswap.dat", MAPPINGS_CACHE_FILE = "mappings.cache", CANDIDATE_FILE = "populators.candidate.yml",
+            SHADOW_REPORT_FILE = "shadow-report.yml", TRACE_FILE = "populate.trace", PREGEN_FILE = "pregen.yml";
+    // Pregeneration progress is saved and reported every 30 seconds
+    private static final int PREGEN_SAVE_TICKS = 600;
     public static Swappa instance;
 
+    @Inject public Game game;
     @Inject public PluginManager pluginManager;
     @Inject public GameRegistry registry;
     @Inject public Logger logger;
     public ConfigurationNode populatorsRootNode, blockStatesRootNode;
+    private List<MappingsShard> mappingsShards = Collections.emptyList();
+    public BlockStatePalette palette = BlockStatePalette.EMPTY;
+    public final Metrics metrics = new Metrics();
+    public final DeferredReplacements deferredReplacements = new DeferredReplacements();
+    public volatile ShadowMode shadowMode;
+    private volatile boolean veinMode;
+    private volatile ReplacementJournal journal;
+    private volatile PopulateTrace.Recorder recorder;
+    private int journalSegmentBytes, journalCapacity;
+    private JournalRollback rollback;
+    private Task rollbackTask;
+    private volatile Pregenerator pregenerator;
+    private volatile PregenChunkLoader pregenLoader;
+    private Task pregenTask;
+    private int pregenTicks, pregenMaxInFlight;
+    private long pregenBudgetNanos;
+    private double pregenMinTps;
     @Inject
     @DefaultConfig(sharedRoot = false)
     private File configDir;
+    private final ScheduledExecutorService backgroundExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat(Swappa.PLUGIN_ID + "-background").setDaemon(true).build());
+    private ScheduledFuture<?> statsSnapshotTask;
 
     public Swappa() {
         instance = this;
@@ -84,76 +130,817 @@ public Swappa() {
     public void onGameInitialization(GameInitializationEvent event) {
         event.getGame().getCommandDispatcher().register(this, CommandSpec.builder()
                 .permission("swappa.command.dump")
+                .description(Texts.of("Dumps every block, its traits and optionally all of its states to " + Swappa.DUMP_FILE))
+                .arguments(GenericArguments.optional(GenericArguments.remainingJoinedStrings(Texts.of("options"))))
                 .executor((src, args) -> {
-                    final Path dumpMappingsPath = configDir.toPath().getParent().resolve(Swappa.DUMP_FILE);
-                    if (Files.exists(dumpMappingsPath)) {
-                        try {
-                            Files.delete(dumpMappingsPath);
-                        } catch (IOException e) {
-                            throw new CommandException(Texts.of(e));
+                    final List<String> options = Arrays.asList(args.<String>getOne("options").orElse("").trim().split("\\s+"));
+                    for (String option : options) {
+                        if (!option.isEmpty() && !option.equals("states") && !option.equals("compact")) {
+                            src.sendMessage(Texts.of("Unknown option [" + option + "], the options are states and compact."));
+                            return CommandResult.empty();
                         }
                     }
+                    final boolean permutations = options.contains("states");
+                    final boolean compact = options.contains("compact");
+                    final Path dumpMappingsPath = configDir.toPath().getParent().resolve(Swappa.DUMP_FILE);
+                    final Path compactDumpPath = compact ? configDir.toPath().getParent().resolve(Swappa.COMPACT_DUMP_FILE) : null;
 
-                    final YAMLConfigurationLoader dumpMappingsConfigLoader =
-                            YAMLConfigurationLoader.builder().setFile(dumpMappingsPath.toFile()).build();
-                    final ConfigurationNode dumpRootNode = dumpMappingsConfigLoader.createEmptyNode(ConfigurationOptions.defaults());
-                    final List<BlockType> blockTypes = (List<BlockType>) registry.getAllOf(BlockType.class);
-                    final List<BlockType> sorted = Lists.newArrayList(blockTypes);
+                    final List<BlockType> sorted = Lists.newArrayList(registry.getAllOf(BlockType.class));
                     Collections.sort(sorted, (o1, o2) -> o1.getName().compareTo(o2.getName()));
+                    final List<PopulatorType> populatorTypes = Lists.newArrayList(registry.getAllOf(PopulatorType.class));
+                    Collections.sort(populatorTypes, (o1, o2) -> o1.getId().compareTo(o2.getId()));
+                    final List<PluginContainer> plugins = Lists.newArrayList(pluginManager.getPlugins());
+                    Collections.sort(plugins, (o1, o2) -> o1.getId().compareTo(o2.getId()));
+                    final List<DimensionType> dimensionTypes = Lists.newArrayList(registry.getAllOf(DimensionType.class));
+                    Collections.sort(dimensionTypes, (o1, o2) -> o1.getId().compareTo(o2.getId()));
+                    final List<BiomeType> biomes = Lists.newArrayList(registry.getAllOf(BiomeType.class));
+                    Collections.sort(biomes, (o1, o2) -> o1.getId().compareTo(o2.getId()));
+                    final RegistryDumper dumper = new RegistryDumper(sorted, populatorTypes, plugins, dimensionTypes, biomes, palette, permutations);
 
-                    for (BlockType blockType : sorted) {
-                        final String[] modIdName = blockType.getName().split(":");
-                        final ConfigurationNode blockTypeRootNode = dumpRootNode.getNode(modIdName[0], modIdName[1]);
-                        if (!blockType.getTraits().isEmpty()) {
-                            for (BlockTrait<?> blockTrait : blockType.getTraits()) {
-                                final ConfigurationNode blockTraitRootNode = blockTypeRootNode.getNode(blockTrait.getName());
-                                final Collection<? extends Comparable<?>> possibleValues = blockTrait.getPossibleValues();
-                                blockTraitRootNode.setValue(possibleValues);
-                            }
+                    src.sendMessage(Texts.of("Dumping [" + sorted.size() + "] blocks" + (permutations ? " with all of their states" : "") + "..."));
+                    CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return dumper.dump(dumpMappingsPath, compactDumpPath, percent -> game.getScheduler().createTaskBuilder()
+                                    .execute(() -> src.sendMessage(Texts.of("Dumped " + percent + "%."))).submit(this));
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
                         }
-                    }
-
-                    try {
-                        dumpMappingsConfigLoader.save(dumpRootNode);
-
-                        src.sendMessage(Texts.of("Dumped saved successfully."));
-                    } catch (IOException e) {
-                        throw new CommandException(Texts.of(e));
-                    }
+                    }, this.backgroundExecutor).whenComplete((states, throwable) -> game.getScheduler().createTaskBuilder().execute(() -> {
+                        if (throwable != null) {
+                            this.logger.error("Failed to write " + Swappa.DUMP_FILE + "!", throwable);
+                            src.sendMessage(Texts.of("Dump failed: " + throwable.getMessage()));
+                        } else {
+                            src.sendMessage(Texts.of("Dumped saved successfully" + (permutations ? " with [" + states + "] states." : ".")));
+                        }
+                    }).submit(this));
 
                     return CommandResult.success();
                 })
                 .build(), "dump");
+
+        event.getGame().getCommandDispatcher().register(this, CommandSpec.builder()
+                .child(CommandSpec.builder()
+                        .permission("swappa.command.reload")
+                        .description(Texts.of("Reloads blockstates.yml and populators.yml in the background"))
+                        .executor((src, args) -> {
+                            src.sendMessage(Texts.of("Reloading mappings..."));
+                            final long start = System.nanoTime();
+                            reload().whenComplete((table, throwable) -> game.getScheduler().createTaskBuilder().execute(() -> {
+                                if (throwable != null) {
+                                    this.logger.error("Failed to reload mappings!", throwable);
+                                    src.sendMessage(Texts.of("Reload failed, the previous mappings are still in use: " + throwable.getMessage()));
+                                } else {
+                                    src.sendMessage(Texts.of("Reloaded mappings in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                                            + "ms."));
+                                }
+                            }).submit(this));
+
+                            return CommandResult.success();
+                        })
+                        .build(), "reload")
+                .child(CommandSpec.builder()
+                        .permission("swappa.command.stats")
+                        .description(Texts.of("Shows how many transactions were replaced and how long chunks took"))
+                        .executor((src, args) -> {
+                            if (!this.metrics.isEnabled()) {
+                                src.sendMessage(Texts.of("Metrics are disabled, see general.metrics in " + Swappa.POPULATORS_FILE + "."));
+                                return CommandResult.empty();
+                            }
+
+                            final Metrics.LatencyHistogram latency = this.metrics.getChunkLatency();
+                            src.sendMessage(Texts.of("Chunks [" + latency.getCount() + "], mean [" + latency.getMean() / 1000 + "us], p50 ["
+                                    + latency.getPercentile(50) / 1000 + "us], p99 [" + latency.getPercentile(99) / 1000 + "us], max ["
+                                    + latency.getMax() / 1000 + "us]"));
+                            src.sendMessage(Texts.of("Deferred " + this.deferredReplacements));
+                            final ReplacementJournal journal = this.journal;
+                            if (journal != null) {
+                                src.sendMessage(Texts.of("Journal " + journal));
+                            }
+                            long seen = 0, skipped = 0, rejected = 0;
+                            for (Map.Entry<PopulatorType, Metrics.PopulatorCounters> entry : this.metrics.getPopulators().entrySet()) {
+                                final Metrics.PopulatorCounters counters = entry.getValue();
+                                src.sendMessage(Texts.of("Populator [" + entry.getKey().getId() + "] replaced [" + counters.replaced.sum()
+                                        + "] of [" + counters.seen.sum() + "], skipped [" + counters.skipped.sum() + "], rejected ["
+                                        + counters.rejected.sum() + "]"));
+                                seen += counters.seen.sum();
+                                skipped += counters.skipped.sum();
+                                rejected += counters.rejected.sum();
+                            }
+                            src.sendMessage(Texts.of("Skipped [" + skipped + "] transactions of populators no rule applies to and rejected ["
+                                    + rejected + "] whose state no rule replaces, [" + (seen == 0 ? 0 : (skipped + rejected) * 100 / seen)
+                                    + "%] of [" + seen + "] without resolving a rule"));
+
+                            int shown = 0;
+                            for (Map.Entry<String, PopulatorMappingsRegistry.ReplacementEntry> rule : Metrics.getRulesByFired(
+                                    PopulatorMappingsRegistry.getTable())) {
+                                if (shown++ == 10) {
+                                    break;
+                                }
+                                src.sendMessage(Texts.of("Rule [" + rule.getValue() + "] in [" + rule.getKey() + "] fired [" + rule.getValue().fired
+                                        .sum() + "]"));
+                            }
+
+                            return CommandResult.success();
+                        })
+                        .child(CommandSpec.builder()
+                                .description(Texts.of("Resets the counters shown by /swappa stats"))
+                                .executor((src, args) -> {
+                                    this.metrics.reset(PopulatorMappingsRegistry.getTable());
+                                    src.sendMessage(Texts.of("Reset the stats."));
+                                    return CommandResult.success();
+                                })
+                                .build(), "reset")
+                        .build(), "stats")
+                .child(CommandSpec.builder()
+                        .permission("swappa.command.retroswap")
+                        .description(Texts.of("Exports the \"all\" mappings for the offline retro swap tool"))
+                        .executor((src, args) -> {
+                            final Path tablePath = configDir.toPath().getParent().resolve(Swappa.RETROSWAP_FILE);
+                            final ReplacementTable table = PopulatorMappingsRegistry.getTable();
+                            CompletableFuture.supplyAsync(() -> {
+                                try {
+                                    final RetroSwapTable retroSwapTable = RetroSwapExporter.create().export(table);
+                                    retroSwapTable.write(tablePath);
+                                    return retroSwapTable.size();
+                                } catch (IOException | ReflectiveOperationException e) {
+                                    throw new CompletionException(e);
+                                }
+                            }, this.backgroundExecutor).whenComplete((keys, throwable) -> game.getScheduler().createTaskBuilder().execute(() -> {
+                                if (throwable != null) {
+                                    this.logger.error("Failed to export " + Swappa.RETROSWAP_FILE + "!", throwable);
+                                    src.sendMessage(Texts.of("Export failed: " + throwable.getMessage()));
+                                } else {
+                                    src.sendMessage(Texts.of("Exported [" + keys + "] block ids to " + tablePath + ". Stop the server, back up the world"
+                                            + " and run: java -jar " + Swappa.PLUGIN_ID + ".jar " + tablePath + " <world>/region"));
+                                }
+                            }).submit(this));
+
+                            return CommandResult.success();
+                        })
+                        .build(), "retroswap")
+                .child(CommandSpec.builder()
+                        .permission("swappa.command.shadow")
+                        .description(Texts.of("Compares " + Swappa.CANDIDATE_FILE + " with the live mappings without applying it"))
+                        .executor((src, args) -> {
+                            final ShadowMode shadowMode = this.shadowMode;
+                            src.sendMessage(Texts.of(shadowMode == null ? "Shadow mode is off." : "Shadow mode " + shadowMode));
+                            return CommandResult.success();
+                        })
+                        .child(CommandSpec.builder()
+                                .description(Texts.of("Starts evaluating " + Swappa.CANDIDATE_FILE + " on a sample of populated chunks"))
+                                .arguments(GenericArguments.optional(GenericArguments.string(Texts.of("sample-rate"))))
+                                .executor((src, args) -> {
+                                    final double sampleRate;
+                                    try {
+                                        sampleRate = Double.parseDouble(args.<String>getOne("sample-rate").orElse("0.1"));
+                                    } catch (NumberFormatException e) {
+                                        src.sendMessage(Texts.of("The sample rate must be a number between 0 and 1."));
+                                        return CommandResult.empty();
+                                    }
+
+                                    CompletableFuture.supplyAsync(() -> {
+                                        try {
+                                            return loadCandidate();
+                                        } catch (IOException e) {
+                                            throw new CompletionException(e);
+                                        }
+                                    }, this.backgroundExecutor).whenComplete((candidate, throwable) -> game.getScheduler().createTaskBuilder()
+                                            .execute(() -> {
+                                                if (throwable != null) {
+                                                    this.logger.error("Failed to compile " + Swappa.CANDIDATE_FILE + "!", throwable);
+                                                    src.sendMessage(Texts.of("Shadow mode was not started: " + throwable.getMessage()));
+                                                } else {
+                                                    this.shadowMode = new ShadowMode(candidate, sampleRate);
+                                                    src.sendMessage(Texts.of("Shadow mode started, sampling [" + this.shadowMode.getSampleRate()
+                                                            + "] of populated chunks."));
+                                                }
+                                            }).submit(this));
+
+                                    return CommandResult.success();
+                                })
+                                .build(), "start")
+                        .child(CommandSpec.builder()
+                                .description(Texts.of("Stops shadow mode and writes " + Swappa.SHADOW_REPORT_FILE))
+                                .executor((src, args) -> {
+                                    final ShadowMode shadowMode = this.shadowMode;
+                                    if (shadowMode == null) {
+                                        src.sendMessage(Texts.of("Shadow mode is off."));
+                                        return CommandResult.empty();
+                                    }
+
+                                    this.shadowMode = null;
+                                    final Path reportPath = configDir.toPath().getParent().resolve(Swappa.SHADOW_REPORT_FILE);
+                                    final ReplacementTable live = PopulatorMappingsRegistry.getTable();
+                                    CompletableFuture.runAsync(() -> {
+                                        final YAMLConfigurationLoader reportLoader = YAMLConfigurationLoader.builder().setFlowStyle(DumperOptions
+                                                .FlowStyle.BLOCK).setFile(reportPath.toFile()).build();
+                                        final ConfigurationNode reportRootNode = reportLoader.createEmptyNode(ConfigurationOptions.defaults());
+                                        shadowMode.write(reportRootNode, live);
+                                        try {
+                                            reportLoader.save(reportRootNode);
+                                        } catch (IOException e) {
+                                            throw new CompletionException(e);
+                                        }
+                                    }, this.backgroundExecutor).whenComplete((ignored, throwable) -> game.getScheduler().createTaskBuilder()
+                                            .execute(() -> {
+                                                if (throwable != null) {
+                                                    this.logger.error("Failed to write " + Swappa.SHADOW_REPORT_FILE + "!", throwable);
+                                                    src.sendMessage(Texts.of("Shadow mode stopped but the report failed: " + throwable.getMessage()));
+                                                } else {
+                                                    src.sendMessage(Texts.of("Shadow mode stopped after [" + shadowMode.getSampledChunks()
+                                                            + "] sampled chunks, see " + reportPath + "."));
+                                                }
+                                            }).submit(this));
+
+                                    return CommandResult.success();
+                                })
+                                .build(), "stop")
+                        .build(), "shadow")
+                .child(CommandSpec.builder()
+                        .permission("swappa.command.journal")
+                        .description(Texts.of("Queries the replacement journal and rolls back rules"))
+                        .executor((src, args) -> {
+                            final ReplacementJournal journal = this.journal;
+                            src.sendMessage(Texts.of(journal == null ? "The journal is disabled, see general.journal in " + Swappa.POPULATORS_FILE
+                                    + "." : "Journal " + journal));
+                            return CommandResult.success();
+                        })
+                        .child(CommandSpec.builder()
+                                .description(Texts.of("Shows the journaled replacements of a chunk"))
+                                .arguments(GenericArguments.string(Texts.of("world")), GenericArguments.integer(Texts.of("x")),
+                                        GenericArguments.integer(Texts.of("z")))
+                                .executor((src, args) -> {
+                                    final String worldName = args.<String>getOne("world").get();
+                                    final int chunkX = args.<Integer>getOne("x").get(), chunkZ = args.<Integer>getOne("z").get();
+                                    queryJournal(src, entry -> entry.worldName.equals(worldName) && entry.getX() >> 4 == chunkX
+                                            && entry.getZ() >> 4 == chunkZ, entry -> entry.rule, "Chunk [" + chunkX + ", " + chunkZ + "] of ["
+                                            + worldName + "]");
+                                    return CommandResult.success();
+                                })
+                                .build(), "chunk")
+                        .child(CommandSpec.builder()
+                                .description(Texts.of("Shows which chunks rules containing the provided text replaced blocks in"))
+                                .arguments(GenericArguments.remainingJoinedStrings(Texts.of("rule")))
+                                .executor((src, args) -> {
+                                    final String rule = args.<String>getOne("rule").get();
+                                    queryJournal(src, entry -> entry.rule.contains(rule), entry -> "[" + entry.rule + "] in [" + entry.worldName
+                                            + "] chunk [" + (entry.getX() >> 4) + ", " + (entry.getZ() >> 4) + "]", "Rules matching [" + rule + "]");
+                                    return CommandResult.success();
+                                })
+                                .build(), "rule")
+                        .child(CommandSpec.builder()
+                                .description(Texts.of("Restores the blocks a rule replaced, as far as they were not changed since"))
+                                .arguments(GenericArguments.remainingJoinedStrings(Texts.of("rule")))
+                                .executor((src, args) -> {
+                                    if (this.rollback != null) {
+                                        src.sendMessage(Texts.of("Already rolling back " + this.rollback + "."));
+                                        return CommandResult.empty();
+                                    }
+
+                                    final String rule = args.<String>getOne("rule").get();
+                                    final Path journalPath = configDir.toPath().getParent().resolve(ReplacementJournal.DIRECTORY);
+                                    final BlockStatePalette palette = this.palette;
+                                    CompletableFuture.supplyAsync(() -> {
+                                        try {
+                                            return JournalRollback.read(journalPath, rule, palette);
+                                        } catch (IOException e) {
+                                            throw new CompletionException(e);
+                                        }
+                                    }, this.backgroundExecutor).whenComplete((rollback, throwable) -> game.getScheduler().createTaskBuilder()
+                                            .execute(() -> {
+                                                if (throwable != null) {
+                                                    this.logger.error("Failed to read the journal!", throwable);
+                                                    src.sendMessage(Texts.of("Rollback failed: " + throwable.getMessage()));
+                                                } else if (rollback.getTotal() == 0) {
+                                                    src.sendMessage(Texts.of("Nothing was journaled for rule [" + rule + "], see /swappa journal"
+                                                            + " rule for the exact rule."));
+                                                } else if (this.rollback == null) {
+                                                    this.rollback = rollback;
+                                                    src.sendMessage(Texts.of("Rolling back [" + rollback.getTotal() + "] replacements..."));
+                                                    this.rollbackTask = game.getScheduler().createTaskBuilder().name(Swappa.PLUGIN_ID + "-rollback")
+                                                            .interval(1).execute(() -> {
+                                                                if (rollback.tick(game.getServer())) {
+                                                                    this.rollbackTask.cancel();
+                                                                    this.rollback = null;
+                                                                    this.logger.info("Rolled back " + rollback + ".");
+                                                                    src.sendMessage(Texts.of("Rolled back " + rollback + "."));
+                                                                }
+                                                            }).submit(this);
+                                                }
+                                            }).submit(this));
+
+                                    return CommandResult.success();
+                                })
+                                .build(), "rollback")
+                        .build(), "journal")
+                .child(CommandSpec.builder()
+                        .permission("swappa.command.capture")
+                        .description(Texts.of("Records populated chunks to " + Swappa.TRACE_FILE + " for the replay harness"))
+                        .child(CommandSpec.builder()
+                                .description(Texts.of("Starts recording, up to the provided amount of chunks"))
+                                .arguments(GenericArguments.optional(GenericArguments.integer(Texts.of("chunks"))))
+                                .executor((src, args) -> {
+                                    if (this.recorder != null) {
+                                        src.sendMessage(Texts.of("Already capturing, " + this.recorder + "."));
+                                        return CommandResult.empty();
+                                    }
+
+                                    final Path tracePath = configDir.toPath().getParent().resolve(Swappa.TRACE_FILE);
+                                    try {
+                                        this.recorder = new PopulateTrace.Recorder(tracePath, this.palette, this.backgroundExecutor, args
+                                                .<Integer>getOne("chunks").orElse(1000));
+                                    } catch (IOException e) {
+                                        this.logger.error("Failed to create " + Swappa.TRACE_FILE + "!", e);
+                                        src.sendMessage(Texts.of("Capture failed: " + e.getMessage()));
+                                        return CommandResult.empty();
+                                    }
+                                    src.sendMessage(Texts.of("Capturing populated chunks to " + tracePath + "."));
+                                    return CommandResult.success();
+                                })
+                                .build(), "start")
+                        .child(CommandSpec.builder()
+                                .description(Texts.of("Stops recording and closes " + Swappa.TRACE_FILE))
+                                .executor((src, args) -> {
+                                    final PopulateTrace.Recorder recorder = this.recorder;
+                                    if (recorder == null) {
+                                        src.sendMessage(Texts.of("Not capturing."));
+                                        return CommandResult.empty();
+                                    }
+
+                                    stopCapture(recorder).whenComplete((ignored, throwable) -> game.getScheduler().createTaskBuilder().execute(() ->
+                                            src.sendMessage(Texts.of(throwable != null ? "Capture failed: " + throwable.getMessage() : "Capture "
+                                                    + recorder + "."))).submit(this));
+                                    return CommandResult.success();
+                                })
+                                .build(), "stop")
+                        .build(), "capture")
+                .child(CommandSpec.builder()
+                        .permission("swappa.command.pregen")
+                        .description(Texts.of("Generates every chunk within a radius in blocks around a world's spawn, resuming where it left off"))
+                        .arguments(GenericArguments.optional(GenericArguments.seq(GenericArguments.string(Texts.of("world")), GenericArguments
+                                .integer(Texts.of("radius")))))
+                        .executor((src, args) -> {
+                            final Optional<String> worldName = args.getOne("world");
+                            if (!worldName.isPresent()) {
+                                final Pregenerator pregenerator = this.pregenerator;
+                                src.sendMessage(Texts.of(pregenerator == null ? "Not pregenerating." : "Pregenerating " + pregenerator));
+                                return CommandResult.success();
+                            }
+                            if (this.pregenerator != null) {
+                                src.sendMessage(Texts.of("Already pregenerating " + this.pregenerator + "."));
+                                return CommandResult.empty();
+                            }
+
+                            final Optional<World> world = game.getServer().getWorld(worldName.get());
+                            final int radius = args.<Integer>getOne("radius").get();
+                            if (!world.isPresent() || radius < 0) {
+                                src.sendMessage(Texts.of(!world.isPresent() ? "World [" + worldName.get() + "] is not loaded." : "The radius must"
+                                        + " not be negative."));
+                                return CommandResult.empty();
+                            }
+
+                            final PregenChunkLoader loader = new PregenChunkLoader(world.get().getUniqueId());
+                            final Pregenerator pregenerator;
+                            try {
+                                pregenerator = createPregen(world.get(), radius, loader);
+                            } catch (IOException e) {
+                                this.logger.error("Failed to read " + Swappa.PREGEN_FILE + "!", e);
+                                src.sendMessage(Texts.of("Pregeneration failed: " + e.getMessage()));
+                                return CommandResult.empty();
+                            }
+                            this.pregenerator = pregenerator;
+                            this.pregenLoader = loader;
+                            this.pregenTicks = 0;
+                            this.pregenTask = game.getScheduler().createTaskBuilder().name(Swappa.PLUGIN_ID + "-pregen").interval(1).execute(() -> {
+                                final long start = System.nanoTime();
+                                pregenerator.onGenerated(loader.tick(game.getServer()), System.nanoTime() - start);
+                                if (pregenerator.tick(System.nanoTime())) {
+                                    this.pregenTask.cancel();
+                                    this.pregenerator = null;
+                                    this.pregenLoader = null;
+                                    loader.close(game.getServer());
+                                    this.logger.info("Pregenerated " + pregenerator + ".");
+                                    src.sendMessage(Texts.of("Pregenerated " + pregenerator + "."));
+                                    CompletableFuture.runAsync(() -> {
+                                        try {
+                                            Files.deleteIfExists(configDir.toPath().getParent().resolve(Swappa.PREGEN_FILE));
+                                        } catch (IOException e) {
+                                            this.logger.error("Failed to delete " + Swappa.PREGEN_FILE + "!", e);
+                                        }
+                                    }, this.backgroundExecutor);
+                                } else if (++this.pregenTicks % PREGEN_SAVE_TICKS == 0) {
+                                    this.logger.info("Pregenerating " + pregenerator + ".");
+                                    savePregen(pregenerator);
+                                }
+                            }).submit(this);
+                            src.sendMessage(Texts.of("Pregenerating " + pregenerator + "."));
+                            return CommandResult.success();
+                        })
+                        .child(CommandSpec.builder()
+                                .description(Texts.of("Stops pregenerating and saves the progress to " + Swappa.PREGEN_FILE))
+                                .executor((src, args) -> {
+                                    final Pregenerator pregenerator = this.pregenerator;
+                                    if (pregenerator == null) {
+                                        src.sendMessage(Texts.of("Not pregenerating."));
+                                        return CommandResult.empty();
+                                    }
+
+                                    stopPregen(pregenerator);
+                                    src.sendMessage(Texts.of("Stopped pregenerating " + pregenerator + ", run the same command again to resume."));
+                                    return CommandResult.success();
+                                })
+                                .build(), "stop")
+                        .build(), "pregen")
+                .build(), Swappa.PLUGIN_ID);
     }
 
     @Listener
     public void onGameLoadComplete(GameLoadCompleteEvent event) throws Exception {
-        loadConfig();
-        BlockStateMappingsRegistry.load();
-        PopulatorMappingsRegistry.load();
+        palette = BlockStatePalette.build(registry.getAllOf(BlockType.class));
+        this.logger.info("Indexed [" + palette.size() + "] BlockStates.");
+        loadMappings(true);
+        game.getScheduler().createTaskBuilder().name(Swappa.PLUGIN_ID + "-deferred").interval(1)
+                .execute(() -> this.deferredReplacements.tick(game.getServer(), this.journal)).submit(this);
+    }
+
+    @Listener
+    public void onGameStoppingServer(GameStoppingServerEvent event) {
+        // Worlds are still loaded at this point, whatever is left would otherwise never be written
+        this.deferredReplacements.flush(game.getServer(), this.journal);
+        final PopulateTrace.Recorder recorder = this.recorder;
+        if (recorder != null) {
+            try {
+                stopCapture(recorder).join();
+            } catch (CompletionException ignored) {
+                // Already logged
+            }
+        }
+        final Pregenerator pregenerator = this.pregenerator;
+        if (pregenerator != null) {
+            stopPregen(pregenerator).join();
+        }
+        final ReplacementJournal journal = this.journal;
+        if (journal != null) {
+            this.journal = null;
+            try {
+                journal.close();
+            } catch (IOException e) {
+                this.logger.error("Failed to close the journal!", e);
+            }
+        }
+    }
 
-        for (Map.Entry<PluginContainer, Map<String, BlockState>> entry : BlockStateMappingsRegistry.getAll().entrySet()) {
+    /**
+     * Reloads the mappings on a background thread. Chunk population keeps using the previous mappings until the new ones are compiled.
+     *
+     * @return The future that completes once the new mappings are in use
+     */
+    public CompletableFuture<ReplacementTable> reload() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return loadMappings(false);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, this.backgroundExecutor);
+    }
+
+    /**
+     * Reads both mapping files, compiles them and then publishes the result. Nothing is published if either file fails to load so the
+     * listener always sees a complete set of mappings.
+     *
+     * @param useCache Whether the binary cache may be used when neither the files nor the registries changed since it was written. Reloads
+     *     skip it so unchanged sections keep their rules, and with them their counters.
+     */
+    private synchronized ReplacementTable loadMappings(boolean useCache) throws IOException {
+        final Path cachePath = configDir.toPath().getParent().resolve(Swappa.MAPPINGS_CACHE_FILE);
+        final Optional<MappingsCache> cached = useCache ? MappingsCache.read(cachePath, mappingsCacheKey(), palette) : Optional.empty();
+        final Map<PluginContainer, Map<String, BlockStatePattern>> mappings;
+        final ReplacementTable table;
+        if (cached.isPresent()) {
+            mappings = cached.get().mappings;
+            table = ReplacementTable.compile(palette, cached.get().populatorEntries, cached.get().allEntries, cached.get().conditionalRules);
+            blockStatesRootNode = SimpleConfigurationNode.root();
+            populatorsRootNode = SimpleConfigurationNode.root();
+            populatorsRootNode.getNode("general").setValue(cached.get().general);
+            this.logger.info("Loaded compiled mappings from " + Swappa.MAPPINGS_CACHE_FILE + ".");
+        } else {
+            loadConfig();
+            mappings = BlockStateMappingsRegistry.compile(blockStatesRootNode, mappingsShards);
+            table = PopulatorMappingsRegistry.compile(populatorsRootNode, mappingsShards, mappings, palette);
+            try {
+                // The defaults may have just been written so the key is computed again
+                new MappingsCache(mappings, table.getPopulatorRules(), table.getAllRules(), table.getConditionalRules() == null ? Collections
+                        .emptyList() : table.getConditionalRules().getRules(), populatorsRootNode.getNode("general").getValue()).write(cachePath,
+                        mappingsCacheKey(), palette);
+            } catch (IOException e) {
+                this.logger.warn("Failed to write " + Swappa.MAPPINGS_CACHE_FILE + ", mappings will be compiled again next time.", e);
+            }
+        }
+
+        BlockStateMappingsRegistry.publish(mappings);
+        PopulatorMappingsRegistry.setTable(table);
+
+        final ConfigurationNode metricsNode = populatorsRootNode.getNode("general", "metrics");
+        this.metrics.setEnabled(metricsNode.getNode("enabled").getBoolean(true));
+        scheduleStatsSnapshot(metricsNode.getNode("snapshot-interval").getInt(0));
+        this.veinMode = populatorsRootNode.getNode("general", "vein-mode").getBoolean(false);
+        final ConfigurationNode pregenNode = populatorsRootNode.getNode("general", "pregen");
+        this.pregenMaxInFlight = Math.max(1, pregenNode.getNode("max-in-flight").getInt(8));
+        this.pregenBudgetNanos = (long) (pregenNode.getNode("tick-budget-millis").getDouble(20) * 1000000);
+        this.pregenMinTps = pregenNode.getNode("min-tps").getDouble(18);
+        this.deferredReplacements.setBudgetNanos((long) (populatorsRootNode.getNode("general", "tick-budget-millis").getDouble(0) * 1000000));
+        final ConfigurationNode journalNode = populatorsRootNode.getNode("general", "journal");
+        configureJournal(journalNode.getNode("enabled").getBoolean(false), journalNode.getNode("segment-size-mb").getInt(64) << 20,
+                journalNode.getNode("buffer-size").getInt(65536));
+
+        for (Map.Entry<PluginContainer, Map<String, BlockStatePattern>> entry : mappings.entrySet()) {
             this.logger.info("Mod [" + entry.getKey().getId() + "] mapped [" + entry.getValue() + "].");
         }
+
+        return table;
+    }
+
+    /**
+     * Compiles {@value #CANDIDATE_FILE} against the live blockstate mappings and the current files of mappings.d.
+     *
+     * @return The candidate table
+     */
+    private ReplacementTable loadCandidate() throws IOException {
+        final Path dir = configDir.toPath().getParent();
+        final Path candidatePath = dir.resolve(Swappa.CANDIDATE_FILE);
+        if (Files.notExists(candidatePath)) {
+            throw new IOException("Copy " + Swappa.POPULATORS_FILE + " to " + Swappa.CANDIDATE_FILE + " and edit it first");
+        }
+
+        final ConfigurationNode candidateRootNode = YAMLConfigurationLoader.builder().setFile(candidatePath.toFile()).build().load();
+        return PopulatorMappingsRegistry.compileCandidate(candidateRootNode, MappingsShard.loadAll(dir.resolve(MappingsShard.DIRECTORY),
+                pluginManager), BlockStateMappingsRegistry.getAll(), palette);
+    }
+
+    private CompletableFuture<Void> stopCapture(PopulateTrace.Recorder recorder) {
+        this.recorder = null;
+        return recorder.close().whenComplete((ignored, throwable) -> {
+            if (throwable != null) {
+                this.logger.error("Failed to close " + Swappa.TRACE_FILE + "!", throwable);
+            } else {
+                this.logger.info("Capture " + recorder + ".");
+            }
+        });
+    }
+
+    /**
+     * Counts the journaled replacements that pass the filter in the background and shows the ten largest groups.
+     */
+    private void queryJournal(CommandSource src, Predicate<JournalReader.Entry> filter, Function<JournalReader.Entry, String> groupBy,
+            String title) {
+        final Path journalPath = configDir.toPath().getParent().resolve(ReplacementJournal.DIRECTORY);
+        CompletableFuture.supplyAsync(() -> {
+            final Map<String, Long> counts = new HashMap<>();
+            try {
+                JournalReader.read(journalPath, entry -> {
+                    if (filter.test(entry)) {
+                        counts.merge(groupBy.apply(entry), 1L, Long::sum);
+                    }
+                });
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            return counts;
+        }, this.backgroundExecutor).whenComplete((counts, throwable) -> game.getScheduler().createTaskBuilder().execute(() -> {
+            if (throwable != null) {
+                this.logger.error("Failed to read the journal!", throwable);
+                src.sendMessage(Texts.of("Query failed: " + throwable.getMessage()));
+                return;
+            }
+
+            src.sendMessage(Texts.of(title + " has [" + counts.values().stream().mapToLong(Long::longValue).sum() + "] journaled replacements."));
+            counts.entrySet().stream().sorted((o1, o2) -> Long.compare(o2.getValue(), o1.getValue())).limit(10).forEach(entry -> src
+                    .sendMessage(Texts.of(entry.getKey() + ": " + entry.getValue())));
+        }).submit(this));
+    }
+
+    /**
+     * Opens, reopens or closes the journal to match the settings. An open journal is only reopened when its settings changed.
+     */
+    private void configureJournal(boolean enabled, int segmentBytes, int capacity) throws IOException {
+        final ReplacementJournal current = this.journal;
+        if (current != null && (!enabled || segmentBytes != this.journalSegmentBytes || capacity != this.journalCapacity)) {
+            this.journal = null;
+            current.close();
+            this.logger.info("Closed the journal, " + current + ".");
+        }
+
+        if (enabled && this.journal == null) {
+            this.journal = ReplacementJournal.open(configDir.toPath().getParent().resolve(ReplacementJournal.DIRECTORY), segmentBytes, capacity);
+            this.journalSegmentBytes = segmentBytes;
+            this.journalCapacity = capacity;
+        }
+    }
+
+    /**
+     * Creates the pregenerator for a world, continuing the saved one if it was for the same world and radius.
+     *
+     * @param world The world
+     * @param radius The radius in blocks
+     * @param generator The generator requests go to
+     * @return The pregenerator
+     */
+    private Pregenerator createPregen(World world, int radius, Pregenerator.Generator generator) throws IOException {
+        // The generator loads the neighbours a chunk needs to be populated, the radius itself is enough
+        final int chunkRadius = radius + 15 >> 4;
+        final UUID worldUniqueId = world.getUniqueId();
+
+        final Path progressPath = configDir.toPath().getParent().resolve(Swappa.PREGEN_FILE);
+        if (Files.exists(progressPath)) {
+            final ConfigurationNode progressNode = YAMLConfigurationLoader.builder().setFile(progressPath.toFile()).build().load();
+            if (world.getName().equals(progressNode.getNode("world").getString()) && chunkRadius == progressNode.getNode("radius").getInt()) {
+                return Pregenerator.resume(progressNode, generator, worldUniqueId, this.pregenMaxInFlight, this.pregenBudgetNanos,
+                        this.pregenMinTps);
+            }
+        }
+
+        return new Pregenerator(generator, worldUniqueId, world.getName(), world.getSpawnLocation().getBlockX() >> 4, world.getSpawnLocation()
+                .getBlockZ() >> 4, chunkRadius, this.pregenMaxInFlight, this.pregenBudgetNanos, this.pregenMinTps);
+    }
+
+    private CompletableFuture<Void> stopPregen(Pregenerator pregenerator) {
+        this.pregenTask.cancel();
+        this.pregenerator = null;
+        this.logger.info("Stopped pregenerating " + pregenerator + ".");
+        // Saved first, the requests the loader drops are still in flight and are requested again on resume
+        final CompletableFuture<Void> saved = savePregen(pregenerator);
+        final PregenChunkLoader loader = this.pregenLoader;
+        this.pregenLoader = null;
+        if (loader != null) {
+            loader.close(game.getServer());
+        }
+        return saved;
+    }
+
+    /**
+     * Saves the progress of the pregenerator to {@value #PREGEN_FILE}, the file is written in the background.
+     *
+     * @param pregenerator The pregenerator
+     * @return Completes once the file is written
+     */
+    private CompletableFuture<Void> savePregen(Pregenerator pregenerator) {
+        final YAMLConfigurationLoader progressLoader = YAMLConfigurationLoader.builder().setFlowStyle(DumperOptions.FlowStyle.BLOCK).setFile(
+                configDir.toPath().getParent().resolve(Swappa.PREGEN_FILE).toFile()).build();
+        final ConfigurationNode progressNode = progressLoader.createEmptyNode(ConfigurationOptions.defaults());
+        pregenerator.write(progressNode);
+        return CompletableFuture.runAsync(() -> {
+            try {
+                progressLoader.save(progressNode);
+            } catch (IOException e) {
+                this.logger.error("Failed to write " + Swappa.PREGEN_FILE + "!", e);
+            }
+        }, this.backgroundExecutor);
+    }
+
+    private byte[] mappingsCacheKey() throws IOException {
+        return MappingsCache.key(configDir.toPath().getParent(), palette, registry, pluginManager);
+    }
+
+    private void scheduleStatsSnapshot(int intervalSeconds) {
+        if (this.statsSnapshotTask != null) {
+            this.statsSnapshotTask.cancel(false);
+            this.statsSnapshotTask = null;
+        }
+
+        if (intervalSeconds > 0 && this.metrics.isEnabled()) {
+            this.statsSnapshotTask = this.backgroundExecutor.scheduleAtFixedRate(this::writeStatsSnapshot, intervalSeconds, intervalSeconds,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    private void writeStatsSnapshot() {
+        final YAMLConfigurationLoader statsLoader = YAMLConfigurationLoader.builder().setFlowStyle(DumperOptions.FlowStyle.BLOCK)
+                .setFile(configDir.toPath().getParent().resolve(Swappa.STATS_FILE).toFile()).build();
+        final ConfigurationNode statsRootNode = statsLoader.createEmptyNode(ConfigurationOptions.defaults());
+        this.metrics.write(statsRootNode, PopulatorMappingsRegistry.getTable());
+        this.deferredReplacements.write(statsRootNode.getNode("deferred"));
+
+        try {
+            statsLoader.save(statsRootNode);
+        } catch (IOException e) {
+            this.logger.error("Failed to write " + Swappa.STATS_FILE + "!", e);
+        }
     }
 
     @Listener
     public void onPopulateChunkPost(PopulateChunkEvent.Post event) {
+        final ReplacementTable table = PopulatorMappingsRegistry.getTable();
+        // Shared with shadow mode, so the neighbour index and vein clusters are built once for both
+        final RuleResolver.PopulatedChunk chunk = new RuleResolver.PopulatedChunk(event, table.getPalette(), this.veinMode);
+        final ShadowMode shadowMode = this.shadowMode;
+        if (shadowMode != null) {
+            shadowMode.onPopulate(chunk, table);
+        }
+        final PopulateTrace.Recorder recorder = this.recorder;
+        if (recorder != null && !recorder.record(event)) {
+            stopCapture(recorder);
+        }
+        final PregenChunkLoader pregenLoader = this.pregenLoader;
+        if (pregenLoader != null) {
+            final Vector3i position = event.getTargetChunk().getPosition();
+            pregenLoader.onPopulated(event.getTargetChunk().getWorld().getUniqueId(), position.getX(), position.getZ());
+        }
+
+        final Metrics metrics = this.metrics;
+        final boolean instrumented = metrics.isEnabled();
+        final DeferredReplacements deferred = this.deferredReplacements;
+        final ReplacementJournal journal = this.journal;
+        final Pregenerator pregenerator = this.pregenerator;
+        final boolean budgeted = deferred.getBudgetNanos() > 0;
+        final long start = instrumented || budgeted || pregenerator != null ? System.nanoTime() : 0L;
+        if (table.isEmpty()) {
+            // Still counted, or the stats would only average the chunks that had rules to look at
+            if (instrumented) {
+                metrics.recordChunk(System.nanoTime() - start);
+            }
+            return;
+        }
+
+        final World world = event.getTargetChunk().getWorld();
+        final RuleResolver resolver = new RuleResolver(table, chunk);
+        if (!resolver.isApplicable()) {
+            if (instrumented) {
+                metrics.recordChunk(System.nanoTime() - start);
+            }
+            return;
+        }
+
+        // Once the tick's budget is used up the remaining replacements of this chunk are queued for the following ticks
+        final long deadline = budgeted ? start + deferred.getRemainingNanos() : Long.MAX_VALUE;
+        boolean overBudget = budgeted && deadline <= start;
+        int sinceClock = 0;
+        final UUID worldUniqueId = budgeted ? world.getUniqueId() : null;
+        int replacedTotal = 0;
         for (Map.Entry<PopulatorType, List<BlockTransaction>> populatorTypeTransactionEntry : event.getPopulatedTransactions().entrySet()) {
-            for (BlockTransaction transaction : populatorTypeTransactionEntry.getValue()) {
-                Optional<PopulatorMappingsRegistry.ReplacementEntry> optReplacementEntry = PopulatorMappingsRegistry.getEntry
-                        (populatorTypeTransactionEntry.getKey(), transaction.getFinalReplacement().getState());
-
-                if (optReplacementEntry.isPresent()) {
-                    transaction.setCustomReplacement(transaction.getFinalReplacement().withState(optReplacementEntry.get().replacementBlockState));
-                } else {
-                    optReplacementEntry = PopulatorMappingsRegistry.getEntry(transaction.getFinalReplacement().getState());
-                    if (optReplacementEntry.isPresent()) {
-                        transaction
-                                .setCustomReplacement(transaction.getFinalReplacement().withState(optReplacementEntry.get().replacementBlockState));
+            final PopulatorType populatorType = populatorTypeTransactionEntry.getKey();
+            final List<BlockTransaction> transactions = populatorTypeTransactionEntry.getValue();
+            if (!resolver.populator(populatorType, transactions)) {
+                if (instrumented) {
+                    metrics.recordSkippedPopulator(populatorType, transactions.size());
+                }
+                continue;
+            }
+
+            int replaced = 0;
+            int next = 0;
+            for (BlockTransaction transaction : transactions) {
+                final int index = next++;
+                final BlockSnapshot finalReplacement = transaction.getFinalReplacement();
+                final BlockState state = finalReplacement.getState();
+                final PopulatorMappingsRegistry.ReplacementEntry replacementEntry = resolver.resolve(finalReplacement, state);
+                if (replacementEntry == null) {
+                    continue;
+                }
+
+                final BlockState replacement = resolver.replace(replacementEntry, index, finalReplacement);
+                if (replacement != state) {
+                    if (budgeted && !overBudget && ++sinceClock == ChunkBatch.CLOCK_INTERVAL) {
+                        sinceClock = 0;
+                        overBudget = System.nanoTime() >= deadline;
                     }
+
+                    if (overBudget) {
+                        // Journaled once it is written
+                        deferred.defer(worldUniqueId, finalReplacement.getPosition(), state, replacement, replacementEntry);
+                    } else {
+                        transaction.setCustomReplacement(finalReplacement.withState(replacement));
+                        if (journal != null) {
+                            journal.record(world, finalReplacement.getPosition(), state, replacement, replacementEntry);
+                        }
+                    }
+                    if (instrumented) {
+                        replacementEntry.fired.increment();
+                    }
+                    replaced++;
                 }
             }
+
+            if (instrumented) {
+                metrics.recordPopulator(populatorType, transactions.size(), replaced, resolver.getRejected());
+            }
+            replacedTotal += replaced;
+        }
+
+        if (instrumented || budgeted || pregenerator != null) {
+            final long elapsed = System.nanoTime() - start;
+            if (instrumented) {
+                metrics.recordChunk(elapsed);
+            }
+            if (budgeted) {
+                deferred.spend(elapsed);
+                if (overBudget) {
+                    deferred.recordOverBudgetChunk();
+                }
+            }
+            if (pregenerator != null) {
+                pregenerator.onPopulated(world.getUniqueId(), replacedTotal, elapsed);
+            }
         }
     }
 
@@ -166,7 +953,7 @@ private void loadConfig() throws IOException {
                 .setFile(blockStateMappingsPath.toFile()).build();
 
         try {
-            Files.createDirectories(configDir.toPath().getParent());
+            Files.createDirectories(configDir.toPath().getParent().resolve(MappingsShard.DIRECTORY));
         } catch (FileAlreadyExistsException ignore) {
         }
 
@@ -184,6 +971,9 @@ private void loadConfig() throws IOException {
                     + "                some_property_name: -> some_property_value\n"
                     + "                ... continue for how many properties that may \n"
                     + "\n"
+                    + "Properties that are left out keep the block's default value. A property value of \"*\" matches any value when the\n"
+                    + "mapping is used as a populator block. A plain block id in populators.yml matches every state of that block.\n"
+                    + "\n"
                     + "Example:\n"
                     + "\n"
                     + "mappings:\n"
@@ -192,6 +982,9 @@ private void loadConfig() throws IOException {
                     + "            log2_acacia_down:\n"
                     + "                variant: acacia\n"
                     + "                axis: y\n"
+                    + "            log2_acacia_any:\n"
+                    + "                variant: acacia\n"
+                    + "                axis: \"*\"\n"
                     + "");
             blockStatesRootNode = blockStateMappingsConfigLoader.createEmptyNode(blockStatesOptions);
             blockStatesRootNode.getNode("general", "debug").setValue(false);
@@ -221,6 +1014,55 @@ private void loadConfig() throws IOException {
                     + "all:\n"
                     + "    mapped_populator_block: mapped_replacement_block\n"
                     + "\n"
+                    + "Instead of a single replacement block a map of replacement blocks to weights can be given. Each block is then replaced\n"
+                    + "by one of them at random, in proportion to its weight. The pick only depends on the world seed and the block position\n"
+                    + "so a regenerated chunk gets the same blocks.\n"
+                    + "\n"
+                    + "    stone:\n"
+                    + "        stone: 90\n"
+                    + "        iron_ore: 7\n"
+                    + "        gold_ore: 3\n"
+                    + "\n"
+                    + "Rules that should only apply in some places go in the \"conditional\" list. Every condition is optional, worlds are\n"
+                    + "matched by name and y is inclusive. Conditional rules take precedence over the others, the first matching one wins.\n"
+                    + "\n"
+                    + "conditional:\n"
+                    + "    - worlds: [DIM-1]\n"
+                    + "      dimensions: [nether]\n"
+                    + "      biomes: [hell]\n"
+                    + "      populators: [minecraft:ore]\n"
+                    + "      y:\n"
+                    + "          min: 0\n"
+                    + "          max: 30\n"
+                    + "      replace:\n"
+                    + "          netherrack: magma\n"
+                    + "\n"
+                    + "A conditional rule can also look at the six blocks sharing a face with the block it replaces. At least one of them has\n"
+                    + "to be listed under any, all of them under all and none of them under none. Neighbours are seen as populated, before\n"
+                    + "any replacement.\n"
+                    + "\n"
+                    + "conditional:\n"
+                    + "    - neighbours:\n"
+                    + "          any: [air]\n"
+                    + "      replace:\n"
+                    + "          stone: mossy_cobblestone\n"
+                    + "\n"
+                    + "general.metrics.enabled counts replacements per populator and rule for /swappa stats. When\n"
+                    + "general.metrics.snapshot-interval is above 0 the counters are also written to stats.yml every that many seconds.\n"
+                    + "\n"
+                    + "general.tick-budget-millis caps the time spent on replacements per tick. Replacements over the budget are applied\n"
+                    + "on the following ticks, chunk by chunk, as long as the chunk is still loaded. 0 disables the budget.\n"
+                    + "\n"
+                    + "general.vein-mode makes weighted rules pick once per vein instead of once per block. Blocks a populator places\n"
+                    + "touching each other, diagonally included, all get the state picked for the first of them.\n"
+                    + "\n"
+                    + "general.pregen paces /swappa pregen. At most general.pregen.max-in-flight chunks are requested at a time and at\n"
+                    + "most general.pregen.tick-budget-millis per tick are spent on them. Below general.pregen.min-tps it slows down.\n"
+                    + "\n"
+                    + "general.journal.enabled records every replacement in the journal directory so /swappa journal can trace and roll\n"
+                    + "back rules. The journal is written in segments of general.journal.segment-size-mb. Up to general.journal.buffer-size\n"
+                    + "replacements wait to be written, more than that are not journaled rather than slowing chunk population down.\n"
+                    + "\n"
                     + "Example:\n"
                     + "\n"
                     + "all:\n"
@@ -231,11 +1073,23 @@ private void loadConfig() throws IOException {
                     + "            stone: diamond_block");
             populatorsRootNode = populatorMappingsConfigLoader.createEmptyNode(populatorsOptions);
             populatorsRootNode.getNode("general", "debug").setValue(false);
+            populatorsRootNode.getNode("general", "metrics", "enabled").setValue(true);
+            populatorsRootNode.getNode("general", "metrics", "snapshot-interval").setValue(0);
+            populatorsRootNode.getNode("general", "tick-budget-millis").setValue(0);
+            populatorsRootNode.getNode("general", "vein-mode").setValue(false);
+            populatorsRootNode.getNode("general", "pregen", "max-in-flight").setValue(8);
+            populatorsRootNode.getNode("general", "pregen", "tick-budget-millis").setValue(20);
+            populatorsRootNode.getNode("general", "pregen", "min-tps").setValue(18);
+            populatorsRootNode.getNode("general", "journal", "enabled").setValue(false);
+            populatorsRootNode.getNode("general", "journal", "segment-size-mb").setValue(64);
+            populatorsRootNode.getNode("general", "journal", "buffer-size").setValue(65536);
             populatorsRootNode.getNode("all").setValue("");
             populatorsRootNode.getNode("populators", "minecraft").setValue("");
             populatorMappingsConfigLoader.save(populatorsRootNode);
         } else {
             populatorsRootNode = populatorMappingsConfigLoader.load();
         }
+
+        mappingsShards = MappingsShard.loadAll(configDir.toPath().getParent().resolve(MappingsShard.DIRECTORY), pluginManager);
     }
 }
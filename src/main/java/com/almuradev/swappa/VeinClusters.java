@@ -0,0 +1,180 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.flowpowered.math.vector.Vector3i;
+import org.spongepowered.api.block.BlockTransaction;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Groups a populator's transactions into clusters of touching blocks, so a vein can be given one replacement instead of a patchwork.
+ *
+ * <p>Blocks touch when they share a face, an edge or a corner. Positions are packed into longs and indexed by a {@link PositionTable},
+ * each block then probes the half of its neighbourhood that comes after it and joins the clusters it finds through union-find with union
+ * by size and path halving. That keeps a chunk linear in its transactions without boxing a single position. Every cluster is represented
+ * by its first transaction so the outcome does not depend on how the clusters were joined.</p>
+ *
+ * <p>The arrays are kept per thread, so instances are obtained through {@link #of(List)} and are only valid until the next call on the
+ * same thread. They grow as needed but are shrunk back to {@link #RETAINED_SIZE} after an unusually large populator.</p>
+ */
+final class VeinClusters {
+
+    private static final ThreadLocal<VeinClusters> INSTANCES = ThreadLocal.withInitial(VeinClusters::new);
+    // Transactions of one populator the arrays keep room for between chunks
+    private static final int RETAINED_SIZE = 1 << 14;
+    // The 13 neighbours that come after a block, the other 13 find the block themselves
+    private static final int[][] NEIGHBOURS;
+
+    static {
+        NEIGHBOURS = new int[13][];
+        int i = 0;
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dz = -1; dz <= 1; dz++) {
+                    if (dx > 0 || dx == 0 && (dy > 0 || dy == 0 && dz > 0)) {
+                        NEIGHBOURS[i++] = new int[] {dx, dy, dz};
+                    }
+                }
+            }
+        }
+    }
+
+    private long[] positions = new long[0];
+    private int[] parents = new int[0];
+    private int[] sizes = new int[0];
+    private int[] representatives = new int[0];
+    private final PositionTable indices = new PositionTable();
+
+    private VeinClusters() {
+    }
+
+    /**
+     * Clusters the provided transactions by the positions of their final replacements.
+     *
+     * @param transactions The transactions of one populator
+     * @return The clusters, valid until the next call on this thread
+     */
+    static VeinClusters of(List<BlockTransaction> transactions) {
+        final VeinClusters clusters = INSTANCES.get();
+        clusters.build(transactions);
+        return clusters;
+    }
+
+    private void build(List<BlockTransaction> transactions) {
+        final int size = transactions.size();
+        if (this.positions.length < size || this.positions.length > Math.max(size, RETAINED_SIZE)) {
+            final int length = size > RETAINED_SIZE ? size : Math.min(RETAINED_SIZE, Math.max(size, this.positions.length * 3 / 2));
+            this.positions = new long[length];
+            this.parents = new int[length];
+            this.sizes = new int[length];
+            this.representatives = new int[length];
+        }
+        this.indices.clear(size);
+
+        int index = 0;
+        for (BlockTransaction transaction : transactions) {
+            final Vector3i position = transaction.getFinalReplacement().getPosition();
+            final long packed = ReplacementJournal.pack(position.getX(), position.getY(), position.getZ());
+            this.positions[index] = packed;
+            this.parents[index] = index;
+            this.sizes[index] = 1;
+
+            // A populator that sets the same block twice gets both transactions in the same cluster
+            final int existing = this.indices.putIfAbsent(packed, index);
+            if (existing != PositionTable.ABSENT) {
+                union(index, existing);
+            }
+            index++;
+        }
+
+        for (int i = 0; i < size; i++) {
+            final long packed = this.positions[i];
+            final int x = ReplacementJournal.unpackX(packed), y = ReplacementJournal.unpackY(packed), z = ReplacementJournal.unpackZ(packed);
+            for (int[] neighbour : NEIGHBOURS) {
+                final int j = this.indices.get(ReplacementJournal.pack(x + neighbour[0], y + neighbour[1], z + neighbour[2]));
+                if (j != PositionTable.ABSENT) {
+                    union(i, j);
+                }
+            }
+        }
+
+        // Roots are only used as scratch from here on, each cluster is represented by the first transaction that reaches it
+        Arrays.fill(this.sizes, 0, size, -1);
+        for (int i = 0; i < size; i++) {
+            final int root = root(i);
+            if (this.sizes[root] < 0) {
+                this.sizes[root] = i;
+            }
+            this.representatives[i] = this.sizes[root];
+        }
+    }
+
+    /**
+     * Gets the transaction that represents the cluster of the provided transaction, the first of the cluster in populator order.
+     *
+     * @param index The index of the transaction
+     * @return The index of the representative
+     */
+    int getRepresentative(int index) {
+        return this.representatives[index];
+    }
+
+    int getX(int index) {
+        return ReplacementJournal.unpackX(this.positions[index]);
+    }
+
+    int getY(int index) {
+        return ReplacementJournal.unpackY(this.positions[index]);
+    }
+
+    int getZ(int index) {
+        return ReplacementJournal.unpackZ(this.positions[index]);
+    }
+
+    private int root(int index) {
+        while (this.parents[index] != index) {
+            this.parents[index] = this.parents[this.parents[index]];
+            index = this.parents[index];
+        }
+        return index;
+    }
+
+    private void union(int a, int b) {
+        a = root(a);
+        b = root(b);
+        if (a == b) {
+            return;
+        }
+        if (this.sizes[a] < this.sizes[b]) {
+            final int swap = a;
+            a = b;
+            b = swap;
+        }
+        this.parents[b] = a;
+        this.sizes[a] += this.sizes[b];
+    }
+}
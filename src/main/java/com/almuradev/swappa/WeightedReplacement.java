@@ -0,0 +1,170 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import org.spongepowered.api.block.BlockState;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A replacement that picks one of several states by weight.
+ *
+ * <p>The weights are compiled into an alias table (Vose's method) so a pick costs one random number, one multiply and one compare no
+ * matter how many states there are. Picks are derived from the world seed and the block position instead of from a stream of random
+ * numbers, so a block gets the same state however many transactions came before it and whichever chunk's populator placed it, which keeps
+ * regenerated chunks identical.</p>
+ */
+public final class WeightedReplacement {
+
+    // The SplitMix64 increment, an odd number close to 2^64 / phi
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final BlockState[] states;
+    private final double[] weights;
+    private final BlockState[] aliases;
+    // Chance of keeping the column's own state, scaled to 2^32
+    private final long[] thresholds;
+
+    /**
+     * Creates the alias table.
+     *
+     * @param states The states to pick from
+     * @param weights Their weights, all positive
+     */
+    public WeightedReplacement(BlockState[] states, double[] weights) {
+        if (states.length == 0 || states.length != weights.length) {
+            throw new IllegalArgumentException("Expected as many weights as states and at least one of each!");
+        }
+
+        final int n = states.length;
+        double total = 0;
+        for (double weight : weights) {
+            if (!(weight > 0) || Double.isInfinite(weight)) {
+                throw new IllegalArgumentException("Weight [" + weight + "] must be a positive number!");
+            }
+            total += weight;
+        }
+
+        this.states = states.clone();
+        this.weights = weights.clone();
+        this.aliases = new BlockState[n];
+        this.thresholds = new long[n];
+
+        final double[] scaled = new double[n];
+        final Deque<Integer> small = new ArrayDeque<>(), large = new ArrayDeque<>();
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / total;
+            (scaled[i] < 1 ? small : large).push(i);
+        }
+
+        while (!small.isEmpty() && !large.isEmpty()) {
+            final int less = small.pop(), more = large.pop();
+            this.thresholds[less] = (long) (scaled[less] * (1L << 32));
+            this.aliases[less] = states[more];
+            scaled[more] = scaled[more] + scaled[less] - 1;
+            (scaled[more] < 1 ? small : large).push(more);
+        }
+
+        // Whatever is left is within rounding of 1 and always keeps its own state
+        for (int i = 0; i < n; i++) {
+            if (this.aliases[i] == null) {
+                this.thresholds[i] = 1L << 32;
+                this.aliases[i] = states[i];
+            }
+        }
+    }
+
+    /**
+     * Derives the seed picks start from in a world.
+     *
+     * @param worldSeed The world seed
+     * @return The seed
+     */
+    public static long seed(long worldSeed) {
+        return mix(worldSeed);
+    }
+
+    /**
+     * Picks the state for a block.
+     *
+     * @param seed The seed from {@link #seed(long)}
+     * @param x The block x coordinate
+     * @param y The block y coordinate
+     * @param z The block z coordinate
+     * @return The state
+     */
+    public BlockState pick(long seed, int x, int y, int z) {
+        // The absolute position is the SplitMix64 counter. Populators reach into neighbouring chunks, so nothing about the chunk being
+        // populated may go in or the same block would get a different state depending on which chunk placed it.
+        final long random = mix(seed + GOLDEN_GAMMA * ((long) y << 52 ^ (long) (z & 0x3FFFFFF) << 26 ^ x & 0x3FFFFFF));
+        final int column = (int) (((random >>> 32) * this.states.length) >>> 32);
+        return (random & 0xFFFFFFFFL) < this.thresholds[column] ? this.states[column] : this.aliases[column];
+    }
+
+    /**
+     * Gets the state most likely to be picked, used wherever a single replacement has to stand in for the whole rule.
+     *
+     * @return The state
+     */
+    public BlockState getMostLikely() {
+        int best = 0;
+        for (int i = 1; i < this.weights.length; i++) {
+            if (this.weights[i] > this.weights[best]) {
+                best = i;
+            }
+        }
+
+        return this.states[best];
+    }
+
+    public int size() {
+        return this.states.length;
+    }
+
+    BlockState getState(int index) {
+        return this.states[index];
+    }
+
+    double getWeight(int index) {
+        return this.weights[index];
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < this.states.length; i++) {
+            builder.append(i == 0 ? "" : ", ").append(this.states[i]).append(": ").append(this.weights[i]);
+        }
+
+        return builder.append('}').toString();
+    }
+}
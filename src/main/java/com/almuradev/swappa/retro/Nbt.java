@@ -0,0 +1,238 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa.retro;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of the NBT format to read a chunk, change a few arrays and write it back unchanged otherwise.
+ *
+ * <p>Compounds are {@link LinkedHashMap}s so tag order survives a round trip, lists are {@link ListTag}s so the element type of an empty
+ * list is kept, everything else maps to its boxed or array Java type.</p>
+ */
+final class Nbt {
+
+    static final byte TAG_END = 0, TAG_BYTE = 1, TAG_SHORT = 2, TAG_INT = 3, TAG_LONG = 4, TAG_FLOAT = 5, TAG_DOUBLE = 6, TAG_BYTE_ARRAY = 7,
+            TAG_STRING = 8, TAG_LIST = 9, TAG_COMPOUND = 10, TAG_INT_ARRAY = 11, TAG_LONG_ARRAY = 12;
+
+    private Nbt() {
+    }
+
+    /**
+     * Reads the root compound, the name of the root tag is discarded.
+     *
+     * @param in The input
+     * @return The root compound
+     * @throws IOException If the data is not a valid compound
+     */
+    static Map<String, Object> readRoot(DataInput in) throws IOException {
+        final byte type = in.readByte();
+        if (type != TAG_COMPOUND) {
+            throw new IOException("Root tag is not a compound but [" + type + "]");
+        }
+        in.readUTF();
+        return readCompound(in);
+    }
+
+    static void writeRoot(DataOutput out, Map<String, Object> root) throws IOException {
+        out.writeByte(TAG_COMPOUND);
+        out.writeUTF("");
+        writeCompound(out, root);
+    }
+
+    private static Map<String, Object> readCompound(DataInput in) throws IOException {
+        final Map<String, Object> compound = new LinkedHashMap<>();
+        byte type;
+        while ((type = in.readByte()) != TAG_END) {
+            final String name = in.readUTF();
+            compound.put(name, readPayload(in, type));
+        }
+        return compound;
+    }
+
+    private static Object readPayload(DataInput in, byte type) throws IOException {
+        switch (type) {
+            case TAG_BYTE:
+                return in.readByte();
+            case TAG_SHORT:
+                return in.readShort();
+            case TAG_INT:
+                return in.readInt();
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_FLOAT:
+                return in.readFloat();
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_BYTE_ARRAY: {
+                final byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                return value;
+            }
+            case TAG_STRING:
+                return in.readUTF();
+            case TAG_LIST: {
+                final byte elementType = in.readByte();
+                final int length = in.readInt();
+                final List<Object> values = new ArrayList<>(Math.max(length, 0));
+                for (int i = 0; i < length; i++) {
+                    values.add(readPayload(in, elementType));
+                }
+                return new ListTag(elementType, values);
+            }
+            case TAG_COMPOUND:
+                return readCompound(in);
+            case TAG_INT_ARRAY: {
+                final int[] value = new int[in.readInt()];
+                for (int i = 0; i < value.length; i++) {
+                    value[i] = in.readInt();
+                }
+                return value;
+            }
+            case TAG_LONG_ARRAY: {
+                final long[] value = new long[in.readInt()];
+                for (int i = 0; i < value.length; i++) {
+                    value[i] = in.readLong();
+                }
+                return value;
+            }
+            default:
+                throw new IOException("Unknown tag type [" + type + "]");
+        }
+    }
+
+    private static void writeCompound(DataOutput out, Map<String, Object> compound) throws IOException {
+        for (Map.Entry<String, Object> entry : compound.entrySet()) {
+            final byte type = typeOf(entry.getValue());
+            out.writeByte(type);
+            out.writeUTF(entry.getKey());
+            writePayload(out, type, entry.getValue());
+        }
+        out.writeByte(TAG_END);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writePayload(DataOutput out, byte type, Object value) throws IOException {
+        switch (type) {
+            case TAG_BYTE:
+                out.writeByte((Byte) value);
+                break;
+            case TAG_SHORT:
+                out.writeShort((Short) value);
+                break;
+            case TAG_INT:
+                out.writeInt((Integer) value);
+                break;
+            case TAG_LONG:
+                out.writeLong((Long) value);
+                break;
+            case TAG_FLOAT:
+                out.writeFloat((Float) value);
+                break;
+            case TAG_DOUBLE:
+                out.writeDouble((Double) value);
+                break;
+            case TAG_BYTE_ARRAY:
+                out.writeInt(((byte[]) value).length);
+                out.write((byte[]) value);
+                break;
+            case TAG_STRING:
+                out.writeUTF((String) value);
+                break;
+            case TAG_LIST: {
+                final ListTag list = (ListTag) value;
+                out.writeByte(list.elementType);
+                out.writeInt(list.values.size());
+                for (Object element : list.values) {
+                    writePayload(out, list.elementType, element);
+                }
+                break;
+            }
+            case TAG_COMPOUND:
+                writeCompound(out, (Map<String, Object>) value);
+                break;
+            case TAG_INT_ARRAY:
+                out.writeInt(((int[]) value).length);
+                for (int element : (int[]) value) {
+                    out.writeInt(element);
+                }
+                break;
+            case TAG_LONG_ARRAY:
+                out.writeInt(((long[]) value).length);
+                for (long element : (long[]) value) {
+                    out.writeLong(element);
+                }
+                break;
+            default:
+                throw new IOException("Unknown tag type [" + type + "]");
+        }
+    }
+
+    private static byte typeOf(Object value) throws IOException {
+        if (value instanceof Byte) {
+            return TAG_BYTE;
+        } else if (value instanceof Short) {
+            return TAG_SHORT;
+        } else if (value instanceof Integer) {
+            return TAG_INT;
+        } else if (value instanceof Long) {
+            return TAG_LONG;
+        } else if (value instanceof Float) {
+            return TAG_FLOAT;
+        } else if (value instanceof Double) {
+            return TAG_DOUBLE;
+        } else if (value instanceof byte[]) {
+            return TAG_BYTE_ARRAY;
+        } else if (value instanceof String) {
+            return TAG_STRING;
+        } else if (value instanceof ListTag) {
+            return TAG_LIST;
+        } else if (value instanceof Map) {
+            return TAG_COMPOUND;
+        } else if (value instanceof int[]) {
+            return TAG_INT_ARRAY;
+        } else if (value instanceof long[]) {
+            return TAG_LONG_ARRAY;
+        }
+        throw new IOException("Cannot write [" + value.getClass().getName() + "] as NBT");
+    }
+
+    static final class ListTag {
+
+        final byte elementType;
+        final List<Object> values;
+
+        ListTag(byte elementType, List<Object> values) {
+            this.elementType = elementType;
+            this.values = values;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa.retro;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * An Anvil region file, read through a memory mapping.
+ *
+ * <p>The file starts with a 4KiB table of chunk locations (sector offset and sector count) followed by a 4KiB table of timestamps. Each
+ * chunk is a big endian length, a compression type and the compressed NBT, padded to whole 4KiB sectors. A rewritten chunk goes back into
+ * its own sectors when it still fits and is appended to the end of the file otherwise, which is what the game does as well.</p>
+ */
+final class RegionFile implements Closeable {
+
+    static final int CHUNKS = 1024;
+    private static final int SECTOR_BYTES = 4096, HEADER_BYTES = SECTOR_BYTES * 2;
+    private static final byte COMPRESSION_GZIP = 1, COMPRESSION_ZLIB = 2;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer data;
+    private long sectors;
+    private final Inflater inflater = new Inflater();
+    private final Deflater deflater = new Deflater();
+
+    RegionFile(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (this.channel.size() < HEADER_BYTES) {
+            this.channel.close();
+            throw new IOException("Region file [" + path + "] is truncated");
+        }
+
+        this.header = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        remap();
+    }
+
+    private void remap() throws IOException {
+        this.sectors = this.channel.size() / SECTOR_BYTES;
+        this.data = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, this.sectors * SECTOR_BYTES);
+    }
+
+    /**
+     * Reads and decompresses a chunk.
+     *
+     * @param slot The slot, x + z * 32 in region local chunk coordinates
+     * @return The uncompressed NBT or null if the chunk was never generated
+     * @throws IOException If the chunk is corrupt
+     */
+    byte[] read(int slot) throws IOException {
+        final int location = this.header.getInt(slot * 4);
+        final int offset = location >>> 8, count = location & 0xFF;
+        if (location == 0 || offset + count > this.sectors) {
+            return null;
+        }
+
+        final ByteBuffer chunk = this.data.duplicate();
+        chunk.position(offset * SECTOR_BYTES);
+        final int length = chunk.getInt();
+        if (length <= 1 || length > count * SECTOR_BYTES - 4) {
+            throw new IOException("Chunk in slot [" + slot + "] has an invalid length of [" + length + "]");
+        }
+
+        final byte compression = chunk.get();
+        final byte[] compressed = new byte[length - 1];
+        chunk.get(compressed);
+        if (compression == COMPRESSION_GZIP) {
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                return out.toByteArray();
+            }
+        } else if (compression != COMPRESSION_ZLIB) {
+            throw new IOException("Chunk in slot [" + slot + "] uses unknown compression [" + compression + "]");
+        }
+
+        this.inflater.reset();
+        this.inflater.setInput(compressed);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+        final byte[] buffer = new byte[8192];
+        try {
+            while (!this.inflater.finished()) {
+                final int inflated = this.inflater.inflate(buffer);
+                if (inflated == 0 && this.inflater.needsInput()) {
+                    throw new IOException("Chunk in slot [" + slot + "] is truncated");
+                }
+                out.write(buffer, 0, inflated);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Chunk in slot [" + slot + "] is corrupt", e);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Compresses and writes a chunk back, in place when it fits.
+     *
+     * @param slot The slot
+     * @param nbt The uncompressed NBT
+     * @throws IOException If writing failed
+     */
+    void write(int slot, byte[] nbt) throws IOException {
+        this.deflater.reset();
+        this.deflater.setInput(nbt);
+        this.deflater.finish();
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(nbt.length / 2);
+        final byte[] buffer = new byte[8192];
+        while (!this.deflater.finished()) {
+            compressed.write(buffer, 0, this.deflater.deflate(buffer));
+        }
+
+        final int length = compressed.size() + 1;
+        final int needed = (length + 4 + SECTOR_BYTES - 1) / SECTOR_BYTES;
+        if (needed > 255) {
+            throw new IOException("Chunk in slot [" + slot + "] is too large to store in a region file");
+        }
+
+        final ByteBuffer chunk = ByteBuffer.allocate(needed * SECTOR_BYTES);
+        chunk.putInt(length);
+        chunk.put(COMPRESSION_ZLIB);
+        chunk.put(compressed.toByteArray());
+        chunk.rewind();
+
+        final int location = this.header.getInt(slot * 4);
+        long offset = location >>> 8;
+        if ((location & 0xFF) < needed) {
+            offset = this.sectors;
+        }
+
+        long position = offset * SECTOR_BYTES;
+        while (chunk.hasRemaining()) {
+            position += this.channel.write(chunk, position);
+        }
+
+        this.header.putInt(slot * 4, (int) (offset << 8) | needed);
+        this.header.putInt(SECTOR_BYTES + slot * 4, (int) (System.currentTimeMillis() / 1000L));
+        if (offset == this.sectors) {
+            remap();
+        }
+    }
+
+    /**
+     * Forces pending writes to disk, called before progress is recorded in the checkpoint.
+     *
+     * @throws IOException If syncing failed
+     */
+    void sync() throws IOException {
+        this.channel.force(false);
+        this.header.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.inflater.end();
+        this.deflater.end();
+        this.channel.close();
+    }
+}
@@ -0,0 +1,345 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa.retro;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Applies a {@link RetroSwapTable} to the region files of a world that was already generated, without a server running.
+ *
+ * <p>Regions are processed in parallel on a fork join pool. Only chunks that contain a block to swap are recompressed and written back,
+ * and those chunks are flagged for the game to recalculate their lighting. Tile entities at swapped positions are dropped, they belong
+ * to the block that was there and the game creates a new one when the replacement needs it. Every {@value #SYNC_INTERVAL} rewritten
+ * chunks and at the end of each region the region file is forced to disk and the progress appended to a checkpoint file in the region
+ * directory, so an interrupted run picks up where it stopped. It redoes the chunks written since the last checkpoint, which changes
+ * nothing as the table never swaps to a state it swaps again.</p>
+ *
+ * <pre>
+ * java -jar swappa.jar &lt;retroswap.dat&gt; &lt;world/region&gt; [threads]
+ * </pre>
+ */
+public final class RetroSwap {
+
+    static final String CHECKPOINT_FILE = "swappa-retroswap.checkpoint";
+    private static final String CHECKPOINT_TABLE = "table";
+    // Rewritten chunks between forcing a region file to disk and recording its progress
+    static final int SYNC_INTERVAL = 64;
+
+    private final RetroSwapTable table;
+    private final Path regionDirectory;
+    private final int parallelism;
+    private final LongAdder chunksRead = new LongAdder(), chunksWritten = new LongAdder(), chunksFailed = new LongAdder(),
+            blocksSwapped = new LongAdder(), tileEntitiesDropped = new LongAdder();
+
+    public RetroSwap(RetroSwapTable table, Path regionDirectory, int parallelism) {
+        this.table = table;
+        this.regionDirectory = regionDirectory;
+        this.parallelism = parallelism;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java -jar swappa.jar <retroswap.dat> <world/region> [threads]");
+            System.exit(1);
+        }
+
+        final int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        final RetroSwap retroSwap = new RetroSwap(RetroSwapTable.read(Paths.get(args[0])), Paths.get(args[1]), parallelism);
+        final long start = System.nanoTime();
+        if (!retroSwap.run()) {
+            return;
+        }
+        System.out.println("Finished in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + "s. Read [" + retroSwap.chunksRead.sum()
+                + "] chunks, rewrote [" + retroSwap.chunksWritten.sum() + "], swapped [" + retroSwap.blocksSwapped.sum() + "] blocks, dropped ["
+                + retroSwap.tileEntitiesDropped.sum() + "] tile entities, [" + retroSwap.chunksFailed.sum() + "] chunks could not be read.");
+    }
+
+    /**
+     * Swaps every region that is not done yet according to the checkpoint.
+     *
+     * @return False if the checkpoint says every region is done already, nothing is swapped then
+     * @throws IOException If the region directory or the checkpoint could not be read
+     * @throws InterruptedException If interrupted while waiting for the regions
+     */
+    public boolean run() throws IOException, InterruptedException {
+        final List<Path> regions = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.regionDirectory, "r.*.*.mca")) {
+            for (Path region : stream) {
+                regions.add(region);
+            }
+        }
+        Collections.sort(regions);
+
+        final Path checkpointPath = this.regionDirectory.resolve(CHECKPOINT_FILE);
+        final Checkpoint checkpoint = new Checkpoint(checkpointPath, Integer.toHexString(this.table.hashCode()));
+        if (!regions.isEmpty() && regions.stream().allMatch(region -> checkpoint.get(region.getFileName().toString()) >= RegionFile.CHUNKS)) {
+            checkpoint.close();
+            System.out.println("Every region in [" + this.regionDirectory + "] was already swapped with this table according to ["
+                    + checkpointPath + "], delete it to swap again.");
+            return false;
+        }
+
+        final AtomicInteger completed = new AtomicInteger();
+        final ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+        try {
+            final List<ForkJoinTask<?>> tasks = new ArrayList<>(regions.size());
+            for (Path region : regions) {
+                tasks.add(pool.submit(() -> {
+                    try {
+                        final int written = processRegion(region, checkpoint);
+                        System.out.println("[" + completed.incrementAndGet() + "/" + regions.size() + "] " + region.getFileName() + ": rewrote ["
+                                + written + "] chunks");
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+
+            for (ForkJoinTask<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    System.err.println("Failed to process a region: " + e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+            checkpoint.close();
+        }
+        return true;
+    }
+
+    private int processRegion(Path path, Checkpoint checkpoint) throws IOException {
+        final String name = path.getFileName().toString();
+        final int start = checkpoint.get(name);
+        if (start >= RegionFile.CHUNKS) {
+            return 0;
+        }
+
+        int written = 0;
+        try (RegionFile region = new RegionFile(path)) {
+            for (int slot = start; slot < RegionFile.CHUNKS; slot++) {
+                final byte[] nbt;
+                try {
+                    nbt = region.read(slot);
+                } catch (IOException e) {
+                    this.chunksFailed.increment();
+                    System.err.println("Skipping chunk [" + slot + "] of [" + name + "]: " + e.getMessage());
+                    continue;
+                }
+                if (nbt == null) {
+                    continue;
+                }
+
+                this.chunksRead.increment();
+                final byte[] swapped = swap(nbt);
+                if (swapped != null) {
+                    region.write(slot, swapped);
+                    this.chunksWritten.increment();
+                    if (++written % SYNC_INTERVAL == 0) {
+                        region.sync();
+                        checkpoint.record(name, slot + 1);
+                    }
+                }
+            }
+            if (written % SYNC_INTERVAL != 0) {
+                region.sync();
+            }
+        }
+
+        checkpoint.record(name, RegionFile.CHUNKS);
+        return written;
+    }
+
+    /**
+     * Swaps the blocks of a single chunk.
+     *
+     * @param nbt The uncompressed chunk
+     * @return The new chunk or null if nothing was swapped
+     * @throws IOException If the chunk could not be parsed
+     */
+    @SuppressWarnings("unchecked")
+    byte[] swap(byte[] nbt) throws IOException {
+        final Map<String, Object> root = Nbt.readRoot(new DataInputStream(new ByteArrayInputStream(nbt)));
+        final Object level = root.get("Level");
+        if (!(level instanceof Map) || !(((Map<String, Object>) level).get("Sections") instanceof Nbt.ListTag)) {
+            return null;
+        }
+
+        // Chunk relative positions of the swapped blocks, indexed like the sections' arrays with the section's Y on top
+        final BitSet positions = new BitSet();
+        long swapped = 0;
+        for (Object section : ((Nbt.ListTag) ((Map<String, Object>) level).get("Sections")).values) {
+            swapped += swapSection((Map<String, Object>) section, positions);
+        }
+        if (swapped == 0) {
+            return null;
+        }
+
+        this.blocksSwapped.add(swapped);
+        final Object tileEntities = ((Map<String, Object>) level).get("TileEntities");
+        if (tileEntities instanceof Nbt.ListTag) {
+            this.tileEntitiesDropped.add(dropTileEntities((Nbt.ListTag) tileEntities, positions));
+        }
+        ((Map<String, Object>) level).put("LightPopulated", (byte) 0);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(nbt.length);
+        Nbt.writeRoot(new DataOutputStream(out), root);
+        return out.toByteArray();
+    }
+
+    private int swapSection(Map<String, Object> section, BitSet positions) {
+        final Object blocksTag = section.get("Blocks"), dataTag = section.get("Data"), addTag = section.get("Add"), yTag = section.get("Y");
+        if (!(blocksTag instanceof byte[]) || !(dataTag instanceof byte[]) || !(yTag instanceof Byte)) {
+            return 0;
+        }
+
+        final byte[] blocks = (byte[]) blocksTag, data = (byte[]) dataTag;
+        byte[] add = addTag instanceof byte[] ? (byte[]) addTag : null;
+        int swapped = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            final int blockId = (blocks[i] & 0xFF) | (add == null ? 0 : nibble(add, i) << 8);
+            final int replacement = this.table.get(RetroSwapTable.key(blockId, nibble(data, i)));
+            if (replacement == RetroSwapTable.NONE) {
+                continue;
+            }
+
+            final int replacementId = replacement >>> 4;
+            blocks[i] = (byte) replacementId;
+            if (replacementId > 0xFF && add == null) {
+                add = new byte[data.length];
+                section.put("Add", add);
+            }
+            if (add != null) {
+                setNibble(add, i, replacementId >>> 8);
+            }
+            setNibble(data, i, replacement & 0xF);
+            positions.set(((Byte) yTag & 0xF) << 12 | i);
+            swapped++;
+        }
+
+        return swapped;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int dropTileEntities(Nbt.ListTag tileEntities, BitSet positions) {
+        int dropped = 0;
+        for (Iterator<Object> iterator = tileEntities.values.iterator(); iterator.hasNext(); ) {
+            final Map<String, Object> tileEntity = (Map<String, Object>) iterator.next();
+            final Object x = tileEntity.get("x"), y = tileEntity.get("y"), z = tileEntity.get("z");
+            if (!(x instanceof Integer) || !(y instanceof Integer) || !(z instanceof Integer) || (Integer) y < 0 || (Integer) y > 0xFF) {
+                continue;
+            }
+            if (positions.get((Integer) y << 8 | ((Integer) z & 0xF) << 4 | ((Integer) x & 0xF))) {
+                iterator.remove();
+                dropped++;
+            }
+        }
+
+        return dropped;
+    }
+
+    private static int nibble(byte[] array, int index) {
+        final int value = array[index >> 1];
+        return (index & 1) == 0 ? value & 0xF : (value >> 4) & 0xF;
+    }
+
+    private static void setNibble(byte[] array, int index, int value) {
+        final int i = index >> 1;
+        if ((index & 1) == 0) {
+            array[i] = (byte) ((array[i] & 0xF0) | (value & 0xF));
+        } else {
+            array[i] = (byte) ((array[i] & 0x0F) | ((value & 0xF) << 4));
+        }
+    }
+
+    /**
+     * Remembers, per region, the first chunk slot that still has to be processed. Lines are appended as "region slot" and the highest
+     * slot wins. The table hash is recorded as well so a checkpoint is never resumed with a different table.
+     */
+    private static final class Checkpoint {
+
+        private final Map<String, Integer> progress = new HashMap<>();
+        private final BufferedWriter writer;
+
+        Checkpoint(Path path, String tableHash) throws IOException {
+            if (Files.exists(path)) {
+                for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                    final String[] split = line.split(" ");
+                    if (split.length != 2) {
+                        continue;
+                    }
+                    if (split[0].equals(CHECKPOINT_TABLE)) {
+                        if (!split[1].equals(tableHash)) {
+                            throw new IOException("Checkpoint [" + path + "] was written for a different table, delete it to start over");
+                        }
+                        continue;
+                    }
+                    this.progress.merge(split[0], Integer.parseInt(split[1]), Math::max);
+                }
+            }
+
+            this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            record(CHECKPOINT_TABLE, tableHash);
+        }
+
+        synchronized int get(String region) {
+            return this.progress.getOrDefault(region, 0);
+        }
+
+        synchronized void record(String region, Object slot) throws IOException {
+            this.writer.write(region + " " + slot + "\n");
+            this.writer.flush();
+        }
+
+        synchronized void close() throws IOException {
+            this.writer.close();
+        }
+    }
+}
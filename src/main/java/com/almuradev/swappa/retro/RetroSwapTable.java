@@ -0,0 +1,129 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa.retro;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The "all" mappings compiled down to the numeric block ids and metadata that region files store.
+ *
+ * <p>A key is the 12 bit block id shifted left by four, or'd with the 4 bit metadata. Every key maps to the key it is replaced with or
+ * {@link #NONE}. The table is exported by the plugin, which is the only place that knows how states map to ids, and read by the offline
+ * {@link RetroSwap} tool.</p>
+ */
+public final class RetroSwapTable {
+
+    public static final int KEYS = 4096 << 4, NONE = -1;
+    private static final int MAGIC = 0x53575253, VERSION = 1;
+
+    private final int[] replacements;
+
+    public RetroSwapTable(int[] replacements) {
+        if (replacements.length != KEYS) {
+            throw new IllegalArgumentException("Expected [" + KEYS + "] keys but got [" + replacements.length + "]");
+        }
+        this.replacements = replacements;
+    }
+
+    public static int key(int blockId, int meta) {
+        return (blockId & 0xFFF) << 4 | (meta & 0xF);
+    }
+
+    public int get(int key) {
+        return this.replacements[key];
+    }
+
+    /**
+     * Gets the amount of keys that are replaced.
+     *
+     * @return The amount
+     */
+    public int size() {
+        int size = 0;
+        for (int replacement : this.replacements) {
+            if (replacement != NONE) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(this.replacements);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof RetroSwapTable && Arrays.equals(this.replacements, ((RetroSwapTable) obj).replacements);
+    }
+
+    public static RetroSwapTable read(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("[" + path + "] is not a retro swap table");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("[" + path + "] has unsupported version [" + version + "]");
+            }
+
+            final int[] replacements = new int[KEYS];
+            Arrays.fill(replacements, NONE);
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final int key = in.readInt();
+                final int replacement = in.readInt();
+                if (key < 0 || key >= KEYS || replacement < 0 || replacement >= KEYS) {
+                    throw new IOException("[" + path + "] contains an invalid key");
+                }
+                replacements[key] = replacement;
+            }
+
+            return new RetroSwapTable(replacements);
+        }
+    }
+
+    public void write(Path path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size());
+            for (int key = 0; key < KEYS; key++) {
+                if (this.replacements[key] != NONE) {
+                    out.writeInt(key);
+                    out.writeInt(this.replacements[key]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,480 @@
+/**
+ * This file is part of Swappa, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) AlmuraDev <http://github.com/AlmuraDev>
+ * Copyright (c) contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.almuradev.swappa;
+
+import com.flowpowered.math.vector.Vector3i;
+import org.spongepowered.api.CatalogType;
+import org.spongepowered.api.GameRegistry;
+import org.spongepowered.api.block.BlockSnapshot;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.block.BlockTransaction;
+import org.spongepowered.api.block.BlockType;
+import org.spongepowered.api.block.trait.BlockTrait;
+import org.spongepowered.api.event.world.chunk.PopulateChunkEvent;
+import org.spongepowered.api.plugin.PluginContainer;
+import org.spongepowered.api.plugin.PluginManager;
+import org.spongepowered.api.world.Chunk;
+import org.spongepowered.api.world.Dimension;
+import org.spongepowered.api.world.DimensionType;
+import org.spongepowered.api.world.World;
+import org.spongepowered.api.world.biome.BiomeType;
+import org.spongepowered.api.world.gen.PopulatorType;
+import org.spongepowered.api.world.storage.WorldProperties;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Minimal stand-ins for the Sponge API types Swappa touches, so the hot path can be exercised and the mapping files compiled without a
+ * server. Shared by the benchmarks in src/jmh and the config checker in src/check.
+ *
+ * <p>Every stub is a {@link Proxy} that answers the handful of methods Swappa calls and throws for anything else. That keeps the stubs
+ * independent of the rest of the API surface. Block states are canonical instances, just like on a real server.</p>
+ */
+final class Stubs {
+
+    private static final Constructor<?> SNAPSHOT_CONSTRUCTOR;
+
+    static {
+        try {
+            SNAPSHOT_CONSTRUCTOR = Proxy.getProxyClass(Stubs.class.getClassLoader(), BlockSnapshot.class).getConstructor(InvocationHandler.class);
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Stubs() {
+    }
+
+    /**
+     * Creates a {@link BlockType} with a single "variant" trait of the provided size.
+     *
+     * @param id The id, such as "minecraft:stone"
+     * @param variants The amount of states, at least one
+     * @return The block type
+     */
+    static BlockType blockType(String id, int variants) {
+        final List<Integer> values = new ArrayList<>(variants);
+        for (int i = 0; i < variants; i++) {
+            values.add(i);
+        }
+
+        final BlockTrait<?> trait = variants > 1 ? proxy(BlockTrait.class, id + "#variant", method -> {
+            switch (method) {
+                case "getId":
+                case "getName":
+                    return args -> "variant";
+                case "getPossibleValues":
+                    return args -> values;
+                case "getValueClass":
+                    return args -> Integer.class;
+                default:
+                    return null;
+            }
+        }) : null;
+        final Collection<BlockTrait<?>> traits = trait == null ? Collections.emptyList() : Collections.singletonList(trait);
+
+        final BlockType[] type = new BlockType[1];
+        final BlockState[] states = new BlockState[variants];
+        for (int i = 0; i < variants; i++) {
+            final int variant = i;
+            states[i] = proxy(BlockState.class, id + "[variant=" + i + "]", method -> {
+                switch (method) {
+                    case "getType":
+                        return args -> type[0];
+                    case "getTraits":
+                        return args -> traits;
+                    case "getTrait":
+                        return args -> Optional.ofNullable(trait != null && trait.getName().equals(args[0]) ? trait : null);
+                    case "getTraitValue":
+                        return args -> Optional.ofNullable(args[0] == trait ? variant : null);
+                    case "withTrait":
+                        return args -> {
+                            if (args[0] != trait) {
+                                return Optional.empty();
+                            }
+                            final int value = args[1] instanceof Integer ? (Integer) args[1] : Integer.parseInt(args[1].toString());
+                            return Optional.ofNullable(value >= 0 && value < variants ? states[value] : null);
+                        };
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        type[0] = proxy(BlockType.class, id, method -> {
+            switch (method) {
+                case "getId":
+                case "getName":
+                    return args -> id;
+                case "getDefaultState":
+                    return args -> states[0];
+                case "getTraits":
+                    return args -> traits;
+                case "getTrait":
+                    return args -> Optional.ofNullable(trait != null && trait.getName().equals(args[0]) ? trait : null);
+                default:
+                    return null;
+            }
+        });
+
+        return type[0];
+    }
+
+    /**
+     * Creates a {@link BlockType} with every combination of the provided traits' values as a state. Values are strings, which is what
+     * the mapping files provide when looking them up.
+     *
+     * @param id The id, such as "minecraft:stone"
+     * @param traitNames The names of the traits
+     * @param traitValues The possible values of each trait
+     * @return The block type
+     */
+    static BlockType blockType(String id, String[] traitNames, String[][] traitValues) {
+        final List<BlockTrait<?>> traits = new ArrayList<>(traitNames.length);
+        final int[] strides = new int[traitNames.length];
+        int size = 1;
+        for (int i = traitNames.length - 1; i >= 0; i--) {
+            final String name = traitNames[i];
+            final List<String> values = Collections.unmodifiableList(Arrays.asList(traitValues[i]));
+            traits.add(0, proxy(BlockTrait.class, id + "#" + name, method -> {
+                switch (method) {
+                    case "getId":
+                    case "getName":
+                        return args -> name;
+                    case "getPossibleValues":
+                        return args -> values;
+                    case "getValueClass":
+                        return args -> String.class;
+                    default:
+                        return null;
+                }
+            }));
+            strides[i] = size;
+            size *= traitValues[i].length;
+        }
+        final List<BlockTrait<?>> immutableTraits = Collections.unmodifiableList(traits);
+
+        // The last trait varies fastest, like the palette enumerates them
+        final BlockType[] type = new BlockType[1];
+        final BlockState[] states = new BlockState[size];
+        for (int i = 0; i < size; i++) {
+            final int index = i;
+            final StringBuilder name = new StringBuilder(id);
+            for (int t = 0; t < traitNames.length; t++) {
+                name.append(t == 0 ? '[' : ',').append(traitNames[t]).append('=').append(traitValues[t][index / strides[t] % traitValues[t]
+                        .length]);
+            }
+            if (traitNames.length > 0) {
+                name.append(']');
+            }
+            states[i] = proxy(BlockState.class, name.toString(), method -> {
+                switch (method) {
+                    case "getType":
+                        return args -> type[0];
+                    case "getTraits":
+                        return args -> immutableTraits;
+                    case "getTrait":
+                        return args -> trait(immutableTraits, args[0]);
+                    case "getTraitValue":
+                        return args -> {
+                            final int t = immutableTraits.indexOf(args[0]);
+                            return Optional.ofNullable(t < 0 ? null : traitValues[t][index / strides[t] % traitValues[t].length]);
+                        };
+                    case "withTrait":
+                        return args -> {
+                            final int t = immutableTraits.indexOf(args[0]);
+                            final int value = t < 0 ? -1 : Arrays.asList(traitValues[t]).indexOf(String.valueOf(args[1]));
+                            return Optional.ofNullable(value < 0 ? null : states[index + (value - index / strides[t] % traitValues[t].length)
+                                    * strides[t]]);
+                        };
+                    default:
+                        return null;
+                }
+            });
+        }
+
+        type[0] = proxy(BlockType.class, id, method -> {
+            switch (method) {
+                case "getId":
+                case "getName":
+                    return args -> id;
+                case "getDefaultState":
+                    return args -> states[0];
+                case "getTraits":
+                    return args -> immutableTraits;
+                case "getTrait":
+                    return args -> trait(immutableTraits, args[0]);
+                default:
+                    return null;
+            }
+        });
+
+        return type[0];
+    }
+
+    private static Optional<BlockTrait<?>> trait(List<BlockTrait<?>> traits, Object name) {
+        for (BlockTrait<?> trait : traits) {
+            if (trait.getName().equals(name)) {
+                return Optional.of(trait);
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Creates a catalog type that only has an id, such as a {@link org.spongepowered.api.world.biome.BiomeType}.
+     */
+    static <T extends CatalogType> T catalogType(Class<T> type, String id) {
+        return proxy(type, id, method -> method.equals("getId") || method.equals("getName") ? args -> id : null);
+    }
+
+    /**
+     * Creates a {@link GameRegistry} that knows the provided catalog types. Like Sponge's, ids without a namespace are looked up in
+     * minecraft's.
+     *
+     * @param types The types by their class and id
+     * @return The registry
+     */
+    static GameRegistry gameRegistry(Map<Class<?>, Map<String, ? extends CatalogType>> types) {
+        return proxy(GameRegistry.class, "GameRegistry", method -> {
+            switch (method) {
+                case "getType":
+                    return args -> {
+                        final Map<String, ? extends CatalogType> byId = types.getOrDefault(args[0], Collections.emptyMap());
+                        final String id = (String) args[1];
+                        return Optional.ofNullable(byId.containsKey(id) || id.contains(":") ? byId.get(id) : byId.get("minecraft:" + id));
+                    };
+                case "getAllOf":
+                    return args -> Collections.unmodifiableCollection(types.getOrDefault(args[0], Collections.emptyMap()).values());
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a {@link World} whose biomes are looked up by column.
+     *
+     * @param name The world name
+     * @param dimensionType The dimension type
+     * @param seed The seed
+     * @param biomes The biome of each column, packed with {@link ReplacementJournal#pack(int, int, int)} and a y of 0
+     * @return The world
+     */
+    static World world(String name, DimensionType dimensionType, long seed, Map<Long, BiomeType> biomes) {
+        final UUID uniqueId = UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8));
+        final WorldProperties properties = proxy(WorldProperties.class, name + "#properties", method -> method.equals("getSeed") ? args -> seed
+                : null);
+        final Dimension dimension = proxy(Dimension.class, name + "#dimension", method -> {
+            switch (method) {
+                case "getName":
+                    return args -> dimensionType.getName();
+                case "getType":
+                    return args -> dimensionType;
+                default:
+                    return null;
+            }
+        });
+        return proxy(World.class, name, method -> {
+            switch (method) {
+                case "getName":
+                    return args -> name;
+                case "getUniqueId":
+                    return args -> uniqueId;
+                case "getProperties":
+                    return args -> properties;
+                case "getDimension":
+                    return args -> dimension;
+                case "getBiome":
+                    return args -> biomes.get(ReplacementJournal.pack((Integer) args[0], 0, (Integer) args[1]));
+                default:
+                    return null;
+            }
+        });
+    }
+
+    static PopulatorType populatorType(String id) {
+        return proxy(PopulatorType.class, id, method -> method.equals("getId") || method.equals("getName") ? args -> id : null);
+    }
+
+    static BlockSnapshot snapshot(BlockState state, Vector3i position) {
+        try {
+            return (BlockSnapshot) SNAPSHOT_CONSTRUCTOR.newInstance(new SnapshotHandler(state, position));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static BlockTransaction transaction(BlockState original, BlockState populated, Vector3i position) {
+        return new BlockTransaction(snapshot(original, position), snapshot(populated, position));
+    }
+
+    static PopulateChunkEvent.Post populateChunkPost(Map<PopulatorType, List<BlockTransaction>> transactions, long seed) {
+        final WorldProperties properties = proxy(WorldProperties.class, "WorldProperties", method -> method.equals("getSeed") ? args -> seed
+                : null);
+        return populateChunkPost(transactions, proxy(World.class, "World", method -> method.equals("getProperties") ? args -> properties
+                : null), 0, 0);
+    }
+
+    static PopulateChunkEvent.Post populateChunkPost(Map<PopulatorType, List<BlockTransaction>> transactions, World world, int chunkX,
+            int chunkZ) {
+        final Vector3i position = new Vector3i(chunkX, 0, chunkZ);
+        final Chunk chunk = proxy(Chunk.class, "Chunk" + position, method -> {
+            switch (method) {
+                case "getWorld":
+                    return args -> world;
+                case "getPosition":
+                    return args -> position;
+                default:
+                    return null;
+            }
+        });
+
+        return proxy(PopulateChunkEvent.Post.class, "PopulateChunkEvent.Post", method -> {
+            switch (method) {
+                case "getPopulatedTransactions":
+                    return args -> transactions;
+                case "getTargetChunk":
+                    return args -> chunk;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    static PluginContainer plugin(String id) {
+        return proxy(PluginContainer.class, id, method -> method.equals("getId") || method.equals("getName") ? args -> id : null);
+    }
+
+    static PluginManager pluginManager(String... ids) {
+        final Map<String, PluginContainer> plugins = new LinkedHashMap<>();
+        for (String id : ids) {
+            plugins.put(id, plugin(id));
+        }
+
+        return pluginManager(plugins);
+    }
+
+    /**
+     * Creates a {@link PluginManager} that knows the provided plugins.
+     *
+     * @param plugins The plugins by their id
+     * @return The plugin manager
+     */
+    static PluginManager pluginManager(Map<String, PluginContainer> plugins) {
+        final Collection<PluginContainer> containers = Collections.unmodifiableCollection(plugins.values());
+        return proxy(PluginManager.class, "PluginManager" + plugins.keySet(), method -> {
+            switch (method) {
+                case "getPlugin":
+                    return args -> Optional.ofNullable(plugins.get(args[0]));
+                case "getPlugins":
+                    return args -> containers;
+                case "isLoaded":
+                    return args -> plugins.containsKey(args[0]);
+                default:
+                    return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a proxy of the provided interface. Identity based equals/hashCode and toString are handled here, everything else is
+     * resolved by name through the provided function once and then cached, so calling a stub allocates nothing beyond its arguments.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<?> type, String name, Function<String, Function<Object[], Object>> methods) {
+        final Map<Method, Function<Object[], Object>> handlers = new ConcurrentHashMap<>();
+        return (T) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return name;
+                default:
+                    Function<Object[], Object> handler = handlers.get(method);
+                    if (handler == null) {
+                        handler = methods.apply(method.getName());
+                        if (handler == null) {
+                            throw new UnsupportedOperationException(type.getSimpleName() + "#" + method.getName() + " is not stubbed");
+                        }
+                        handlers.put(method, handler);
+                    }
+                    return handler.apply(args);
+            }
+        });
+    }
+
+    /**
+     * Snapshots are created for every replacement so they get a dedicated handler, keeping their footprint close to a real snapshot.
+     */
+    private static final class SnapshotHandler implements InvocationHandler {
+
+        private final BlockState state;
+        private final Vector3i position;
+
+        SnapshotHandler(BlockState state, Vector3i position) {
+            this.state = state;
+            this.position = position;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "getState":
+                    return this.state;
+                case "getPosition":
+                    return this.position;
+                case "withState":
+                    return snapshot((BlockState) args[0], this.position);
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "BlockSnapshot{" + this.state + "}";
+                default:
+                    throw new UnsupportedOperationException("BlockSnapshot#" + method.getName() + " is not stubbed");
+            }
+        }
+    }
+}